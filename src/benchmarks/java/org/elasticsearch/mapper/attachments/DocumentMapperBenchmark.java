@@ -0,0 +1,148 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.DocumentMapperParser;
+import org.elasticsearch.index.mapper.ParsedDocument;
+import org.elasticsearch.test.StreamsUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Throughput and latency of {@link DocumentMapper#parse} on a document with one attachment, the way an index request
+ * goes through the mapper: the JSON source is parsed, the base64 content decoded, tika run and the sub fields parsed.
+ * Compared to {@link SampleFilesBenchmark} on the same file, with {@code indexedChars} 100000, it tells what the mapper
+ * adds to the extraction.
+ * <p>
+ * The mappings are the ones of the unit tests:
+ * <ul>
+ * <li>{@code default}: the attachment type without any option</li>
+ * <li>{@code metadata}: all the metadata fields stored</li>
+ * <li>{@code language}: language detection on</li>
+ * <li>{@code multifield}: the content and metadata fields with a sub field each</li>
+ * </ul>
+ * The source either holds the content only, or the content along with its name, content type and language
+ * ({@code source=metadata}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentMapperBenchmark {
+
+    private static final String MAPPINGS = "/org/elasticsearch/index/mapper/attachment/test/unit/";
+
+    @Param({ "default", "metadata", "language", "multifield" })
+    public String mapping;
+
+    @Param({ "testXHTML.html", "text-in-english.txt", "multi-page.pdf", "embedded.docx" })
+    public String file;
+
+    @Param({ "content", "metadata" })
+    public String source;
+
+    private Path home;
+
+    private ExtractionService extractionService;
+
+    private DocumentMapper docMapper;
+
+    private BytesReference json;
+
+    @Setup
+    public void setup() throws Exception {
+        home = Files.createTempDirectory("attachment-benchmark");
+        Settings.Builder settings = Settings.builder();
+        String mappingFile;
+        switch (mapping) {
+            case "default":
+                mappingFile = "simple/test-mapping.json";
+                break;
+            case "metadata":
+                mappingFile = "simple/test-mapping-all-fields.json";
+                break;
+            case "language":
+                mappingFile = "language/language-mapping.json";
+                settings.put("index.mapping.attachment.detect_language", true);
+                break;
+            case "multifield":
+                mappingFile = "multifield/multifield-mapping.json";
+                break;
+            default:
+                throw new IllegalArgumentException("unknown mapping [" + mapping + "]");
+        }
+
+        extractionService = new ExtractionService(Settings.EMPTY);
+        DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(home, settings.build()).documentMapperParser();
+        mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser(extractionService));
+        docMapper = mapperParser.parse(StreamsUtils.copyToStringFromClasspath(MAPPINGS + mappingFile));
+
+        byte[] bytes = Documents.sample(file);
+        switch (source) {
+            case "content":
+                json = jsonBuilder().startObject().field("file", bytes).endObject().bytes();
+                break;
+            case "metadata":
+                json = jsonBuilder().startObject().startObject("file")
+                        .field("_content", bytes)
+                        .field("_name", file)
+                        .field("_content_type", "application/octet-stream")
+                        .field("_language", "en")
+                        .endObject().endObject().bytes();
+                break;
+            default:
+                throw new IllegalArgumentException("unknown source [" + source + "]");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        extractionService.close();
+        IOUtils.rm(home);
+    }
+
+    @Benchmark
+    public ParsedDocument parse() {
+        return docMapper.parse("person", "person", "1", json);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.Parser;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link TikaImpl#parse} scales with the size of the document: documents with {@code chars} characters of text are
+ * generated in a few formats, see {@link Documents#generate}, and extracted whole or up to the default limit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentSizeBenchmark {
+
+    @Param({ "txt", "html", "pdf", "docx" })
+    public String format;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int chars;
+
+    @Param({ "-1", "100000" })
+    public int indexedChars;
+
+    private byte[] bytes;
+
+    private Parser parser;
+
+    @Setup
+    public void setup() throws Exception {
+        bytes = Documents.generate(format, chars);
+        parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+    }
+
+    @Benchmark
+    public String parse() throws Exception {
+        return TikaImpl.parse(StreamInput.wrap(bytes), new Metadata(), indexedChars, parser);
+    }
+}
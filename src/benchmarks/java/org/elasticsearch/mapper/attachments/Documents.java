@@ -0,0 +1,202 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The documents the benchmarks extract: the sample files and tika files of the tests, and documents of a given
+ * amount of text generated in a few formats.
+ */
+final class Documents {
+
+    static final String SAMPLE_FILES = "/org/elasticsearch/index/mapper/attachment/test/sample-files/";
+
+    static final String TIKA_FILES = "/org/elasticsearch/index/mapper/attachment/test/tika-files.zip";
+
+    /** the formats {@link #generate} generates */
+    static final String[] GENERATED_FORMATS = { "txt", "html", "pdf", "docx" };
+
+    private static final int CHARS_PER_LINE = 80;
+
+    private static final int LINES_PER_PAGE = 50;
+
+    private Documents() {}
+
+    static byte[] sample(String name) throws IOException {
+        return read(SAMPLE_FILES + name);
+    }
+
+    /**
+     * The files of {@code tika-files.zip} with the given extension, by name.
+     *
+     * @throws IllegalStateException if there are none
+     */
+    static Map<String, byte[]> tikaFiles(String extension) throws IOException {
+        Map<String, byte[]> files = new TreeMap<>();
+        InputStream zip = Documents.class.getResourceAsStream(TIKA_FILES);
+        if (zip == null) {
+            throw new IllegalStateException("[" + TIKA_FILES + "] is not on the classpath");
+        }
+        try (ZipInputStream in = new ZipInputStream(zip)) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (entry.isDirectory() == false && entry.getName().toLowerCase(Locale.ROOT).endsWith("." + extension)) {
+                    files.put(entry.getName(), toBytes(in));
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IllegalStateException("no [" + extension + "] files in [" + TIKA_FILES + "]");
+        }
+        return files;
+    }
+
+    /**
+     * Lines of english text of {@link #CHARS_PER_LINE} characters at most, made of the english sample file, that add
+     * up to {@code chars} characters.
+     */
+    static List<String> lines(int chars) throws IOException {
+        String[] words = new String(sample("text-in-english.txt"), StandardCharsets.UTF_8).split("\\s+");
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        int total = 0;
+        for (int i = 0; total < chars; i++) {
+            String word = words[i % words.length];
+            if (line.length() + word.length() + 1 > CHARS_PER_LINE) {
+                lines.add(line.toString());
+                line.setLength(0);
+            }
+            line.append(word).append(' ');
+            total += word.length() + 1;
+        }
+        lines.add(line.toString());
+        return lines;
+    }
+
+    /**
+     * Generates a document with about {@code chars} characters of text in one of the {@link #GENERATED_FORMATS}.
+     */
+    static byte[] generate(String format, int chars) throws IOException {
+        List<String> lines = lines(chars);
+        switch (format) {
+            case "txt":
+                return String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+            case "html":
+                return html(lines);
+            case "pdf":
+                return pdf(lines);
+            case "docx":
+                return docx(lines);
+            default:
+                throw new IllegalArgumentException("unknown format [" + format + "], expected one of txt, html, pdf, docx");
+        }
+    }
+
+    /** generates a PDF of {@code pages} pages full of text */
+    static byte[] pdf(int pages) throws IOException {
+        return pdf(lines(pages * LINES_PER_PAGE * CHARS_PER_LINE));
+    }
+
+    private static byte[] html(List<String> lines) {
+        StringBuilder html = new StringBuilder("<html><head><title>Generated</title></head><body>\n");
+        for (int i = 0; i < lines.size(); i += 10) {
+            html.append("<p>");
+            for (String line : lines.subList(i, Math.min(lines.size(), i + 10))) {
+                html.append(line).append('\n');
+            }
+            html.append("</p>\n");
+        }
+        html.append("</body></html>\n");
+        return html.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] pdf(List<String> lines) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            for (int first = 0; first < lines.size(); first += LINES_PER_PAGE) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 10);
+                    content.moveTextPositionByAmount(50, 740);
+                    for (String line : lines.subList(first, Math.min(lines.size(), first + LINES_PER_PAGE))) {
+                        content.drawString(line);
+                        content.moveTextPositionByAmount(0, -14);
+                    }
+                    content.endText();
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            return out.toByteArray();
+        } catch (COSVisitorException e) {
+            throw new IOException("failed to generate a PDF", e);
+        }
+    }
+
+    private static byte[] docx(List<String> lines) throws IOException {
+        XWPFDocument document = new XWPFDocument();
+        for (String line : lines) {
+            document.createParagraph().createRun().setText(line);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        document.write(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] read(String resource) throws IOException {
+        try (InputStream in = Documents.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException("[" + resource + "] is not on the classpath");
+            }
+            return toBytes(in);
+        }
+    }
+
+    /** reads the rest of {@code in}, without closing it */
+    private static byte[] toBytes(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
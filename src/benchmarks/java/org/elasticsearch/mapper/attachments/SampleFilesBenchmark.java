@@ -0,0 +1,73 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.Parser;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of {@link TikaImpl#parse} on each of the sample files of the tests, with different limits
+ * on the number of extracted characters. The encrypted PDF is left out, it only measures how fast tika fails.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleFilesBenchmark {
+
+    @Param({ "asciidoc.asciidoc", "embedded.docx", "htmlWithValidDateMeta.html", "issue-104.docx", "multi-page.pdf",
+             "testContentLength.txt", "testXHTML.html", "text-in-english.txt" })
+    public String file;
+
+    @Param({ "-1", "100000", "1000" })
+    public int indexedChars;
+
+    private byte[] bytes;
+
+    private Parser parser;
+
+    @Setup
+    public void setup() throws Exception {
+        bytes = Documents.sample(file);
+        parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+    }
+
+    @Benchmark
+    public String parse() throws Exception {
+        return TikaImpl.parse(StreamInput.wrap(bytes), new Metadata(), indexedChars, parser);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.common.io.stream.ByteBufferStreamInput;
+import org.elasticsearch.common.io.stream.StreamInput;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The raw bytes of an attachment, as handed over to tika.
+ * <p>
+ * Content can either be backed by an already decoded {@code byte[]}, or by the base64 characters of the
+ * {@code _content} token itself, in which case it is decoded on the fly while tika reads it and the decoded
+ * document never exists on the heap as a whole. Content can also be a file the node reads itself, which is memory
+ * mapped and never copied to the heap either.
+ */
+abstract class AttachmentContent {
+
+    /** opens a new stream over the decoded bytes, starting from the first byte */
+    abstract InputStream newStream() throws IOException;
+
+    /** the number of decoded bytes */
+    abstract int length();
+
+    /**
+     * content that stays valid after the parser it was read from moved on, for extractions that may outlive the
+     * parse of the document: lazily decoded base64 content is decoded, other content is returned as is.
+     */
+    AttachmentContent detach() throws IOException {
+        return this;
+    }
+
+    static AttachmentContent of(byte[] bytes) {
+        return new BytesContent(bytes);
+    }
+
+    /**
+     * base64 content that is decoded lazily, every time {@link #newStream()} is called. The given characters are
+     * not copied, so the caller must not modify them (nor let the parser reuse them) while this content is in use.
+     *
+     * @throws IllegalArgumentException if the characters are not valid base64
+     */
+    static AttachmentContent base64(char[] chars, int offset, int length) {
+        return new Base64Content(chars, offset, length, decodedLength(chars, offset, length));
+    }
+
+    /**
+     * decodes base64 characters straight into a {@code byte[]} of the exact decoded size.
+     *
+     * @throws IllegalArgumentException if the characters are not valid base64
+     */
+    static AttachmentContent decodeBase64(char[] chars, int offset, int length) throws IOException {
+        int decodedLength = decodedLength(chars, offset, length);
+        byte[] bytes = new byte[decodedLength];
+        try (InputStream in = new Base64InputStream(chars, offset, length)) {
+            int read = 0;
+            while (read < decodedLength) {
+                int n = in.read(bytes, read, decodedLength - read);
+                assert n > 0 : "base64 stream ended early";
+                read += n;
+            }
+        }
+        return new BytesContent(bytes);
+    }
+
+    /**
+     * the content of a file, memory mapped read only. The file stays mapped until the content is garbage collected,
+     * so it must not be truncated while this content is in use.
+     *
+     * @throws IllegalArgumentException if the file is larger than 2gb
+     */
+    static AttachmentContent map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("[" + file + "] is too large: [" + size + "] bytes");
+            }
+            return new MappedContent(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    private static final class BytesContent extends AttachmentContent {
+        private final byte[] bytes;
+
+        BytesContent(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        InputStream newStream() {
+            return StreamInput.wrap(bytes);
+        }
+
+        @Override
+        int length() {
+            return bytes.length;
+        }
+    }
+
+    private static final class Base64Content extends AttachmentContent {
+        private final char[] chars;
+        private final int offset;
+        private final int length;
+        private final int decodedLength;
+
+        Base64Content(char[] chars, int offset, int length, int decodedLength) {
+            this.chars = chars;
+            this.offset = offset;
+            this.length = length;
+            this.decodedLength = decodedLength;
+        }
+
+        @Override
+        InputStream newStream() {
+            return new Base64InputStream(chars, offset, length);
+        }
+
+        @Override
+        AttachmentContent detach() throws IOException {
+            return decodeBase64(chars, offset, length);
+        }
+
+        @Override
+        int length() {
+            return decodedLength;
+        }
+    }
+
+    private static final class MappedContent extends AttachmentContent {
+        private final ByteBuffer buffer;
+
+        MappedContent(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        InputStream newStream() {
+            // every stream gets its own position over the same mapping
+            return new ByteBufferStreamInput(buffer.duplicate());
+        }
+
+        @Override
+        int length() {
+            return buffer.capacity();
+        }
+    }
+
+    /** value of each base64 character, -1 for characters outside of the alphabet */
+    private static final int[] DECODE = new int[128];
+    static {
+        Arrays.fill(DECODE, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    /**
+     * validates the base64 characters and computes the number of bytes they decode to. Whitespace is
+     * ignored and padding is optional, like jackson's default base64 variant does.
+     */
+    static int decodedLength(char[] chars, int offset, int length) {
+        long symbols = 0;
+        boolean padding = false;
+        for (int i = offset; i < offset + length; i++) {
+            char c = chars[i];
+            if (isWhitespace(c)) {
+                continue;
+            }
+            if (c == '=') {
+                padding = true;
+            } else if (padding || c >= 128 || DECODE[c] < 0) {
+                throw new IllegalArgumentException("Illegal character '" + c + "' at position [" + (i - offset) + "] of base64 content");
+            } else {
+                symbols++;
+            }
+        }
+        if (symbols % 4 == 1) {
+            throw new IllegalArgumentException("Truncated base64 content: [" + symbols + "] base64 characters");
+        }
+        long decoded = symbols / 4 * 3 + Math.max(0, symbols % 4 - 1);
+        if (decoded > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("base64 content is too large");
+        }
+        return (int) decoded;
+    }
+
+    /**
+     * Decodes already validated base64 characters, four characters at a time.
+     */
+    static final class Base64InputStream extends InputStream {
+        private final char[] chars;
+        private final int end;
+        private int pos;
+        /** up to three decoded bytes that have not been read yet */
+        private final byte[] pending = new byte[3];
+        private int pendingPos;
+        private int pendingLength;
+
+        Base64InputStream(char[] chars, int offset, int length) {
+            this.chars = chars;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pendingPos == pendingLength && fill() == false) {
+                return -1;
+            }
+            return pending[pendingPos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int written = 0;
+            while (written < len) {
+                if (pendingPos == pendingLength && fill() == false) {
+                    break;
+                }
+                int n = Math.min(len - written, pendingLength - pendingPos);
+                System.arraycopy(pending, pendingPos, b, off + written, n);
+                pendingPos += n;
+                written += n;
+            }
+            return written == 0 ? -1 : written;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                if (pendingPos == pendingLength && fill() == false) {
+                    break;
+                }
+                int s = (int) Math.min(n - skipped, pendingLength - pendingPos);
+                pendingPos += s;
+                skipped += s;
+            }
+            return skipped;
+        }
+
+        /** decodes the next quantum of up to four characters, returns false at the end of the content */
+        private boolean fill() {
+            int bits = 0;
+            int count = 0;
+            while (count < 4 && pos < end) {
+                char c = chars[pos++];
+                if (c == '=') {
+                    pos = end;
+                } else if (isWhitespace(c) == false) {
+                    bits = (bits << 6) | DECODE[c];
+                    count++;
+                }
+            }
+            pendingPos = 0;
+            switch (count) {
+                case 4:
+                    pending[0] = (byte) (bits >> 16);
+                    pending[1] = (byte) (bits >> 8);
+                    pending[2] = (byte) bits;
+                    pendingLength = 3;
+                    return true;
+                case 3:
+                    pending[0] = (byte) (bits >> 10);
+                    pending[1] = (byte) (bits >> 2);
+                    pendingLength = 2;
+                    return true;
+                case 2:
+                    pending[0] = (byte) (bits >> 4);
+                    pendingLength = 1;
+                    return true;
+                default:
+                    pendingLength = 0;
+                    return false;
+            }
+        }
+    }
+}
@@ -21,13 +21,16 @@ package org.elasticsearch.mapper.attachments;
 
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexOptions;
-import org.apache.tika.language.LanguageIdentifier;
 import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.Parser;
 import org.elasticsearch.Version;
 import org.elasticsearch.common.collect.Iterators;
+import org.elasticsearch.common.io.PathUtils;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.mapper.*;
@@ -35,6 +38,7 @@ import org.elasticsearch.index.mapper.*;
 import java.io.IOException;
 import java.util.*;
 
+import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeBooleanValue;
 import static org.elasticsearch.index.mapper.MapperBuilders.*;
 import static org.elasticsearch.index.mapper.core.TypeParsers.parseMultiField;
 import static org.elasticsearch.index.mapper.core.TypeParsers.parsePathType;
@@ -50,13 +54,56 @@ import static org.elasticsearch.index.mapper.core.TypeParsers.parsePathType;
  *          "_content_type" : "application/pdf",
  *          "_content_length" : "500000000",
  *          "_name" : "..../something.pdf",
+ *          "_timeout" : "30s",
  *          "_content" : ""
  *      }
  * }
  * </pre>
  * <p>
+ * With SMILE and CBOR, {@code _content} (or the field itself) can be a binary value instead of base64 text.
+ * <p>
+ * _content_path = Instead of {@code _content}, the path of a file the node reads the attachment from, under one of the
+ * directories allowed by {@code mapper.attachment.content_path.roots}. See {@link ContentPaths}.
+ * <p>
  * _content_length = Specify the maximum amount of characters to extract from the attachment. If not specified, then the default for
  * tika is 100,000 characters. Caution is required when setting large values as this can cause memory issues.
+ * <p>
+ * _trust_content_type = Use the given _content_type to pick the parser instead of detecting the type of the attachment, defaults to
+ * {@code index.mapping.attachment.trust_content_type} which is false by default. Types we have no parser for are still detected.
+ * <p>
+ * _timeout = Specify the maximum time the extraction may take, defaults to {@code index.mapping.attachment.timeout} which is unbounded
+ * by default. An extraction that takes longer is abandoned and handled like any other extraction failure.
+ * <p>
+ * The formats text is extracted from can be restricted with {@code index.mapping.attachment.formats}, for example
+ * {@code ["pdf", "ooxml"]}. Attachments of other formats are indexed without text. All formats are enabled by default,
+ * but the parser of a format is only loaded once the first attachment of that format comes in.
+ * <p>
+ * With {@code index.mapping.attachment.parallel_embedded}, the documents embedded in an attachment (the parts of
+ * office documents, embedded workbooks, ...) are extracted in parallel. The extracted text stays the same.
+ * <p>
+ * The {@code pdf_extraction} mapping parameter picks how the text of PDFs is extracted: {@code sequential} (the
+ * default) or {@code parallel}, in ranges of pages at the same time. See {@link ParallelPdfParser}.
+ * <p>
+ * With the {@code metadata_only} mapping parameter set, no text is extracted, only the document properties (title,
+ * author, ...). For OOXML, OpenDocument and PDF attachments, the body is not even parsed then. If the parameter is not
+ * set, this is the case whenever the content field is neither indexed, stored nor copied, and no language needs to
+ * be detected.
+ * <p>
+ * The language is detected on a sample of at most {@code index.mapping.attachment.detect_language_chars} characters
+ * of the extracted text, 10,000 by default, or on the whole text if set to {@code -1}. See {@link LanguageDetector}.
+ * <p>
+ * Attachments that take long to extract can be logged, see {@link ExtractionSlowLog}.
+ * <p>
+ * With {@code index.mapping.attachment.reuse_extraction}, the SHA-256 digest of the attachment is indexed in the
+ * {@code digest} field. It is the digest the {@link ExtractionCache} and the {@link ExtractionStore} find extractions
+ * by, so when an update or a reindex brings the same attachment again, it is not extracted again if the node still
+ * has it.
+ * <p>
+ * With the {@code stream_content} mapping parameter set, the extracted text never exists as a whole on the heap: tika
+ * writes it to a temporary file, which the content field is analyzed from when the document is indexed. The language
+ * is then detected on the first {@code detect_language_chars} characters only, and the text is neither cached, stored,
+ * extracted ahead nor reused. The content field must be indexed, tokenized, not stored and have no sub fields nor
+ * {@code copy_to}, since all of those need the text as a string. See {@link SpilledText}.
  */
 public class AttachmentMapper extends FieldMapper {
 
@@ -83,6 +130,7 @@ public class AttachmentMapper extends FieldMapper {
         public static final String CONTENT_TYPE = "content_type";
         public static final String CONTENT_LENGTH = "content_length";
         public static final String LANGUAGE = "language";
+        public static final String DIGEST = "digest";
     }
 
     static final class AttachmentFieldType extends MappedFieldType {
@@ -116,6 +164,29 @@ public class AttachmentMapper extends FieldMapper {
 
         private Boolean langDetect = null;
 
+        private Integer langDetectChars = null;
+
+        private TimeValue timeout = null;
+
+        private Boolean trustContentType = null;
+
+        private String[] formats = null;
+
+        private Boolean parallelEmbedded = null;
+
+        private boolean parallelPdf = false;
+
+        private Boolean metadataOnly = null;
+
+        private Boolean reuseExtraction = null;
+
+        private boolean streamContent = false;
+
+        private ExtractionService extractionService;
+
+        /** the slow log of the index, built from the index settings if there is none */
+        private ExtractionSlowLog slowLog;
+
         private Mapper.Builder contentBuilder;
 
         private Mapper.Builder titleBuilder = stringField(FieldNames.TITLE);
@@ -134,6 +205,8 @@ public class AttachmentMapper extends FieldMapper {
 
         private Mapper.Builder languageBuilder = stringField(FieldNames.LANGUAGE);
 
+        private Mapper.Builder digestBuilder = stringField(FieldNames.DIGEST).index(true).tokenized(false);
+
         public Builder(String name) {
             super(name, new AttachmentFieldType());
             this.builder = this;
@@ -145,6 +218,21 @@ public class AttachmentMapper extends FieldMapper {
             return this;
         }
 
+        public Builder parallelPdf(boolean parallelPdf) {
+            this.parallelPdf = parallelPdf;
+            return this;
+        }
+
+        public Builder metadataOnly(boolean metadataOnly) {
+            this.metadataOnly = metadataOnly;
+            return this;
+        }
+
+        public Builder streamContent(boolean streamContent) {
+            this.streamContent = streamContent;
+            return this;
+        }
+
         public Builder content(Mapper.Builder content) {
             this.contentBuilder = content;
             return this;
@@ -190,8 +278,30 @@ public class AttachmentMapper extends FieldMapper {
             return this;
         }
 
+        public Builder digest(Mapper.Builder digest) {
+            this.digestBuilder = digest;
+            return this;
+        }
+
+        Builder slowLog(ExtractionSlowLog slowLog) {
+            this.slowLog = slowLog;
+            return this;
+        }
+
+        Builder extractionService(ExtractionService extractionService) {
+            this.extractionService = extractionService;
+            return this;
+        }
+
         @Override
         public AttachmentMapper build(BuilderContext context) {
+            if (reuseExtraction == null && context.indexSettings() != null) {
+                reuseExtraction = context.indexSettings().getAsBoolean("index.mapping.attachment.reuse_extraction", Boolean.FALSE);
+            }
+            if (reuseExtraction == null) {
+                reuseExtraction = Boolean.FALSE;
+            }
+
             ContentPath.Type origPathType = context.path().pathType();
             context.path().pathType(pathType);
 
@@ -218,10 +328,30 @@ public class AttachmentMapper extends FieldMapper {
             FieldMapper contentTypeMapper = (FieldMapper) contentTypeBuilder.build(context);
             FieldMapper contentLength = (FieldMapper) contentLengthBuilder.build(context);
             FieldMapper language = (FieldMapper) languageBuilder.build(context);
+            // only the reuse of extractions indexes and needs the digest, streamed text is never reused
+            FieldMapper digest = reuseExtraction && streamContent == false ? (FieldMapper) digestBuilder.build(context) : null;
             context.path().remove();
 
             context.path().pathType(origPathType);
 
+            // nothing would be done with the text if the content field is neither indexed, stored nor copied
+            boolean contentUnused = contentMapper.fieldType().indexOptions() == IndexOptions.NONE
+                    && contentMapper.fieldType().stored() == false
+                    && contentMapper.fieldType().hasDocValues() == false
+                    && contentMapper.iterator().hasNext() == false
+                    && (contentMapper.copyTo() == null || contentMapper.copyTo().copyToFields().isEmpty());
+
+            if (streamContent) {
+                // the text is only available as a reader, which lucene can analyze but not store
+                if (contentMapper.fieldType().indexOptions() == IndexOptions.NONE || contentMapper.fieldType().tokenized() == false
+                        || contentMapper.fieldType().stored() || contentMapper.fieldType().hasDocValues()
+                        || contentMapper.iterator().hasNext()
+                        || (contentMapper.copyTo() != null && contentMapper.copyTo().copyToFields().isEmpty() == false)) {
+                    throw new MapperParsingException("[stream_content] requires field [" + contentMapper.fieldType().names().fullName()
+                            + "] to be indexed, analyzed and not stored, without doc values, sub fields nor copy_to");
+                }
+            }
+
             if (defaultIndexedChars == null && context.indexSettings() != null) {
                 defaultIndexedChars = context.indexSettings().getAsInt("index.mapping.attachment.indexed_chars", 100000);
             }
@@ -242,6 +372,44 @@ public class AttachmentMapper extends FieldMapper {
             if (langDetect == null) {
                 langDetect = Boolean.FALSE;
             }
+
+            if (langDetectChars == null && context.indexSettings() != null) {
+                langDetectChars = context.indexSettings().getAsInt("index.mapping.attachment.detect_language_chars",
+                        LanguageDetector.DEFAULT_SAMPLE_CHARS);
+            }
+            if (langDetectChars == null) {
+                langDetectChars = LanguageDetector.DEFAULT_SAMPLE_CHARS;
+            }
+
+            if (timeout == null && context.indexSettings() != null) {
+                timeout = context.indexSettings().getAsTime("index.mapping.attachment.timeout", ExtractionService.NO_TIMEOUT);
+            }
+            if (timeout == null) {
+                timeout = ExtractionService.NO_TIMEOUT;
+            }
+
+            if (trustContentType == null && context.indexSettings() != null) {
+                trustContentType = context.indexSettings().getAsBoolean("index.mapping.attachment.trust_content_type", Boolean.FALSE);
+            }
+            if (trustContentType == null) {
+                trustContentType = Boolean.FALSE;
+            }
+
+            if (formats == null && context.indexSettings() != null) {
+                formats = context.indexSettings().getAsArray("index.mapping.attachment.formats", null);
+            }
+            if (formats == null || formats.length == 0) {
+                formats = TikaImpl.FORMATS.keySet().toArray(new String[0]);
+            }
+            List<String> enabledFormats = Arrays.asList(formats);
+
+            if (parallelEmbedded == null && context.indexSettings() != null) {
+                parallelEmbedded = context.indexSettings().getAsBoolean("index.mapping.attachment.parallel_embedded", Boolean.FALSE);
+            }
+            if (parallelEmbedded == null) {
+                parallelEmbedded = Boolean.FALSE;
+            }
+
             MappedFieldType defaultFieldType = Defaults.FIELD_TYPE.clone();
             if(this.fieldType.indexOptions() != IndexOptions.NONE && !this.fieldType.tokenized()) {
                 defaultFieldType.setOmitNorms(true);
@@ -259,7 +427,11 @@ public class AttachmentMapper extends FieldMapper {
             this.setupFieldType(context);
             return new AttachmentMapper(name, fieldType, defaultFieldType, pathType, defaultIndexedChars, ignoreErrors, langDetect, contentMapper,
                     dateMapper, titleMapper, nameMapper, authorMapper, keywordsMapper, contentTypeMapper, contentLength,
-                    language, context.indexSettings(), multiFieldsBuilder.build(this, context), copyTo);
+                    language, digest, extractionService, timeout, trustContentType, TikaImpl.parser(enabledFormats, false, parallelPdf),
+                    TikaImpl.parser(enabledFormats, true, parallelPdf), parallelEmbedded, parallelPdf, metadataOnly, contentUnused,
+                    langDetectChars, slowLog != null ? slowLog : ExtractionSlowLog.build(context.indexSettings()),
+                    reuseExtraction, streamContent, context.indexSettings(),
+                    multiFieldsBuilder.build(this, context), copyTo);
         }
     }
 
@@ -286,6 +458,36 @@ public class AttachmentMapper extends FieldMapper {
      */
     public static class TypeParser implements Mapper.TypeParser {
 
+        private final ExtractionService extractionService;
+
+        private final ExtractionSlowLog slowLog;
+
+        /**
+         * a parser for mappers used outside of a node, like by tools and tests. They all share one extraction service,
+         * which lives as long as the JVM: its threads are daemons and only started when needed.
+         */
+        public TypeParser() {
+            this(StandaloneService.INSTANCE);
+        }
+
+        /** created on first use only, so that nodes never create it */
+        private static final class StandaloneService {
+            static final ExtractionService INSTANCE = new ExtractionService(Settings.EMPTY);
+        }
+
+        TypeParser(ExtractionService extractionService) {
+            this(extractionService, null);
+        }
+
+        /**
+         * a parser for the mappers of an index on a node, which all log to {@code slowLog}, or to a slow log built from
+         * the index settings if it is {@code null}
+         */
+        TypeParser(ExtractionService extractionService, ExtractionSlowLog slowLog) {
+            this.extractionService = extractionService;
+            this.slowLog = slowLog;
+        }
+
         private Mapper.Builder<?, ?> findMapperBuilder(Map<String, Object> propNode, String propName, ParserContext parserContext) {
             String type;
             Object typeNode = propNode.get("type");
@@ -304,6 +506,8 @@ public class AttachmentMapper extends FieldMapper {
         @Override
         public Mapper.Builder parse(String name, Map<String, Object> node, ParserContext parserContext) throws MapperParsingException {
             AttachmentMapper.Builder builder = new AttachmentMapper.Builder(name);
+            builder.extractionService(extractionService);
+            builder.slowLog(slowLog);
 
             for (Iterator<Map.Entry<String, Object>> iterator = node.entrySet().iterator(); iterator.hasNext();) {
                 Map.Entry<String, Object> entry = iterator.next();
@@ -312,6 +516,25 @@ public class AttachmentMapper extends FieldMapper {
                 if (fieldName.equals("path") && parserContext.indexVersionCreated().before(Version.V_2_0_0_beta1)) {
                     builder.pathType(parsePathType(name, fieldNode.toString()));
                     iterator.remove();
+                } else if (fieldName.equals("pdf_extraction")) {
+                    switch (fieldNode.toString()) {
+                        case "sequential":
+                            builder.parallelPdf(false);
+                            break;
+                        case "parallel":
+                            builder.parallelPdf(true);
+                            break;
+                        default:
+                            throw new MapperParsingException("Unknown [pdf_extraction] [" + fieldNode + "] for field [" + name
+                                    + "], expected [sequential] or [parallel]");
+                    }
+                    iterator.remove();
+                } else if (fieldName.equals("metadata_only")) {
+                    builder.metadataOnly(nodeBooleanValue(fieldNode));
+                    iterator.remove();
+                } else if (fieldName.equals("stream_content")) {
+                    builder.streamContent(nodeBooleanValue(fieldNode));
+                    iterator.remove();
                 } else if (fieldName.equals("fields")) {
                     Map<String, Object> fieldsNode = (Map<String, Object>) fieldNode;
                     for (Iterator<Map.Entry<String, Object>> fieldsIterator = fieldsNode.entrySet().iterator(); fieldsIterator.hasNext();) {
@@ -363,6 +586,10 @@ public class AttachmentMapper extends FieldMapper {
                                     builder.name(mapperBuilder);
                                 fieldsIterator.remove();
                                     break;
+                                case FieldNames.DIGEST:
+                                    builder.digest(mapperBuilder);
+                                    fieldsIterator.remove();
+                                    break;
                             }
                         }
                     }
@@ -401,11 +628,44 @@ public class AttachmentMapper extends FieldMapper {
 
     private final FieldMapper languageMapper;
 
+    /** null unless extractions are reused, see {@link Builder#build} */
+    private final FieldMapper digestMapper;
+
+    private final ExtractionService extractionService;
+
+    private final TimeValue defaultTimeout;
+
+    private final boolean defaultTrustContentType;
+
+    private final Parser detectingParser;
+
+    private final Parser trustingParser;
+
+    private final boolean parallelEmbedded;
+
+    private final boolean parallelPdf;
+
+    private final Boolean metadataOnly;
+
+    private final boolean contentUnused;
+
+    private final int langDetectChars;
+
+    private final ExtractionSlowLog slowLog;
+
+    private final boolean reuseExtraction;
+
+    private final boolean streamContent;
+
     public AttachmentMapper(String simpleName, MappedFieldType type, MappedFieldType defaultFieldType, ContentPath.Type pathType, int defaultIndexedChars, Boolean ignoreErrors,
                             Boolean defaultLangDetect, FieldMapper contentMapper,
                             FieldMapper dateMapper, FieldMapper titleMapper, FieldMapper nameMapper, FieldMapper authorMapper,
                             FieldMapper keywordsMapper, FieldMapper contentTypeMapper, FieldMapper contentLengthMapper,
-                            FieldMapper languageMapper, Settings indexSettings, MultiFields multiFields, CopyTo copyTo) {
+                            FieldMapper languageMapper, FieldMapper digestMapper, ExtractionService extractionService, TimeValue defaultTimeout,
+                            boolean defaultTrustContentType, Parser detectingParser, Parser trustingParser, boolean parallelEmbedded, boolean parallelPdf,
+                            Boolean metadataOnly, boolean contentUnused, int langDetectChars, ExtractionSlowLog slowLog,
+                            boolean reuseExtraction, boolean streamContent, Settings indexSettings, MultiFields multiFields,
+                            CopyTo copyTo) {
         super(simpleName, type, defaultFieldType, indexSettings, multiFields, copyTo);
         this.pathType = pathType;
         this.defaultIndexedChars = defaultIndexedChars;
@@ -420,21 +680,58 @@ public class AttachmentMapper extends FieldMapper {
         this.contentTypeMapper = contentTypeMapper;
         this.contentLengthMapper = contentLengthMapper;
         this.languageMapper = languageMapper;
+        this.digestMapper = digestMapper;
+        this.extractionService = extractionService;
+        this.defaultTimeout = defaultTimeout;
+        this.defaultTrustContentType = defaultTrustContentType;
+        this.detectingParser = detectingParser;
+        this.trustingParser = trustingParser;
+        this.parallelEmbedded = parallelEmbedded;
+        this.parallelPdf = parallelPdf;
+        this.metadataOnly = metadataOnly;
+        this.contentUnused = contentUnused;
+        this.langDetectChars = langDetectChars;
+        this.slowLog = slowLog;
+        this.reuseExtraction = reuseExtraction;
+        this.streamContent = streamContent;
     }
 
-    @Override
-    public Mapper parse(ParseContext context) throws IOException {
-        byte[] content = null;
-        String contentType = null;
-        int indexedChars = defaultIndexedChars;
-        boolean langDetect = defaultLangDetect;
-        String name = null;
-        String language = null;
+    /**
+     * Starts extracting the attachment {@code parser} is on, ahead of {@link #parse} and on another thread, see
+     * {@link BulkExtractionFilter}. Returns the key {@link #parse} will pick the extraction up with, or {@code null}
+     * if the attachment has no content or its text is streamed.
+     */
+    ExtractionCache.Key preExtract(XContentParser parser) throws IOException {
+        if (streamContent) {
+            // the extraction would end up in a string
+            parser.skipChildren();
+            return null;
+        }
+        Attachment attachment = readAttachment(parser, true);
+        if (attachment.content == null) {
+            return null;
+        }
+        return extractionService.preExtract(attachment.content, attachment.metadata(), attachment.limit(), attachment.parser(),
+                parallelEmbedded);
+    }
 
-        XContentParser parser = context.parser();
+    /**
+     * Reads the attachment {@code parser} is on, either its base64 or binary content or an object with the content and
+     * the per document options. With {@code decode}, the content is decoded right away, otherwise it may be decoded while it
+     * is read, from the buffer of the parser.
+     */
+    private Attachment readAttachment(XContentParser parser, boolean decode) throws IOException {
+        Attachment attachment = new Attachment();
         XContentParser.Token token = parser.currentToken();
         if (token == XContentParser.Token.VALUE_STRING) {
-            content = parser.binaryValue();
+            if (decode) {
+                attachment.content = AttachmentContent.decodeBase64(parser.textCharacters(), parser.textOffset(), parser.textLength());
+            } else {
+                // the parser stays on this token until we are done, so tika can read the base64 text as it gets decoded
+                attachment.content = AttachmentContent.base64(parser.textCharacters(), parser.textOffset(), parser.textLength());
+            }
+        } else if (token == XContentParser.Token.VALUE_EMBEDDED_OBJECT) {
+            attachment.content = binaryContent(parser);
         } else {
             String currentFieldName = null;
             while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
@@ -442,43 +739,172 @@ public class AttachmentMapper extends FieldMapper {
                     currentFieldName = parser.currentName();
                 } else if (token == XContentParser.Token.VALUE_STRING) {
                     if ("_content".equals(currentFieldName)) {
-                        content = parser.binaryValue();
+                        // the parser moves on to the other fields, so decode now, straight into an array of the right size
+                        attachment.content = AttachmentContent.decodeBase64(parser.textCharacters(), parser.textOffset(), parser.textLength());
+                    } else if ("_content_path".equals(currentFieldName)) {
+                        attachment.path = parser.text();
+                        try {
+                            attachment.content = extractionService.contentPaths().open(attachment.path);
+                        } catch (IllegalArgumentException | IOException | SecurityException e) {
+                            throw new MapperParsingException("Failed to read [_content_path] [" + attachment.path + "] of field ["
+                                    + fieldType().names().fullName() + "]: " + e.getMessage(), e);
+                        }
                     } else if ("_content_type".equals(currentFieldName)) {
-                        contentType = parser.text();
+                        attachment.contentType = parser.text();
                     } else if ("_name".equals(currentFieldName)) {
-                        name = parser.text();
+                        attachment.name = parser.text();
                     } else if ("_language".equals(currentFieldName)) {
-                        language = parser.text();
+                        attachment.language = parser.text();
+                    } else if ("_timeout".equals(currentFieldName)) {
+                        attachment.timeout = TimeValue.parseTimeValue(parser.text(), null, "_timeout");
+                    }
+                } else if (token == XContentParser.Token.VALUE_EMBEDDED_OBJECT) {
+                    if ("_content".equals(currentFieldName)) {
+                        attachment.content = binaryContent(parser);
                     }
                 } else if (token == XContentParser.Token.VALUE_NUMBER) {
                     if ("_indexed_chars".equals(currentFieldName) || "_indexedChars".equals(currentFieldName)) {
-                        indexedChars = parser.intValue();
+                        attachment.indexedChars = parser.intValue();
+                    } else if ("_timeout".equals(currentFieldName)) {
+                        attachment.timeout = TimeValue.timeValueMillis(parser.longValue());
                     }
                 } else if (token == XContentParser.Token.VALUE_BOOLEAN) {
                     if ("_detect_language".equals(currentFieldName) || "_detectLanguage".equals(currentFieldName)) {
-                        langDetect = parser.booleanValue();
+                        attachment.langDetect = parser.booleanValue();
+                    } else if ("_trust_content_type".equals(currentFieldName) || "_trustContentType".equals(currentFieldName)) {
+                        attachment.trustContentType = parser.booleanValue();
                     }
                 }
             }
         }
+        return attachment;
+    }
+
+    /**
+     * The raw bytes of a binary value, as SMILE and CBOR documents can carry them instead of base64 text. Jackson reads
+     * them into an array of their exact size and hands that array over as is, so it is the only copy that is made.
+     */
+    private static AttachmentContent binaryContent(XContentParser parser) throws IOException {
+        return AttachmentContent.of(parser.binaryValue());
+    }
+
+    /**
+     * The attachment of one document: its content and the options it comes with, defaulting to those of the mapper.
+     */
+    private final class Attachment {
+        AttachmentContent content = null;
+        String contentType = null;
+        int indexedChars = defaultIndexedChars;
+        boolean langDetect = defaultLangDetect;
+        TimeValue timeout = defaultTimeout;
+        boolean trustContentType = defaultTrustContentType;
+        String name = null;
+        String language = null;
+        String path = null;
+
+        /** the hints tika gets about the attachment */
+        Metadata metadata() {
+            Metadata metadata = new Metadata();
+            if (contentType != null) {
+                metadata.add(Metadata.CONTENT_TYPE, contentType);
+            }
+            if (name != null) {
+                metadata.add(Metadata.RESOURCE_NAME_KEY, name);
+            } else if (path != null) {
+                // the file name helps detecting the type just as well
+                metadata.add(Metadata.RESOURCE_NAME_KEY, PathUtils.get(path).getFileName().toString());
+            }
+            return metadata;
+        }
+
+        /** the number of characters to extract */
+        int limit() {
+            if (metadataOnly == null ? contentUnused && (langDetect == false || language != null) : metadataOnly) {
+                // only the document properties are needed, the body does not even get parsed
+                return 0;
+            }
+            return indexedChars;
+        }
+
+        Parser parser() {
+            return trustContentType ? trustingParser : detectingParser;
+        }
+    }
+
+    @Override
+    public Mapper parse(ParseContext context) throws IOException {
+        ExtractionStats.Extraction extraction = new ExtractionStats.Extraction();
+        long start = System.nanoTime();
+        Attachment attachment = readAttachment(context.parser(), false);
+        extraction.decodeNanos = System.nanoTime() - start;
 
         // Throw clean exception when no content is provided Fix #23
-        if (content == null) {
+        if (attachment.content == null) {
             throw new MapperParsingException("No content is provided.");
         }
+        extraction.inputBytes = attachment.content.length();
 
-        Metadata metadata = new Metadata();
-        if (contentType != null) {
-            metadata.add(Metadata.CONTENT_TYPE, contentType);
+        Metadata metadata = attachment.metadata();
+        int indexedChars = attachment.limit();
+
+        ExtractionCache.Key key = null;
+        if (streamContent == false && (reuseExtraction || extractionService.preExtracting())) {
+            try {
+                // computed before tika fills the metadata, the hints are part of the key
+                key = ExtractionCache.newKey(attachment.content, metadata, indexedChars, attachment.parser());
+            } catch (IOException e) {
+                // the extraction fails on the same content below, where ignore_errors applies
+            }
         }
-        if (name != null) {
-            metadata.add(Metadata.RESOURCE_NAME_KEY, name);
+
+        // not subject to ignore_errors: a node running out of memory must reject the document. If the attachment is
+        // being extracted ahead already, that extraction reserved the memory for us
+        ExtractionService.Reservation reservation = extractionService.reserve(attachment.content, key,
+                streamContent ? 0 : indexedChars, "attachment [" + fieldType().names().fullName() + "]");
+        try {
+            return parse(context, attachment, metadata, indexedChars, key, reservation, extraction);
+        } finally {
+            reservation.release();
         }
+    }
 
-        String parsedContent;
+    private Mapper parse(ParseContext context, Attachment attachment, Metadata metadata, int indexedChars,
+                         ExtractionCache.Key key, ExtractionService.Reservation reservation,
+                         ExtractionStats.Extraction extraction) throws IOException {
+        AttachmentContent content = attachment.content;
+        String contentType = attachment.contentType;
+        boolean langDetect = attachment.langDetect;
+        String name = attachment.name;
+        String language = attachment.language;
+
+        String parsedContent = null;
+        SpilledText spilled = null;
+        long start = System.nanoTime();
         try {
-            parsedContent = TikaImpl.parse(content, metadata, indexedChars);
+            if (streamContent) {
+                // the language is detected on a prefix of the text, the only part of it kept in memory
+                spilled = extractionService.spill(langDetectChars < 0 ? LanguageDetector.DEFAULT_SAMPLE_CHARS : langDetectChars);
+                extractionService.extract(content, metadata, indexedChars, attachment.parser(), attachment.timeout, spilled.writer(),
+                        reservation);
+            } else {
+                parsedContent = extractionService.parse(content, metadata, indexedChars, attachment.parser(), parallelEmbedded,
+                        attachment.timeout, key, reservation);
+            }
+        } catch (EsRejectedExecutionException e) {
+            // the node is too busy to extract, this is no error of the document
+            if (spilled != null) {
+                spilled.discard();
+            }
+            throw e;
         } catch (Throwable e) {
+            if (spilled != null) {
+                spilled.discard();
+            }
+            extraction.extractionNanos = System.nanoTime() - start;
+            extraction.contentType = metadata.get(Metadata.CONTENT_TYPE);
+            extraction.ignoredError = ignoreErrors;
+            extraction.failed = ignoreErrors == false;
+            record(context, attachment, extraction);
             // #18: we could ignore errors when Tika does not parse data
             if (!ignoreErrors) {
                 logger.trace("exception caught", e);
@@ -491,104 +917,143 @@ public class AttachmentMapper extends FieldMapper {
             return null;
         }
 
-        context = context.createExternalValueContext(parsedContent);
-        contentMapper.parse(context);
+        extraction.extractionNanos = System.nanoTime() - start;
+        extraction.contentType = metadata.get(Metadata.CONTENT_TYPE);
+        long extractedChars = spilled == null ? parsedContent.length() : spilled.length();
+        extraction.extractedChars = (int) Math.min(Integer.MAX_VALUE, extractedChars);
+        extraction.truncated = indexedChars > 0 && extractedChars >= indexedChars;
 
-        if (langDetect) {
-            try {
-                if (language != null) {
-                    metadata.add(Metadata.CONTENT_LANGUAGE, language);
-                } else {
-                    LanguageIdentifier identifier = new LanguageIdentifier(parsedContent);
-                    language = identifier.getLanguage();
+        if (spilled == null) {
+            context = context.createExternalValueContext(parsedContent);
+            contentMapper.parse(context);
+        }
+
+        boolean parsed = false;
+        try {
+            if (langDetect) {
+                try {
+                    if (language != null) {
+                        metadata.add(Metadata.CONTENT_LANGUAGE, language);
+                    } else {
+                        start = System.nanoTime();
+                        language = spilled == null ? LanguageDetector.detect(parsedContent, langDetectChars)
+                                : LanguageDetector.detect(spilled.prefix(), -1);
+                        extraction.languageNanos = System.nanoTime() - start;
+                    }
+                    context = context.createExternalValueContext(language);
+                    languageMapper.parse(context);
+                } catch(Throwable t) {
+                    logger.debug("Cannot detect language: [{}]", t.getMessage());
+                }
+            }
+            record(context, attachment, extraction);
+
+            if (name != null) {
+                try {
+                    context = context.createExternalValueContext(name);
+                    nameMapper.parse(context);
+                } catch(MapperParsingException e){
+                    if (!ignoreErrors) throw e;
+                    if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing name: [{}]",
+                            e.getMessage());
                 }
-                context = context.createExternalValueContext(language);
-                languageMapper.parse(context);
-            } catch(Throwable t) {
-                logger.debug("Cannot detect language: [{}]", t.getMessage());
             }
-        }
 
-        if (name != null) {
-            try {
-                context = context.createExternalValueContext(name);
-                nameMapper.parse(context);
-            } catch(MapperParsingException e){
-                if (!ignoreErrors) throw e;
-                if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing name: [{}]",
-                        e.getMessage());
+            if (metadata.get(Metadata.DATE) != null) {
+                try {
+                    context = context.createExternalValueContext(metadata.get(Metadata.DATE));
+                    dateMapper.parse(context);
+                } catch(MapperParsingException e){
+                    if (!ignoreErrors) throw e;
+                    if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing date: [{}]: [{}]",
+                            e.getMessage(), context.externalValue());
+                }
             }
-        }
 
-        if (metadata.get(Metadata.DATE) != null) {
-            try {
-                context = context.createExternalValueContext(metadata.get(Metadata.DATE));
-                dateMapper.parse(context);
-            } catch(MapperParsingException e){
-                if (!ignoreErrors) throw e;
-                if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing date: [{}]: [{}]",
-                        e.getMessage(), context.externalValue());
+            if (metadata.get(Metadata.TITLE) != null) {
+                try {
+                    context = context.createExternalValueContext(metadata.get(Metadata.TITLE));
+                    titleMapper.parse(context);
+                } catch(MapperParsingException e){
+                    if (!ignoreErrors) throw e;
+                    if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing title: [{}]: [{}]",
+                            e.getMessage(), context.externalValue());
+                }
             }
-        }
 
-        if (metadata.get(Metadata.TITLE) != null) {
-            try {
-                context = context.createExternalValueContext(metadata.get(Metadata.TITLE));
-                titleMapper.parse(context);
-            } catch(MapperParsingException e){
-                if (!ignoreErrors) throw e;
-                if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing title: [{}]: [{}]",
-                        e.getMessage(), context.externalValue());
+            if (metadata.get(Metadata.AUTHOR) != null) {
+                try {
+                    context = context.createExternalValueContext(metadata.get(Metadata.AUTHOR));
+                    authorMapper.parse(context);
+                } catch(MapperParsingException e){
+                    if (!ignoreErrors) throw e;
+                    if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing author: [{}]: [{}]",
+                            e.getMessage(), context.externalValue());
+                }
             }
-        }
 
-        if (metadata.get(Metadata.AUTHOR) != null) {
-            try {
-                context = context.createExternalValueContext(metadata.get(Metadata.AUTHOR));
-                authorMapper.parse(context);
-            } catch(MapperParsingException e){
-                if (!ignoreErrors) throw e;
-                if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing author: [{}]: [{}]",
-                        e.getMessage(), context.externalValue());
+            if (metadata.get(Metadata.KEYWORDS) != null) {
+                try {
+                    context = context.createExternalValueContext(metadata.get(Metadata.KEYWORDS));
+                    keywordsMapper.parse(context);
+                } catch(MapperParsingException e){
+                    if (!ignoreErrors) throw e;
+                    if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing keywords: [{}]: [{}]",
+                            e.getMessage(), context.externalValue());
+                }
             }
-        }
 
-        if (metadata.get(Metadata.KEYWORDS) != null) {
-            try {
-                context = context.createExternalValueContext(metadata.get(Metadata.KEYWORDS));
-                keywordsMapper.parse(context);
-            } catch(MapperParsingException e){
-                if (!ignoreErrors) throw e;
-                if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing keywords: [{}]: [{}]",
-                        e.getMessage(), context.externalValue());
+            if (contentType == null) {
+                contentType = metadata.get(Metadata.CONTENT_TYPE);
+            }
+            if (contentType != null) {
+                try {
+                    context = context.createExternalValueContext(contentType);
+                    contentTypeMapper.parse(context);
+                } catch(MapperParsingException e){
+                    if (!ignoreErrors) throw e;
+                    if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing content_type: [{}]: [{}]", e.getMessage(), context.externalValue());
+                }
+            }
+
+            int length = content.length();
+            // If we have CONTENT_LENGTH from Tika we use it
+            if (metadata.get(Metadata.CONTENT_LENGTH) != null) {
+                length = Integer.parseInt(metadata.get(Metadata.CONTENT_LENGTH));
             }
-        }
 
-        if (contentType == null) {
-            contentType = metadata.get(Metadata.CONTENT_TYPE);
-        }
-        if (contentType != null) {
             try {
-                context = context.createExternalValueContext(contentType);
-                contentTypeMapper.parse(context);
+                context = context.createExternalValueContext(length);
+                contentLengthMapper.parse(context);
             } catch(MapperParsingException e){
                 if (!ignoreErrors) throw e;
-                if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing content_type: [{}]: [{}]", e.getMessage(), context.externalValue());
+                if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing content_length: [{}]: [{}]", e.getMessage(), context.externalValue());
             }
-        }
 
-        int length = content.length;
-        // If we have CONTENT_LENGTH from Tika we use it
-        if (metadata.get(Metadata.CONTENT_LENGTH) != null) {
-            length = Integer.parseInt(metadata.get(Metadata.CONTENT_LENGTH));
+            if (digestMapper != null && key != null) {
+                try {
+                    context = context.createExternalValueContext(key.digest());
+                    digestMapper.parse(context);
+                } catch(MapperParsingException e){
+                    if (!ignoreErrors) throw e;
+                    if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing digest: [{}]: [{}]", e.getMessage(), context.externalValue());
+                }
+            }
+            parsed = true;
+        } finally {
+            if (parsed == false && spilled != null) {
+                spilled.discard();
+            }
         }
 
-        try {
-            context = context.createExternalValueContext(length);
-            contentLengthMapper.parse(context);
-        } catch(MapperParsingException e){
-            if (!ignoreErrors) throw e;
-            if (logger.isDebugEnabled()) logger.debug("Ignoring MapperParsingException catch while parsing content_length: [{}]: [{}]", e.getMessage(), context.externalValue());
+        if (spilled != null) {
+            // analyzed from the file when the document is indexed. Opened last, so that no other field can fail the
+            // document with the file open
+            Field field = new Field(contentMapper.fieldType().names().indexName(), spilled.reader(), contentMapper.fieldType());
+            if (contentMapper.fieldType().boost() != 1f) {
+                field.setBoost(contentMapper.fieldType().boost());
+            }
+            context.doc().add(field);
         }
 
 //        multiFields.parse(this, context);
@@ -596,6 +1061,17 @@ public class AttachmentMapper extends FieldMapper {
         return null;
     }
 
+    /**
+     * Records the extraction of the attachment in the statistics of the node, and in the slow log if it took long enough.
+     */
+    private void record(ParseContext context, Attachment attachment, ExtractionStats.Extraction extraction) {
+        extractionService.stats().record(extraction);
+        if (slowLog.enabled()) {
+            slowLog.maybeLog(context.index(), context.sourceToParse().type(), context.sourceToParse().id(),
+                    fieldType().names().fullName(), attachment.name, extraction);
+        }
+    }
+
     @Override
     protected void parseCreateField(ParseContext parseContext, List<Field> fields) throws IOException {
 
@@ -609,7 +1085,7 @@ public class AttachmentMapper extends FieldMapper {
     @Override
     @SuppressWarnings("unchecked")
     public Iterator<Mapper> iterator() {
-        List<Mapper> extras = Arrays.asList(
+        List<Mapper> extras = new ArrayList<>(Arrays.asList(
                 contentMapper,
                 dateMapper,
                 titleMapper,
@@ -618,7 +1094,10 @@ public class AttachmentMapper extends FieldMapper {
                 keywordsMapper,
                 contentTypeMapper,
                 contentLengthMapper,
-                languageMapper);
+                languageMapper));
+        if (digestMapper != null) {
+            extras.add(digestMapper);
+        }
         return Iterators.concat(super.iterator(), extras.iterator());
     }
 
@@ -629,6 +1108,15 @@ public class AttachmentMapper extends FieldMapper {
         if (indexCreatedBefore2x) {
             builder.field("path", pathType.name().toLowerCase(Locale.ROOT));
         }
+        if (parallelPdf) {
+            builder.field("pdf_extraction", "parallel");
+        }
+        if (metadataOnly != null) {
+            builder.field("metadata_only", metadataOnly);
+        }
+        if (streamContent) {
+            builder.field("stream_content", true);
+        }
 
         builder.startObject("fields");
         contentMapper.toXContent(builder, params);
@@ -640,6 +1128,9 @@ public class AttachmentMapper extends FieldMapper {
         contentTypeMapper.toXContent(builder, params);
         contentLengthMapper.toXContent(builder, params);
         languageMapper.toXContent(builder, params);
+        if (digestMapper != null) {
+            digestMapper.toXContent(builder, params);
+        }
         multiFields.toXContent(builder, params);
         builder.endObject();
 
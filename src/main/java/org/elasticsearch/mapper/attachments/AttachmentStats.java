@@ -0,0 +1,509 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extraction statistics of one node: how busy extraction is, and what was extracted by content type.
+ */
+public class AttachmentStats implements Streamable, ToXContent {
+
+    private int active;
+    private int queued;
+    private long waited;
+    private long waitTimeNanos;
+    private long rejected;
+    private long timeouts;
+    private long preExtracted;
+    private long preExtractionsRejected;
+    private long preExtractionsDiscarded;
+    private long cacheHits;
+    private long cacheMisses;
+    private long cacheEvictions;
+    private long cacheSizeInBytes;
+    private long storeHits;
+    private long storeMisses;
+    private long storeEvictions;
+    private long storeCount;
+    private long storeSizeInBytes;
+    private List<ContentTypeStats> contentTypes;
+
+    AttachmentStats() {
+    }
+
+    AttachmentStats(ExtractionService service) {
+        ExtractionLimiter limiter = service.limiter();
+        this.active = limiter.active();
+        this.queued = limiter.queued();
+        this.waited = limiter.waited();
+        this.waitTimeNanos = limiter.waitTimeNanos();
+        this.rejected = limiter.rejected();
+        this.timeouts = service.timeouts();
+        this.preExtracted = service.preExtracted();
+        this.preExtractionsRejected = service.preExtractionsRejected();
+        this.preExtractionsDiscarded = service.preExtractionsDiscarded();
+        ExtractionCache cache = service.cache();
+        this.cacheHits = cache.hits();
+        this.cacheMisses = cache.misses();
+        this.cacheEvictions = cache.evictions();
+        this.cacheSizeInBytes = cache.sizeInBytes();
+        ExtractionStore store = service.store();
+        this.storeHits = store.hits();
+        this.storeMisses = store.misses();
+        this.storeEvictions = store.evictions();
+        this.storeCount = store.count();
+        this.storeSizeInBytes = store.sizeInBytes();
+        this.contentTypes = service.stats().stats();
+    }
+
+    /** number of extractions running */
+    public int getActive() {
+        return active;
+    }
+
+    /** number of extractions waiting to start */
+    public int getQueued() {
+        return queued;
+    }
+
+    /** number of extractions rejected because too many were waiting already */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /** number of extractions that ran out of time */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    /** statistics by content type, sorted by content type */
+    public List<ContentTypeStats> getContentTypes() {
+        return contentTypes;
+    }
+
+    /** the statistics of all content types summed up */
+    public ContentTypeStats getTotal() {
+        ContentTypeStats total = new ContentTypeStats("total", 0, 0, 0, 0, 0, 0, new Timing(), new Timing(), new Timing());
+        for (ContentTypeStats stats : contentTypes) {
+            total.add(stats);
+        }
+        return total;
+    }
+
+    public static AttachmentStats readAttachmentStats(StreamInput in) throws IOException {
+        AttachmentStats stats = new AttachmentStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        active = in.readVInt();
+        queued = in.readVInt();
+        waited = in.readVLong();
+        waitTimeNanos = in.readVLong();
+        rejected = in.readVLong();
+        timeouts = in.readVLong();
+        preExtracted = in.readVLong();
+        preExtractionsRejected = in.readVLong();
+        preExtractionsDiscarded = in.readVLong();
+        cacheHits = in.readVLong();
+        cacheMisses = in.readVLong();
+        cacheEvictions = in.readVLong();
+        cacheSizeInBytes = in.readVLong();
+        storeHits = in.readVLong();
+        storeMisses = in.readVLong();
+        storeEvictions = in.readVLong();
+        storeCount = in.readVLong();
+        storeSizeInBytes = in.readVLong();
+        int size = in.readVInt();
+        contentTypes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ContentTypeStats stats = new ContentTypeStats();
+            stats.readFrom(in);
+            contentTypes.add(stats);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(active);
+        out.writeVInt(queued);
+        out.writeVLong(waited);
+        out.writeVLong(waitTimeNanos);
+        out.writeVLong(rejected);
+        out.writeVLong(timeouts);
+        out.writeVLong(preExtracted);
+        out.writeVLong(preExtractionsRejected);
+        out.writeVLong(preExtractionsDiscarded);
+        out.writeVLong(cacheHits);
+        out.writeVLong(cacheMisses);
+        out.writeVLong(cacheEvictions);
+        out.writeVLong(cacheSizeInBytes);
+        out.writeVLong(storeHits);
+        out.writeVLong(storeMisses);
+        out.writeVLong(storeEvictions);
+        out.writeVLong(storeCount);
+        out.writeVLong(storeSizeInBytes);
+        out.writeVInt(contentTypes.size());
+        for (ContentTypeStats stats : contentTypes) {
+            stats.writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(Fields.ATTACHMENTS);
+        builder.startObject(Fields.EXTRACTIONS);
+        builder.field(Fields.ACTIVE, active);
+        builder.field(Fields.QUEUED, queued);
+        builder.field(Fields.WAITED, waited);
+        builder.timeValueField(Fields.WAIT_TIME_IN_MILLIS, Fields.WAIT_TIME, TimeValue.timeValueNanos(waitTimeNanos));
+        builder.field(Fields.REJECTED, rejected);
+        builder.field(Fields.TIMEOUTS, timeouts);
+        builder.endObject();
+        builder.startObject(Fields.PRE_EXTRACTIONS);
+        builder.field(Fields.TAKEN_OVER, preExtracted);
+        builder.field(Fields.REJECTED, preExtractionsRejected);
+        builder.field(Fields.DISCARDED, preExtractionsDiscarded);
+        builder.endObject();
+        builder.startObject(Fields.CACHE);
+        builder.field(Fields.HITS, cacheHits);
+        builder.field(Fields.MISSES, cacheMisses);
+        builder.field(Fields.EVICTIONS, cacheEvictions);
+        builder.byteSizeField(Fields.SIZE_IN_BYTES, Fields.SIZE, cacheSizeInBytes);
+        builder.endObject();
+        builder.startObject(Fields.STORE);
+        builder.field(Fields.HITS, storeHits);
+        builder.field(Fields.MISSES, storeMisses);
+        builder.field(Fields.EVICTIONS, storeEvictions);
+        builder.field(Fields.COUNT, storeCount);
+        builder.byteSizeField(Fields.SIZE_IN_BYTES, Fields.SIZE, storeSizeInBytes);
+        builder.endObject();
+        getTotal().toXContent(builder, params);
+        builder.startObject(Fields.CONTENT_TYPES);
+        for (ContentTypeStats stats : contentTypes) {
+            stats.toXContent(builder, params);
+        }
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * What was extracted from the attachments of one content type.
+     */
+    public static class ContentTypeStats implements Streamable, ToXContent {
+        private String contentType;
+        private long count;
+        private long inputBytes;
+        private long extractedChars;
+        private long truncated;
+        private long ignoredErrors;
+        private long failures;
+        private Timing decode;
+        private Timing extraction;
+        private Timing languageDetection;
+
+        ContentTypeStats() {
+        }
+
+        ContentTypeStats(String contentType, long count, long inputBytes, long extractedChars, long truncated, long ignoredErrors,
+                         long failures, Timing decode, Timing extraction, Timing languageDetection) {
+            this.contentType = contentType;
+            this.count = count;
+            this.inputBytes = inputBytes;
+            this.extractedChars = extractedChars;
+            this.truncated = truncated;
+            this.ignoredErrors = ignoredErrors;
+            this.failures = failures;
+            this.decode = decode;
+            this.extraction = extraction;
+            this.languageDetection = languageDetection;
+        }
+
+        void add(ContentTypeStats other) {
+            count += other.count;
+            inputBytes += other.inputBytes;
+            extractedChars += other.extractedChars;
+            truncated += other.truncated;
+            ignoredErrors += other.ignoredErrors;
+            failures += other.failures;
+            decode.add(other.decode);
+            extraction.add(other.extraction);
+            languageDetection.add(other.languageDetection);
+        }
+
+        public String contentType() {
+            return contentType;
+        }
+
+        /** number of attachments */
+        public long getCount() {
+            return count;
+        }
+
+        /** decoded size of the attachments */
+        public long getInputBytes() {
+            return inputBytes;
+        }
+
+        /** characters extracted from the attachments */
+        public long getExtractedChars() {
+            return extractedChars;
+        }
+
+        /** number of attachments with more text than {@code indexed_chars} */
+        public long getTruncated() {
+            return truncated;
+        }
+
+        /** number of attachments that failed to extract, indexed without text because of {@code ignore_errors} */
+        public long getIgnoredErrors() {
+            return ignoredErrors;
+        }
+
+        /** number of attachments that failed to extract, failing their document */
+        public long getFailures() {
+            return failures;
+        }
+
+        public Timing getDecode() {
+            return decode;
+        }
+
+        public Timing getExtraction() {
+            return extraction;
+        }
+
+        public Timing getLanguageDetection() {
+            return languageDetection;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            contentType = in.readString();
+            count = in.readVLong();
+            inputBytes = in.readVLong();
+            extractedChars = in.readVLong();
+            truncated = in.readVLong();
+            ignoredErrors = in.readVLong();
+            failures = in.readVLong();
+            decode = Timing.readTiming(in);
+            extraction = Timing.readTiming(in);
+            languageDetection = Timing.readTiming(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(contentType);
+            out.writeVLong(count);
+            out.writeVLong(inputBytes);
+            out.writeVLong(extractedChars);
+            out.writeVLong(truncated);
+            out.writeVLong(ignoredErrors);
+            out.writeVLong(failures);
+            decode.writeTo(out);
+            extraction.writeTo(out);
+            languageDetection.writeTo(out);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject(contentType);
+            builder.field(Fields.COUNT, count);
+            builder.byteSizeField(Fields.INPUT_IN_BYTES, Fields.INPUT, inputBytes);
+            builder.field(Fields.EXTRACTED_CHARS, extractedChars);
+            builder.field(Fields.TRUNCATED, truncated);
+            builder.field(Fields.IGNORED_ERRORS, ignoredErrors);
+            builder.field(Fields.FAILURES, failures);
+            builder.field(Fields.DECODE);
+            decode.toXContent(builder, params);
+            builder.field(Fields.EXTRACTION);
+            extraction.toXContent(builder, params);
+            builder.field(Fields.LANGUAGE_DETECTION);
+            languageDetection.toXContent(builder, params);
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    /**
+     * Number and total time of the runs of one step of extraction, and a histogram of their durations: bucket {@code 0}
+     * counts the runs below 1ms, bucket {@code i} the runs of at least {@code 2^(i - 1)}ms and below {@code 2^i}ms, and
+     * the last bucket all longer runs.
+     */
+    public static class Timing implements Streamable, ToXContent {
+
+        static final int BUCKETS = 18;
+
+        private long count;
+        private long totalNanos;
+        private long[] buckets;
+
+        Timing() {
+            this(0, 0, new long[BUCKETS]);
+        }
+
+        Timing(long count, long totalNanos, long[] buckets) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.buckets = buckets;
+        }
+
+        static Timing readTiming(StreamInput in) throws IOException {
+            Timing timing = new Timing();
+            timing.readFrom(in);
+            return timing;
+        }
+
+        void add(Timing other) {
+            count += other.count;
+            totalNanos += other.totalNanos;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] += other.buckets[i];
+            }
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public TimeValue getTotal() {
+            return TimeValue.timeValueNanos(totalNanos);
+        }
+
+        /** the upper bound of bucket {@code i} in milliseconds, {@link Long#MAX_VALUE} for the last one */
+        public static long upperBoundMillis(int bucket) {
+            return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+        }
+
+        public long[] getBuckets() {
+            return buckets;
+        }
+
+        /**
+         * Estimates the duration below which {@code percent} percent of the runs took, as the upper bound of the bucket
+         * that run falls in, or the lower bound of the last bucket. Returns {@code null} without runs.
+         */
+        public TimeValue percentile(double percent) {
+            if (count == 0) {
+                return null;
+            }
+            long rank = (long) Math.ceil(percent / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    return TimeValue.timeValueMillis(i == BUCKETS - 1 ? upperBoundMillis(i - 1) : upperBoundMillis(i));
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            count = in.readVLong();
+            totalNanos = in.readVLong();
+            buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = in.readVLong();
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(count);
+            out.writeVLong(totalNanos);
+            for (int i = 0; i < BUCKETS; i++) {
+                out.writeVLong(buckets[i]);
+            }
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field(Fields.COUNT, count);
+            builder.timeValueField(Fields.TIME_IN_MILLIS, Fields.TIME, getTotal());
+            builder.startArray(Fields.HISTOGRAM);
+            for (int i = 0; i < BUCKETS; i++) {
+                if (buckets[i] > 0) {
+                    builder.startObject();
+                    if (i < BUCKETS - 1) {
+                        builder.field(Fields.LT_IN_MILLIS, upperBoundMillis(i));
+                    }
+                    builder.field(Fields.COUNT, buckets[i]);
+                    builder.endObject();
+                }
+            }
+            builder.endArray();
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    static final class Fields {
+        static final XContentBuilderString ATTACHMENTS = new XContentBuilderString("attachments");
+        static final XContentBuilderString EXTRACTIONS = new XContentBuilderString("extractions");
+        static final XContentBuilderString ACTIVE = new XContentBuilderString("active");
+        static final XContentBuilderString QUEUED = new XContentBuilderString("queued");
+        static final XContentBuilderString WAITED = new XContentBuilderString("waited");
+        static final XContentBuilderString WAIT_TIME = new XContentBuilderString("wait_time");
+        static final XContentBuilderString WAIT_TIME_IN_MILLIS = new XContentBuilderString("wait_time_in_millis");
+        static final XContentBuilderString REJECTED = new XContentBuilderString("rejected");
+        static final XContentBuilderString TIMEOUTS = new XContentBuilderString("timeouts");
+        static final XContentBuilderString PRE_EXTRACTIONS = new XContentBuilderString("pre_extractions");
+        static final XContentBuilderString TAKEN_OVER = new XContentBuilderString("taken_over");
+        static final XContentBuilderString DISCARDED = new XContentBuilderString("discarded");
+        static final XContentBuilderString CACHE = new XContentBuilderString("cache");
+        static final XContentBuilderString STORE = new XContentBuilderString("store");
+        static final XContentBuilderString HITS = new XContentBuilderString("hits");
+        static final XContentBuilderString MISSES = new XContentBuilderString("misses");
+        static final XContentBuilderString EVICTIONS = new XContentBuilderString("evictions");
+        static final XContentBuilderString SIZE = new XContentBuilderString("size");
+        static final XContentBuilderString SIZE_IN_BYTES = new XContentBuilderString("size_in_bytes");
+        static final XContentBuilderString CONTENT_TYPES = new XContentBuilderString("content_types");
+        static final XContentBuilderString COUNT = new XContentBuilderString("count");
+        static final XContentBuilderString INPUT = new XContentBuilderString("input");
+        static final XContentBuilderString INPUT_IN_BYTES = new XContentBuilderString("input_in_bytes");
+        static final XContentBuilderString EXTRACTED_CHARS = new XContentBuilderString("extracted_chars");
+        static final XContentBuilderString TRUNCATED = new XContentBuilderString("truncated");
+        static final XContentBuilderString IGNORED_ERRORS = new XContentBuilderString("ignored_errors");
+        static final XContentBuilderString FAILURES = new XContentBuilderString("failures");
+        static final XContentBuilderString DECODE = new XContentBuilderString("decode");
+        static final XContentBuilderString EXTRACTION = new XContentBuilderString("extraction");
+        static final XContentBuilderString LANGUAGE_DETECTION = new XContentBuilderString("language_detection");
+        static final XContentBuilderString TIME = new XContentBuilderString("time");
+        static final XContentBuilderString TIME_IN_MILLIS = new XContentBuilderString("time_in_millis");
+        static final XContentBuilderString HISTOGRAM = new XContentBuilderString("histogram");
+        static final XContentBuilderString LT_IN_MILLIS = new XContentBuilderString("lt_in_millis");
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.indices.IndicesService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts extracting the attachments of bulk and index requests as soon as the requests come in, in parallel on the
+ * pre-extraction threads of the {@link ExtractionService}.
+ * <p>
+ * The items of a bulk request that go to the same shard are mapped one after the other, on one thread, and so were
+ * their attachments extracted. With this filter, {@link AttachmentMapper#parse} finds the extraction of its attachment
+ * already running or done, and only waits for it if needed. The filter itself only looks up the attachment fields of
+ * each document and where it goes, on the thread the request came in on. Reading the source, decoding the attachments
+ * and starting their extraction is done by a task per document on the pre-extraction threads, so that the request is
+ * not held up and the documents are read in parallel too. The results stay on this node, so only the documents
+ * whose primary shard is on this node are pre-extracted. Documents without an id are, if all primaries of their
+ * index are on this node. Neither aliases nor replicas benefit. Extractions no mapper took over are dropped once the
+ * request completes.
+ * <p>
+ * Enabled with the {@code mapper.attachment.pre_extraction.enabled} node setting, {@code false} by default.
+ */
+public class BulkExtractionFilter extends AbstractComponent implements ActionFilter {
+
+    static final String ENABLED_SETTING = "mapper.attachment.pre_extraction.enabled";
+
+    private final ClusterService clusterService;
+
+    private final IndicesService indicesService;
+
+    private final ExtractionService extractionService;
+
+    @Inject
+    public BulkExtractionFilter(Settings settings, ClusterService clusterService, IndicesService indicesService,
+                                ExtractionService extractionService) {
+        super(settings);
+        this.clusterService = clusterService;
+        this.indicesService = indicesService;
+        this.extractionService = extractionService;
+    }
+
+    @Override
+    public int order() {
+        // last, so the extractions only start once the other filters let the request through
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void apply(String action, ActionRequest request, ActionListener listener, ActionFilterChain chain) {
+        final Extractions extractions = new Extractions();
+        boolean scheduled = false;
+        if (request instanceof BulkRequest) {
+            ClusterState state = clusterService.state();
+            for (ActionRequest item : ((BulkRequest) request).requests()) {
+                if (item instanceof IndexRequest) {
+                    scheduled |= schedule(state, (IndexRequest) item, extractions);
+                }
+            }
+        } else if (request instanceof IndexRequest) {
+            scheduled = schedule(clusterService.state(), (IndexRequest) request, extractions);
+        }
+        if (scheduled == false) {
+            chain.proceed(action, request, listener);
+            return;
+        }
+        chain.proceed(action, request, new ActionListener<ActionResponse>() {
+            @Override
+            public void onResponse(ActionResponse response) {
+                extractions.complete();
+                listener.onResponse(response);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                extractions.complete();
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    @Override
+    public void apply(String action, ActionResponse response, ActionListener listener, ActionFilterChain chain) {
+        chain.proceed(action, response, listener);
+    }
+
+    /**
+     * Schedules the pre-extraction of the attachments of {@code request}, if it has any and its primary is on this
+     * node. Returns whether it was scheduled.
+     */
+    private boolean schedule(ClusterState state, IndexRequest request, Extractions extractions) {
+        final BytesReference source = request.source();
+        if (source == null) {
+            return false;
+        }
+        final Map<String, AttachmentMapper> mappers = new HashMap<>();
+        try {
+            IndexService indexService = indicesService.indexService(request.index());
+            if (indexService == null) {
+                return false;
+            }
+            DocumentMapper docMapper = indexService.mapperService().documentMapper(request.type());
+            if (docMapper == null) {
+                return false;
+            }
+            for (FieldMapper mapper : docMapper.mappers()) {
+                if (mapper instanceof AttachmentMapper) {
+                    mappers.put(mapper.fieldType().names().fullName(), (AttachmentMapper) mapper);
+                }
+            }
+            if (mappers.isEmpty() || isPrimaryLocal(state, request) == false) {
+                return false;
+            }
+        } catch (Exception e) {
+            logger.debug("failed to look up the attachments of [{}][{}][{}]", e, request.index(), request.type(), request.id());
+            return false;
+        }
+
+        final String index = request.index();
+        final String type = request.type();
+        final String id = request.id();
+        try {
+            extractionService.executePreExtraction(() -> {
+                if (extractions.completed()) {
+                    return;
+                }
+                try (XContentParser parser = XContentHelper.createParser(source)) {
+                    if (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+                        preExtract(parser, "", mappers, extractions);
+                    }
+                } catch (Exception e) {
+                    // the mapper will extract whatever was not started, and fail the document if it is broken
+                    logger.debug("failed to pre-extract the attachments of [{}][{}][{}]", e, index, type, id);
+                }
+            });
+        } catch (EsRejectedExecutionException e) {
+            // the pre-extraction threads are busy enough: the mappers extract these attachments themselves
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isPrimaryLocal(ClusterState state, IndexRequest request) {
+        IndexRoutingTable routingTable = state.routingTable().index(request.index());
+        if (routingTable == null) {
+            return false;
+        }
+        String localNodeId = state.nodes().localNodeId();
+        if (request.id() == null) {
+            for (IndexShardRoutingTable shard : routingTable) {
+                if (localNodeId.equals(shard.primaryShard().currentNodeId()) == false) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        int shardId = clusterService.operationRouting()
+                .indexShards(state, request.index(), request.type(), request.id(), request.routing()).shardId().id();
+        return localNodeId.equals(routingTable.shard(shardId).primaryShard().currentNodeId());
+    }
+
+    /**
+     * Walks the object {@code parser} is on and starts the extraction of the attachments it finds, by the full path
+     * of their field.
+     */
+    private void preExtract(XContentParser parser, String prefix, Map<String, AttachmentMapper> mappers,
+                            Extractions extractions) throws IOException {
+        String path = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                path = prefix + parser.currentName();
+                continue;
+            }
+            AttachmentMapper mapper = mappers.get(path);
+            if (token == XContentParser.Token.START_ARRAY) {
+                while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                    preExtract(parser, token, path, mapper, mappers, extractions);
+                }
+            } else {
+                preExtract(parser, token, path, mapper, mappers, extractions);
+            }
+        }
+    }
+
+    private void preExtract(XContentParser parser, XContentParser.Token token, String path, AttachmentMapper mapper,
+                            Map<String, AttachmentMapper> mappers, Extractions extractions) throws IOException {
+        if (mapper != null && (token == XContentParser.Token.VALUE_STRING || token == XContentParser.Token.VALUE_EMBEDDED_OBJECT
+                || token == XContentParser.Token.START_OBJECT)) {
+            ExtractionCache.Key key = mapper.preExtract(parser);
+            if (key != null && extractions.add(key) == false) {
+                extractionService.discard(key);
+            }
+        } else if (token == XContentParser.Token.START_OBJECT) {
+            preExtract(parser, path + ".", mappers, extractions);
+        } else {
+            parser.skipChildren();
+        }
+    }
+
+    /** the extractions started for the documents of a request, dropped once the request completed */
+    private final class Extractions {
+
+        private final List<ExtractionCache.Key> keys = new ArrayList<>();
+
+        private boolean completed;
+
+        /** remembers an extraction to drop, returns false if the request completed already and it must be dropped now */
+        synchronized boolean add(ExtractionCache.Key key) {
+            if (completed) {
+                return false;
+            }
+            keys.add(key);
+            return true;
+        }
+
+        synchronized boolean completed() {
+            return completed;
+        }
+
+        void complete() {
+            List<ExtractionCache.Key> started;
+            synchronized (this) {
+                completed = true;
+                started = new ArrayList<>(keys);
+                keys.clear();
+            }
+            for (ExtractionCache.Key key : started) {
+                extractionService.discard(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The directories attachments may be read from by the node itself: instead of its base64 {@code _content}, a document
+ * may come with the {@code _content_path} of a file under one of the {@code mapper.attachment.content_path.roots} of
+ * the node, a local directory or a mount shared with the clients. The file is memory mapped and handed over to tika
+ * as is, it is never encoded, sent, parsed as JSON nor stored in {@code _source}, which only keeps the path.
+ * <p>
+ * No file can be read unless roots are configured. Relative paths are resolved against the roots, in order, and the
+ * first file that exists is read. Links are followed before the path is checked, so a link cannot lead out of the roots.
+ * <p>
+ * Under the security manager, the node may only read files under its {@code path.repo} and {@code path.shared_data}
+ * directories, so that is where roots belong.
+ */
+final class ContentPaths {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger("mapper.attachment.content_path");
+
+    static final String ROOTS_SETTING = "mapper.attachment.content_path.roots";
+
+    private final List<Path> roots;
+
+    ContentPaths(Settings settings) {
+        List<Path> roots = new ArrayList<>();
+        for (String root : settings.getAsArray(ROOTS_SETTING)) {
+            Path path = PathUtils.get(root);
+            if (path.isAbsolute() == false) {
+                throw new IllegalArgumentException("[" + ROOTS_SETTING + "] must only contain absolute paths but got [" + root + "]");
+            }
+            roots.add(path.normalize());
+        }
+        this.roots = Collections.unmodifiableList(roots);
+    }
+
+    /** whether files can be read at all */
+    boolean enabled() {
+        return roots.isEmpty() == false;
+    }
+
+    List<Path> roots() {
+        return roots;
+    }
+
+    /**
+     * Resolves a {@code _content_path} to the file it points to and maps it.
+     *
+     * @throws IllegalArgumentException if no roots are configured, or the file is no regular file under one of them
+     * @throws IOException if the file cannot be read
+     */
+    AttachmentContent open(String contentPath) throws IOException {
+        if (enabled() == false) {
+            throw new IllegalArgumentException("[_content_path] is not allowed, [" + ROOTS_SETTING + "] is not set on this node");
+        }
+        Path file = resolve(contentPath);
+        if (Files.isRegularFile(file) == false) {
+            throw new IllegalArgumentException("[_content_path] [" + contentPath + "] is not a file");
+        }
+        return AttachmentContent.map(file);
+    }
+
+    /**
+     * the real path of the file. The path is checked to be under one of the roots before anything is looked up, so
+     * that nothing can be learnt about the files outside of them, and again once links are resolved.
+     */
+    Path resolve(String contentPath) throws IOException {
+        Path path = PathUtils.get(contentPath);
+        for (Path root : roots) {
+            Path candidate = root.resolve(path).normalize();
+            if (candidate.startsWith(root) == false) {
+                continue;
+            }
+            Path file;
+            try {
+                file = candidate.toRealPath();
+            } catch (NoSuchFileException e) {
+                // relative paths may be found under the next root
+                continue;
+            }
+            for (Path allowed : roots) {
+                if (file.startsWith(realPath(allowed))) {
+                    return file;
+                }
+            }
+            throw new IllegalArgumentException("[_content_path] [" + contentPath + "] links out of " + roots);
+        }
+        throw new IllegalArgumentException("[_content_path] [" + contentPath + "] is no file under " + roots);
+    }
+
+    /** the root itself if it cannot be resolved, like a share that is not mounted: nothing can be under it then */
+    private static Path realPath(Path root) {
+        try {
+            return root.toRealPath();
+        } catch (IOException e) {
+            logger.debug("cannot resolve attachment content root [{}]", e, root);
+            return root;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentInformation;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.io.CloseShieldInputStream;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.PagedText;
+import org.apache.tika.metadata.Property;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.SAXParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the document properties (title, author, dates, ...) of the formats that keep them apart from the body,
+ * without parsing the body: the {@code docProps/core.xml} part of OOXML documents, the {@code meta.xml} entry of
+ * OpenDocument files and the info dictionary of PDFs. The properties end up under the same metadata keys as
+ * with tika.
+ */
+final class DocumentPropertiesExtractor {
+
+    private static final String OOXML_PROPERTIES = "docProps/core.xml";
+    private static final String ODF_PROPERTIES = "meta.xml";
+
+    private static final String DC = "http://purl.org/dc/elements/1.1/";
+    private static final String DCTERMS = "http://purl.org/dc/terms/";
+    private static final String CP = "http://schemas.openxmlformats.org/package/2006/metadata/core-properties";
+    private static final String ODF_META = "urn:oasis:names:tc:opendocument:xmlns:meta:1.0";
+
+    /** ooxml core properties, by namespace and local name */
+    private static final Map<String, Property> OOXML_KEYS = new HashMap<>();
+    /** opendocument meta, by namespace and local name */
+    private static final Map<String, Property> ODF_KEYS = new HashMap<>();
+    static {
+        OOXML_KEYS.put(DC + "title", TikaCoreProperties.TITLE);
+        OOXML_KEYS.put(DC + "creator", TikaCoreProperties.CREATOR);
+        OOXML_KEYS.put(DC + "subject", TikaCoreProperties.TRANSITION_SUBJECT_TO_OO_SUBJECT);
+        OOXML_KEYS.put(DC + "description", TikaCoreProperties.DESCRIPTION);
+        OOXML_KEYS.put(CP + "keywords", TikaCoreProperties.KEYWORDS);
+        OOXML_KEYS.put(CP + "lastModifiedBy", TikaCoreProperties.MODIFIER);
+        OOXML_KEYS.put(DCTERMS + "created", TikaCoreProperties.CREATED);
+        OOXML_KEYS.put(DCTERMS + "modified", TikaCoreProperties.MODIFIED);
+
+        ODF_KEYS.put(DC + "title", TikaCoreProperties.TITLE);
+        ODF_KEYS.put(DC + "creator", TikaCoreProperties.CREATOR);
+        ODF_KEYS.put(ODF_META + "initial-creator", TikaCoreProperties.CREATOR);
+        ODF_KEYS.put(DC + "subject", TikaCoreProperties.TRANSITION_SUBJECT_TO_OO_SUBJECT);
+        ODF_KEYS.put(DC + "description", TikaCoreProperties.DESCRIPTION);
+        ODF_KEYS.put(ODF_META + "keyword", TikaCoreProperties.KEYWORDS);
+        ODF_KEYS.put(ODF_META + "creation-date", TikaCoreProperties.CREATED);
+        ODF_KEYS.put(DC + "date", TikaCoreProperties.MODIFIED);
+    }
+
+    private DocumentPropertiesExtractor() {}
+
+    /**
+     * detects the type of {@code stream} and reads its properties into {@code metadata}, if {@code parser} has a
+     * parser for it and its properties can be read on their own. Otherwise, returns {@code false} and leaves the
+     * stream where it was, to be parsed as usual.
+     */
+    static boolean extract(AutoDetectParser parser, TikaInputStream stream, Metadata metadata) throws IOException, TikaException {
+        MediaType type = parser.getDetector().detect(stream, metadata);
+        MediaType baseType = parser.getMediaTypeRegistry().normalize(type).getBaseType();
+        if (parser.getParsers(new ParseContext()).containsKey(baseType) == false) {
+            return false;
+        }
+
+        if (supports("pdf", baseType)) {
+            stream.mark(Integer.MAX_VALUE);
+            if (extractPdf(stream, metadata) == false) {
+                stream.reset();
+                return false;
+            }
+        } else if (supports("ooxml", baseType)) {
+            readZipEntry(stream, OOXML_PROPERTIES, OOXML_KEYS, metadata);
+        } else if (supports("odf", baseType)) {
+            readZipEntry(stream, ODF_PROPERTIES, ODF_KEYS, metadata);
+        } else {
+            return false;
+        }
+        metadata.set(Metadata.CONTENT_TYPE, type.toString());
+        return true;
+    }
+
+    private static boolean supports(String format, MediaType type) {
+        return TikaImpl.FORMATS.get(format).parser.getSupportedTypes(null).contains(type);
+    }
+
+    private static boolean extractPdf(InputStream stream, Metadata metadata) throws IOException {
+        try (PDDocument document = PDDocument.load(new CloseShieldInputStream(stream))) {
+            if (document.isEncrypted()) {
+                // the info dictionary is encrypted as well, leave it to tika
+                return false;
+            }
+            extractPdf(document, metadata);
+            return true;
+        }
+    }
+
+    /** the info dictionary of {@code document}, under the same keys as the tika PDF parser */
+    static void extractPdf(PDDocument document, Metadata metadata) {
+        PDDocumentInformation info = document.getDocumentInformation();
+        metadata.set(PagedText.N_PAGES, document.getNumberOfPages());
+        set(metadata, TikaCoreProperties.TITLE, info.getTitle());
+        set(metadata, TikaCoreProperties.CREATOR, info.getAuthor());
+        set(metadata, TikaCoreProperties.CREATOR_TOOL, info.getCreator());
+        set(metadata, TikaCoreProperties.KEYWORDS, info.getKeywords());
+        set(metadata, TikaCoreProperties.TRANSITION_SUBJECT_TO_OO_SUBJECT, info.getSubject());
+        try {
+            set(metadata, TikaCoreProperties.CREATED, info.getCreationDate());
+            set(metadata, TikaCoreProperties.MODIFIED, info.getModificationDate());
+        } catch (IOException e) {
+            // a malformed date only loses the date
+        }
+    }
+
+    private static void readZipEntry(InputStream stream, String name, Map<String, Property> keys, Metadata metadata)
+            throws IOException, TikaException {
+        ZipInputStream zip = new ZipInputStream(new CloseShieldInputStream(stream));
+        for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+            if (name.equals(entry.getName())) {
+                // the same secure, offline parser tika uses
+                SAXParser parser = new ParseContext().getSAXParser();
+                try {
+                    parser.parse(new CloseShieldInputStream(zip), new PropertiesHandler(keys, metadata));
+                } catch (SAXException e) {
+                    throw new TikaException("Unable to read the document properties", e);
+                }
+                return;
+            }
+        }
+    }
+
+    /** collects the text of the elements in {@code keys}, each under its property */
+    private static final class PropertiesHandler extends DefaultHandler {
+        private final Map<String, Property> keys;
+        private final Metadata metadata;
+        private final StringBuilder text = new StringBuilder();
+        private Property current;
+
+        PropertiesHandler(Map<String, Property> keys, Metadata metadata) {
+            this.keys = keys;
+            this.metadata = metadata;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            current = keys.get(uri + localName);
+            text.setLength(0);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (current != null) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (current != null) {
+                String value = text.toString().trim();
+                if (value.isEmpty() == false) {
+                    if (current.isMultiValuePermitted()) {
+                        metadata.add(current, value);
+                    } else if (metadata.get(current) == null) {
+                        metadata.set(current, value);
+                    }
+                }
+                current = null;
+            }
+        }
+    }
+
+    private static void set(Metadata metadata, Property property, String value) {
+        if (value != null && value.isEmpty() == false) {
+            metadata.set(property, value);
+        }
+    }
+
+    private static void set(Metadata metadata, Property property, Calendar value) {
+        if (value != null) {
+            metadata.set(property, value);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.metadata.Metadata;
+
+/**
+ * Immutable result of a text extraction: the extracted text and a private copy of
+ * the metadata tika produced for it.
+ */
+final class ExtractedContent {
+
+    private final String text;
+
+    private final Metadata metadata;
+
+    ExtractedContent(String text, Metadata metadata) {
+        this.text = text;
+        this.metadata = new Metadata();
+        copy(metadata, this.metadata);
+    }
+
+    String text() {
+        return text;
+    }
+
+    /**
+     * copies the extracted metadata into {@code target}, replacing any values it already has for the same names
+     */
+    void copyTo(Metadata target) {
+        copy(metadata, target);
+    }
+
+    /**
+     * rough estimate of the heap used by this result, in bytes
+     */
+    long ramBytesUsed() {
+        long size = 2L * text.length();
+        for (String name : metadata.names()) {
+            size += 2L * name.length();
+            for (String value : metadata.getValues(name)) {
+                size += 2L * value.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * copies all values of {@code from} into {@code to}, replacing any values it already has for the same names
+     */
+    static void copy(Metadata from, Metadata to) {
+        for (String name : from.names()) {
+            String[] values = from.getValues(name);
+            to.set(name, values[0]);
+            for (int i = 1; i < values.length; i++) {
+                to.add(name, values[i]);
+            }
+        }
+    }
+}
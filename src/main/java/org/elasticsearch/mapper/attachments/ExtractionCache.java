@@ -0,0 +1,225 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.Parser;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Node level cache of extraction results, keyed by a SHA-256 digest of the decoded attachment bytes.
+ * <p>
+ * The same attachment is often indexed many times (think of a PDF mailed to hundreds of people), and the
+ * result of tika only depends on the bytes, the extraction limit and the content type and resource name hints
+ * we hand over in the {@link Metadata} (and whether that content type is trusted). The cache is bounded by the {@code mapper.attachment.cache.size} node
+ * setting (either an absolute byte size or a percentage of the heap) and is disabled when that size is 0,
+ * which is the default. Failures are never cached.
+ */
+final class ExtractionCache {
+
+    static final String CACHE_SIZE_SETTING = "mapper.attachment.cache.size";
+
+    /** a cache that never holds anything: every call goes straight to tika */
+    static final ExtractionCache DISABLED = new ExtractionCache(new ByteSizeValue(0));
+
+    /** fixed per entry overhead: key, digest, object headers and references */
+    private static final long ENTRY_OVERHEAD = 128;
+
+    private final Cache<Key, ExtractedContent> cache;
+
+    private final CounterMetric hits = new CounterMetric();
+
+    private final CounterMetric misses = new CounterMetric();
+
+    private final CounterMetric evictions = new CounterMetric();
+
+    ExtractionCache(ByteSizeValue size) {
+        if (size.bytes() <= 0) {
+            this.cache = null;
+        } else {
+            this.cache = CacheBuilder.<Key, ExtractedContent>builder()
+                    .setMaximumWeight(size.bytes())
+                    .weigher((key, value) -> ENTRY_OVERHEAD + key.ramBytesUsed() + value.ramBytesUsed())
+                    .removalListener(this::onRemoval)
+                    .build();
+        }
+    }
+
+    static ExtractionCache build(Settings settings) {
+        return new ExtractionCache(settings.getAsMemory(CACHE_SIZE_SETTING, "0b"));
+    }
+
+    /**
+     * computes the key of an extraction
+     */
+    static Key newKey(final AttachmentContent content, final Metadata metadata, final int limit, final Parser parser)
+            throws IOException {
+        return new Key(digest(content), limit, parser, metadata.get(Metadata.CONTENT_TYPE),
+                metadata.get(Metadata.RESOURCE_NAME_KEY));
+    }
+
+    /**
+     * returns the cached text for {@code key} and copies the cached metadata into {@code metadata},
+     * or returns {@code null} if this extraction is not cached
+     */
+    String get(final Key key, final Metadata metadata) {
+        ExtractedContent cached = cache.get(key);
+        if (cached == null) {
+            misses.inc();
+            return null;
+        }
+        hits.inc();
+        cached.copyTo(metadata);
+        return cached.text();
+    }
+
+    void put(final Key key, final String text, final Metadata metadata) {
+        cache.put(key, new ExtractedContent(text, metadata));
+    }
+
+    boolean enabled() {
+        return cache != null;
+    }
+
+    long hits() {
+        return hits.count();
+    }
+
+    long misses() {
+        return misses.count();
+    }
+
+    long evictions() {
+        return evictions.count();
+    }
+
+    int count() {
+        return cache == null ? 0 : cache.count();
+    }
+
+    long sizeInBytes() {
+        return cache == null ? 0 : cache.weight();
+    }
+
+    private void onRemoval(RemovalNotification<Key, ExtractedContent> notification) {
+        if (notification.getRemovalReason() == RemovalNotification.RemovalReason.EVICTED) {
+            evictions.inc();
+        }
+    }
+
+    private static byte[] digest(AttachmentContent content) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        byte[] buffer = new byte[8192];
+        try (InputStream in = content.newStream()) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return digest.digest();
+    }
+
+    static final class Key {
+        private final byte[] digest;
+        private final int limit;
+        private final Parser parser;
+        private final String contentType;
+        private final String resourceName;
+        private final int hashCode;
+
+        Key(byte[] digest, int limit, Parser parser, String contentType, String resourceName) {
+            this.digest = digest;
+            this.limit = limit;
+            this.parser = parser;
+            this.contentType = contentType;
+            this.resourceName = resourceName;
+            this.hashCode = Objects.hash(Arrays.hashCode(digest), limit, parser, contentType, resourceName);
+        }
+
+        /**
+         * writes the key in a form that can be compared with keys of other runs, or returns {@code false} if it has
+         * none because its parser is not one of {@link TikaImpl#parser(java.util.Collection, boolean, boolean)}. The
+         * version of tika is part of it: another version may extract other text from the same attachment.
+         */
+        boolean writeTo(StreamOutput out) throws IOException {
+            String parserId = TikaImpl.id(parser);
+            if (parserId == null) {
+                return false;
+            }
+            out.writeString(TikaImpl.VERSION);
+            out.writeByteArray(digest);
+            out.writeInt(limit);
+            out.writeString(parserId);
+            out.writeOptionalString(contentType);
+            out.writeOptionalString(resourceName);
+            return true;
+        }
+
+        /** the SHA-256 digest of the attachment, in hex */
+        String digest() {
+            StringBuilder hex = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+
+        long ramBytesUsed() {
+            return digest.length
+                    + (contentType == null ? 0 : 2L * contentType.length())
+                    + (resourceName == null ? 0 : 2L * resourceName.length());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key other = (Key) o;
+            return limit == other.limit
+                    && parser == other.parser
+                    && Arrays.equals(digest, other.digest)
+                    && Objects.equals(contentType, other.contentType)
+                    && Objects.equals(resourceName, other.resourceName);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
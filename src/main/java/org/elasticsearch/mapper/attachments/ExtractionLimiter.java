@@ -0,0 +1,144 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps the number of tika parses running at the same time on a node to {@code mapper.attachment.extraction.max_concurrent}
+ * (the number of processors by default), whatever thread they run on. Otherwise all indexing threads may end up
+ * parsing large PDFs at once, leaving no room for anything else.
+ * <p>
+ * Threads wait for their turn in order of arrival. At most {@code mapper.attachment.extraction.queue_size} threads wait
+ * (1000 by default), further extractions are rejected with an {@link EsRejectedExecutionException}, the same way a full
+ * thread pool pushes back on indexing. The parts of an extraction that run in parallel do not count separately.
+ */
+final class ExtractionLimiter {
+
+    static final String MAX_CONCURRENT_SETTING = "mapper.attachment.extraction.max_concurrent";
+
+    static final String QUEUE_SIZE_SETTING = "mapper.attachment.extraction.queue_size";
+
+    private final int maxConcurrent;
+
+    private final int queueSize;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final MeanMetric waits = new MeanMetric();
+
+    private final CounterMetric rejected = new CounterMetric();
+
+    ExtractionLimiter(Settings settings) {
+        this(settings.getAsInt(MAX_CONCURRENT_SETTING, EsExecutors.boundedNumberOfProcessors(settings)),
+                settings.getAsInt(QUEUE_SIZE_SETTING, 1000));
+    }
+
+    ExtractionLimiter(int maxConcurrent, int queueSize) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("[" + MAX_CONCURRENT_SETTING + "] must be at least 1 but was [" + maxConcurrent + "]");
+        }
+        if (queueSize < 0) {
+            throw new IllegalArgumentException("[" + QUEUE_SIZE_SETTING + "] must not be negative but was [" + queueSize + "]");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.queueSize = queueSize;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Waits until an extraction may start, for as long as it takes. Every successful call must be followed by
+     * {@link #release}.
+     *
+     * @param bounded whether the extraction is rejected if too many are waiting already. Extractions that were
+     *                admitted by a bounded queue before, like the ones started ahead by {@link BulkExtractionFilter},
+     *                are not.
+     * @throws EsRejectedExecutionException if {@code bounded} and too many extractions are waiting already
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    void acquire(boolean bounded) throws InterruptedIOException {
+        try {
+            if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+            if (queued.incrementAndGet() > queueSize && bounded) {
+                queued.decrementAndGet();
+                rejected.inc();
+                throw new EsRejectedExecutionException("rejected attachment extraction: [" + maxConcurrent + "] extractions running and ["
+                        + queueSize + "] waiting already");
+            }
+            long start = System.nanoTime();
+            try {
+                permits.acquire();
+            } finally {
+                queued.decrementAndGet();
+                waits.inc(System.nanoTime() - start);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to extract");
+        }
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    /** maximum number of extractions running at the same time */
+    int maxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /** number of extractions running */
+    int active() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /** number of extractions waiting to start */
+    int queued() {
+        return queued.get();
+    }
+
+    /** number of extractions that had to wait to start */
+    long waited() {
+        return waits.count();
+    }
+
+    /** total time extractions waited to start, in nanoseconds */
+    long waitTimeNanos() {
+        return waits.sum();
+    }
+
+    /** number of extractions rejected because too many were waiting already */
+    long rejected() {
+        return rejected.count();
+    }
+}
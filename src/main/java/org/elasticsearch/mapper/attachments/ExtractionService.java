@@ -0,0 +1,712 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.lucene.util.IOUtils;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.Parser;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Node level entry point for text extraction: all attachment mappers of a node share one instance.
+ * <p>
+ * Looks the extraction up in the {@link ExtractionCache} and the {@link ExtractionStore} first, and otherwise parses
+ * with {@link TikaImpl}, as soon as the {@link ExtractionLimiter} lets it.
+ * When the extraction has a time budget, tika runs on a separate thread and the calling thread gives up
+ * once the budget is spent. Tika does not check for interrupts, so the abandoned parse may keep its thread busy
+ * for a while, but it stops as soon as it reads more of the document, and its result is thrown away. There are at most
+ * {@code mapper.attachment.timeout.threads} such threads (twice the number of processors by default), extractions wait
+ * for one within their budget when all are busy, and the attachment is decoded before it is handed over, since the
+ * abandoned parse may still read it once the mapper moved on to other documents.
+ * <p>
+ * Parts of an extraction can also run in parallel (the documents embedded in the attachment, the pages of a PDF),
+ * on a fork join pool of {@code mapper.attachment.parallel.threads} threads (the number of processors by default).
+ * <p>
+ * Extractions can be started ahead of the mappers, see {@link BulkExtractionFilter}. They run on
+ * {@code mapper.attachment.pre_extraction.threads} threads (the number of processors by default), with up to
+ * {@code mapper.attachment.pre_extraction.queue_size} extractions waiting for a thread (1000 by default). The mapper
+ * that parses the same attachment takes the extraction over and waits for it if needed.
+ * <p>
+ * On a node, the memory of an extraction is reserved on the request circuit breaker before it starts, see
+ * {@link #reserve}. The tika working set is estimated as {@code mapper.attachment.breaker.overhead} times the size of the
+ * attachment (2 by default). The memory stays reserved until the mapper is done with the text and the tika thread is
+ * done parsing, whichever is last: an extraction that timed out or was discarded keeps parsing for a while.
+ * <p>
+ * Text can also be extracted to a temporary file rather than to a string, see {@link #extract} and {@link SpilledText}.
+ * The files live in a directory of their own under {@code java.io.tmpdir}, which is removed when the service is closed.
+ * <p>
+ * The service of a node is closed when the node closes, see {@link ExtractionServiceLifecycle}.
+ */
+final class ExtractionService implements Closeable {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger("mapper.attachment");
+
+    /** no time budget: parse on the calling thread, for as long as it takes */
+    static final TimeValue NO_TIMEOUT = TimeValue.timeValueMillis(-1);
+
+    static final String PARALLEL_THREADS_SETTING = "mapper.attachment.parallel.threads";
+
+    static final String TIMEOUT_THREADS_SETTING = "mapper.attachment.timeout.threads";
+
+    static final String PRE_EXTRACTION_THREADS_SETTING = "mapper.attachment.pre_extraction.threads";
+
+    static final String PRE_EXTRACTION_QUEUE_SIZE_SETTING = "mapper.attachment.pre_extraction.queue_size";
+
+    static final String BREAKER_OVERHEAD_SETTING = "mapper.attachment.breaker.overhead";
+
+    private final ExtractionCache cache;
+
+    private volatile ExtractionStore store;
+
+    private final ExtractionLimiter limiter;
+
+    private final ContentPaths contentPaths;
+
+    private final ExtractionStats stats = new ExtractionStats();
+
+    /** threads for extractions that have a time budget, created on demand and bounded */
+    private final ExecutorService timeoutExecutor;
+
+    /** threads for the parts of extractions that run in parallel, created on demand */
+    private final ForkJoinPool parallelPool;
+
+    /** threads for the extractions started ahead of the mappers */
+    private final ExecutorService preExtractionExecutor;
+
+    /** extractions started ahead of the mappers, until a mapper takes them over or they get discarded */
+    private final ConcurrentMap<ExtractionCache.Key, ReservedTask<ExtractedContent>> preExtractions = new ConcurrentHashMap<>();
+
+    private final double breakerOverhead;
+
+    /** the breaker the memory of extractions is reserved on, set once the node is built; none when used on its own */
+    private volatile CircuitBreaker breaker;
+
+    /** where text is spilled to, created on demand */
+    private Path spillDirectory;
+
+    private final CounterMetric timeouts = new CounterMetric();
+
+    private final CounterMetric preExtracted = new CounterMetric();
+
+    private final CounterMetric preExtractionsRejected = new CounterMetric();
+
+    private final CounterMetric preExtractionsDiscarded = new CounterMetric();
+
+    ExtractionService(Settings settings) {
+        this(settings, ExtractionCache.build(settings));
+    }
+
+    ExtractionService(Settings settings, ExtractionCache cache) {
+        this(settings, cache, ExtractionStore.DISABLED);
+    }
+
+    ExtractionService(Settings settings, ExtractionCache cache, ExtractionStore store) {
+        this.cache = cache;
+        this.store = store;
+        this.limiter = new ExtractionLimiter(settings);
+        this.contentPaths = new ContentPaths(settings);
+        int timeoutThreads = settings.getAsInt(TIMEOUT_THREADS_SETTING, 2 * EsExecutors.boundedNumberOfProcessors(settings));
+        if (timeoutThreads < 1) {
+            throw new IllegalArgumentException("[" + TIMEOUT_THREADS_SETTING + "] must be at least 1 but was [" + timeoutThreads + "]");
+        }
+        this.timeoutExecutor = EsExecutors.newScaling("attachment_extraction", 0, timeoutThreads, 5, TimeUnit.MINUTES,
+                EsExecutors.daemonThreadFactory(settings, "attachment_extraction"));
+        int parallelThreads = settings.getAsInt(PARALLEL_THREADS_SETTING, EsExecutors.boundedNumberOfProcessors(settings));
+        if (parallelThreads < 1) {
+            throw new IllegalArgumentException("[" + PARALLEL_THREADS_SETTING + "] must be at least 1 but was [" + parallelThreads + "]");
+        }
+        final String parallelThreadName = EsExecutors.threadName(settings, "attachment_parallel");
+        this.parallelPool = new ForkJoinPool(parallelThreads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(parallelThreadName + "[T#" + thread.getPoolIndex() + "]");
+            return thread;
+        }, null, false);
+        int preExtractionThreads = settings.getAsInt(PRE_EXTRACTION_THREADS_SETTING, EsExecutors.boundedNumberOfProcessors(settings));
+        if (preExtractionThreads < 1) {
+            throw new IllegalArgumentException("[" + PRE_EXTRACTION_THREADS_SETTING + "] must be at least 1 but was ["
+                    + preExtractionThreads + "]");
+        }
+        this.preExtractionExecutor = EsExecutors.newFixed("attachment_pre_extraction", preExtractionThreads,
+                settings.getAsInt(PRE_EXTRACTION_QUEUE_SIZE_SETTING, 1000),
+                EsExecutors.daemonThreadFactory(settings, "attachment_pre_extraction"));
+        this.breakerOverhead = settings.getAsDouble(BREAKER_OVERHEAD_SETTING, 2d);
+        if (breakerOverhead < 0) {
+            throw new IllegalArgumentException("[" + BREAKER_OVERHEAD_SETTING + "] must not be negative but was [" + breakerOverhead + "]");
+        }
+    }
+
+    void breaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    /**
+     * Reserves the memory an extraction of at most {@code limit} characters of {@code content} needs on the circuit
+     * breaker: the decoded attachment, the working set of tika on top of it and the extracted text. The caller
+     * {@link Reservation#release releases} it once the extraction and its text are not needed anymore.
+     *
+     * @throws CircuitBreakingException if the reservation would trip the breaker
+     */
+    Reservation reserve(AttachmentContent content, int limit, String label) {
+        CircuitBreaker breaker = this.breaker;
+        if (breaker == null) {
+            return Reservation.NONE;
+        }
+        long bytes = estimate(content.length(), limit, breakerOverhead);
+        breaker.addEstimateBytesAndMaybeBreak(bytes, label);
+        return new Reservation(breaker, bytes);
+    }
+
+    /**
+     * Same as {@link #reserve(AttachmentContent, int, String)}, unless an extraction with {@code key} was started with
+     * {@link #preExtract}: that one reserved the same memory already, and the caller shares its reservation instead of
+     * reserving it a second time. The memory is released once both the caller and the pre-extraction are done.
+     */
+    Reservation reserve(AttachmentContent content, ExtractionCache.Key key, int limit, String label) {
+        if (key != null) {
+            ReservedTask<ExtractedContent> preExtraction = preExtractions.get(key);
+            if (preExtraction != null && preExtraction.reservation.tryRetain()) {
+                return preExtraction.reservation;
+            }
+        }
+        return reserve(content, limit, label);
+    }
+
+    /**
+     * Estimates the memory needed to extract at most {@code limit} characters from an attachment of {@code length}
+     * bytes. Without limit, the text is assumed to have as many characters as the attachment has bytes.
+     */
+    static long estimate(int length, int limit, double overhead) {
+        long chars = limit < 0 ? length : limit;
+        return length + (long) (overhead * length) + 2 * chars;
+    }
+
+    /**
+     * extracts at most {@code limit} characters of text from {@code content}, filling {@code metadata} on the way.
+     * The text is extracted by {@code parser}, one of {@link TikaImpl#parser(java.util.Collection, boolean)}.
+     * With {@code parallelEmbedded}, the documents embedded in {@code content} are extracted in parallel; the text
+     * is the same either way. Parsers that extract in parallel themselves use the same threads.
+     *
+     * @throws ElasticsearchTimeoutException if {@code timeout} is not negative and the extraction takes longer
+     */
+    String parse(final AttachmentContent content, final Metadata metadata, final int limit, final Parser parser,
+                 final boolean parallelEmbedded, final TimeValue timeout) throws TikaException, IOException {
+        return parse(content, metadata, limit, parser, parallelEmbedded, timeout, null, Reservation.NONE);
+    }
+
+    /**
+     * Same as {@link #parse(AttachmentContent, Metadata, int, Parser, boolean, TimeValue)}, with the key of the
+     * extraction if the caller computed it already with {@link ExtractionCache#newKey}, before {@code metadata} was
+     * filled. {@code reservation} is the memory the caller {@link #reserve reserved} for the extraction: a parse that
+     * outlives its time budget holds on to it until it stops.
+     */
+    String parse(final AttachmentContent content, final Metadata metadata, final int limit, final Parser parser,
+                 final boolean parallelEmbedded, final TimeValue timeout, ExtractionCache.Key key,
+                 final Reservation reservation) throws TikaException, IOException {
+        if (key == null && (cache.enabled() || store.enabled() || preExtracting())) {
+            key = ExtractionCache.newKey(content, metadata, limit, parser);
+        }
+        if (key != null) {
+            ReservedTask<ExtractedContent> preExtraction = preExtractions.remove(key);
+            if (preExtraction != null) {
+                // it releases its reservation once it is done, the caller keeps what it shares
+                ExtractedContent extracted = await(preExtraction, timeout.nanos());
+                preExtracted.inc();
+                extracted.copyTo(metadata);
+                return extracted.text();
+            }
+            if (cache.enabled()) {
+                String cached = cache.get(key, metadata);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            ExtractedContent stored = store.get(key);
+            if (stored != null) {
+                stored.copyTo(metadata);
+                if (cache.enabled()) {
+                    cache.put(key, stored.text(), metadata);
+                }
+                return stored.text();
+            }
+        }
+
+        final String text;
+        if (timeout.nanos() < 0) {
+            text = extract(content.newStream(), metadata, limit, parser, parallelEmbedded, true);
+        } else {
+            text = parse(content, metadata, limit, parser, parallelEmbedded, timeout.nanos(), reservation);
+        }
+
+        if (key != null) {
+            remember(key, text, metadata);
+        }
+        return text;
+    }
+
+    /**
+     * Extracts at most {@code limit} characters of text from {@code content} into {@code text}, filling
+     * {@code metadata} on the way, like {@link #parse(AttachmentContent, Metadata, int, Parser, boolean, TimeValue)}
+     * does. The text is written as tika extracts it and never exists as a whole on the heap, so it is neither looked up
+     * in nor added to the caches and the store, and the documents embedded in {@code content} are extracted in order.
+     *
+     * @throws ElasticsearchTimeoutException if {@code timeout} is not negative and the extraction takes longer
+     */
+    void extract(final AttachmentContent content, final Metadata metadata, final int limit, final Parser parser,
+                 final TimeValue timeout, final Writer text) throws TikaException, IOException {
+        extract(content, metadata, limit, parser, timeout, text, Reservation.NONE);
+    }
+
+    /**
+     * Same as {@link #extract(AttachmentContent, Metadata, int, Parser, TimeValue, Writer)}, with the memory the caller
+     * {@link #reserve reserved} for the extraction: a parse that outlives its time budget holds on to it until it stops.
+     */
+    void extract(final AttachmentContent content, final Metadata metadata, final int limit, final Parser parser,
+                 final TimeValue timeout, final Writer text, final Reservation reservation) throws TikaException, IOException {
+        if (timeout.nanos() < 0) {
+            extract(content.newStream(), metadata, limit, parser, text);
+            return;
+        }
+        // the parse might outlive us, so it gets its own content and metadata
+        final AttachmentContent parseContent = content.detach();
+        final Metadata parseMetadata = new Metadata();
+        ExtractedContent.copy(metadata, parseMetadata);
+        ReservedTask<Void> task = new ReservedTask<>(reservation.retain(), () -> {
+            extract(new InterruptibleInputStream(parseContent.newStream()), parseMetadata, limit, parser, text);
+            return null;
+        });
+        execute(timeoutExecutor, task);
+        await(task, timeout.nanos());
+        ExtractedContent.copy(parseMetadata, metadata);
+    }
+
+    private void extract(InputStream stream, Metadata metadata, int limit, Parser parser, Writer text)
+            throws TikaException, IOException {
+        try {
+            limiter.acquire(true);
+        } catch (Throwable t) {
+            stream.close();
+            throw t;
+        }
+        try {
+            TikaImpl.parse(stream, metadata, limit, parser, parallelPool, breaker, text);
+        } finally {
+            limiter.release();
+        }
+    }
+
+    /**
+     * Creates a temporary file to extract text to with {@link #extract}, keeping the first {@code prefixChars}
+     * characters in memory.
+     */
+    SpilledText spill(int prefixChars) throws IOException {
+        return new SpilledText(Files.createTempFile(spillDirectory(), "text-", ".txt"), prefixChars);
+    }
+
+    // only package private for testing!
+    synchronized Path spillDirectory() throws IOException {
+        if (spillDirectory == null) {
+            spillDirectory = Files.createTempDirectory(PathUtils.get(System.getProperty("java.io.tmpdir")), "attachment-text-");
+        }
+        return spillDirectory;
+    }
+
+    /**
+     * keeps the result of an extraction in the cache and the store, if they are enabled. The extraction succeeded
+     * whether or not the store could keep it, for instance with a full disk.
+     */
+    private void remember(ExtractionCache.Key key, String text, Metadata metadata) {
+        if (cache.enabled()) {
+            cache.put(key, text, metadata);
+        }
+        try {
+            store.put(key, text, metadata);
+        } catch (IOException e) {
+            logger.warn("failed to store an extraction result in the attachment extraction store", e);
+        }
+    }
+
+    private String parse(final AttachmentContent content, final Metadata metadata, final int limit, final Parser parser,
+                         final boolean parallelEmbedded, final long timeoutNanos, final Reservation reservation)
+            throws TikaException, IOException {
+        // the parse might outlive us, so it gets its own content, metadata and share of the reservation
+        final AttachmentContent parseContent = content.detach();
+        final Metadata parseMetadata = new Metadata();
+        ExtractedContent.copy(metadata, parseMetadata);
+
+        ReservedTask<String> task = new ReservedTask<>(reservation.retain(),
+                () -> extract(new InterruptibleInputStream(parseContent.newStream()), parseMetadata, limit, parser, parallelEmbedded, true));
+        execute(timeoutExecutor, task);
+        String text = await(task, timeoutNanos);
+        ExtractedContent.copy(parseMetadata, metadata);
+        return text;
+    }
+
+    /**
+     * Parses with tika once the {@link ExtractionLimiter} lets the extraction start.
+     */
+    private String extract(InputStream stream, Metadata metadata, int limit, Parser parser, boolean parallelEmbedded,
+                           boolean bounded) throws TikaException, IOException {
+        try {
+            limiter.acquire(bounded);
+        } catch (Throwable t) {
+            stream.close();
+            throw t;
+        }
+        try {
+            return TikaImpl.parse(stream, metadata, limit, parser, parallelPool, parallelEmbedded, breaker);
+        } finally {
+            limiter.release();
+        }
+    }
+
+    /**
+     * Starts extracting at most {@code limit} characters of text from {@code content} on the pre-extraction threads. The
+     * extraction is picked up by the first call to {@link #parse} with the same arguments, or dropped with
+     * {@link #discard}. Returns the key of the extraction, or {@code null} if the extraction was not started: it is
+     * already running, too many extractions are waiting for a thread already or the circuit breaker has no room for it.
+     * The extraction fills {@code metadata}, which must not be used anymore by the caller.
+     */
+    ExtractionCache.Key preExtract(final AttachmentContent content, final Metadata metadata, final int limit, final Parser parser,
+                                   final boolean parallelEmbedded) throws IOException {
+        final ExtractionCache.Key key = ExtractionCache.newKey(content, metadata, limit, parser);
+        final Reservation reservation;
+        try {
+            reservation = reserve(content, limit, "attachment pre-extraction");
+        } catch (CircuitBreakingException e) {
+            preExtractionsRejected.inc();
+            return null;
+        }
+        ReservedTask<ExtractedContent> task = new ReservedTask<>(reservation, () -> {
+            // the pre-extraction queue bounded this extraction already
+            String text = extract(new InterruptibleInputStream(content.newStream()), metadata, limit, parser, parallelEmbedded, false);
+            remember(key, text, metadata);
+            return new ExtractedContent(text, metadata);
+        });
+        if (preExtractions.putIfAbsent(key, task) != null) {
+            reservation.release();
+            return null;
+        }
+        try {
+            execute(preExtractionExecutor, task);
+        } catch (EsRejectedExecutionException e) {
+            // a mapper that shares the reservation in the meantime still holds it
+            preExtractions.remove(key, task);
+            preExtractionsRejected.inc();
+            return null;
+        }
+        return key;
+    }
+
+    /**
+     * Runs {@code task}, which looks for attachments to {@link #preExtract}, on the pre-extraction threads.
+     *
+     * @throws EsRejectedExecutionException if too many tasks wait for a thread already
+     */
+    void executePreExtraction(Runnable task) {
+        preExtractionExecutor.execute(task);
+    }
+
+    /**
+     * Drops the extraction started with {@link #preExtract} under {@code key}, unless a mapper took it over already.
+     */
+    void discard(ExtractionCache.Key key) {
+        ReservedTask<ExtractedContent> preExtraction = preExtractions.remove(key);
+        if (preExtraction != null) {
+            // releases its reservation right away if it did not start, once it stops otherwise
+            preExtraction.cancel(true);
+            preExtractionsDiscarded.inc();
+        }
+    }
+
+    /** runs {@code task} on {@code executor}, dropping its reservation if it is rejected */
+    private static void execute(ExecutorService executor, ReservedTask<?> task) {
+        try {
+            executor.execute(task);
+        } catch (EsRejectedExecutionException e) {
+            task.cancel(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the result of an extraction running on another thread, for at most {@code timeoutNanos} unless that is
+     * negative.
+     */
+    private <T> T await(Future<T> future, long timeoutNanos) throws TikaException, IOException {
+        try {
+            return timeoutNanos < 0 ? future.get() : future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timeouts.inc();
+            throw new ElasticsearchTimeoutException("Extraction did not complete within [{}]", TimeValue.timeValueNanos(timeoutNanos));
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the extraction to complete");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TikaException) {
+                throw (TikaException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new AssertionError(cause);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        timeoutExecutor.shutdownNow();
+        parallelPool.shutdownNow();
+        preExtractionExecutor.shutdownNow();
+        store(ExtractionStore.DISABLED);
+        synchronized (this) {
+            if (spillDirectory != null) {
+                try {
+                    IOUtils.rm(spillDirectory);
+                } catch (IOException e) {
+                    // some platforms cannot remove the text of documents that are still being indexed
+                }
+            }
+        }
+    }
+
+    ExtractionCache cache() {
+        return cache;
+    }
+
+    ExtractionStore store() {
+        return store;
+    }
+
+    /** replaces the store, closing the previous one */
+    void store(ExtractionStore store) {
+        ExtractionStore previous = this.store;
+        this.store = store;
+        // results that did not make it to disk are extracted again next time
+        IOUtils.closeWhileHandlingException(previous);
+    }
+
+    /** the files documents may point to instead of sending their content */
+    ContentPaths contentPaths() {
+        return contentPaths;
+    }
+
+    ExtractionLimiter limiter() {
+        return limiter;
+    }
+
+    /** statistics of the extractions of the mappers, which record them */
+    ExtractionStats stats() {
+        return stats;
+    }
+
+    /** number of extractions that ran out of time */
+    long timeouts() {
+        return timeouts.count();
+    }
+
+    /** number of extractions started ahead that a mapper took over */
+    long preExtracted() {
+        return preExtracted.count();
+    }
+
+    /** number of extractions not started ahead because too many were waiting for a thread already */
+    long preExtractionsRejected() {
+        return preExtractionsRejected.count();
+    }
+
+    /** whether extractions started with {@link #preExtract} wait for a mapper to take them over */
+    boolean preExtracting() {
+        return preExtractions.isEmpty() == false;
+    }
+
+    /** number of extractions started ahead that no mapper took over */
+    long preExtractionsDiscarded() {
+        return preExtractionsDiscarded.count();
+    }
+
+    /**
+     * Memory reserved on the circuit breaker for an extraction. It is shared by the mapper that needs the text and the
+     * thread that extracts it, and released once the last of them {@link #release releases} it.
+     */
+    static final class Reservation {
+
+        /** nothing reserved, when there is no breaker */
+        static final Reservation NONE = new Reservation(null, 0);
+
+        private final CircuitBreaker breaker;
+
+        private final long bytes;
+
+        private final AtomicInteger holders = new AtomicInteger(1);
+
+        private Reservation(CircuitBreaker breaker, long bytes) {
+            this.breaker = breaker;
+            this.bytes = bytes;
+        }
+
+        long bytes() {
+            return bytes;
+        }
+
+        /** adds a holder, unless the reservation was released already */
+        boolean tryRetain() {
+            if (bytes == 0) {
+                return true;
+            }
+            for (int count = holders.get(); count > 0; count = holders.get()) {
+                if (holders.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** adds a holder to a reservation the caller holds */
+        Reservation retain() {
+            if (tryRetain() == false) {
+                throw new IllegalStateException("reservation of [" + bytes + "] bytes was released already");
+            }
+            return this;
+        }
+
+        void release() {
+            if (bytes != 0 && holders.decrementAndGet() == 0) {
+                breaker.addWithoutBreaking(-bytes);
+            }
+        }
+    }
+
+    /**
+     * An extraction running on another thread, holding a share of the reservation made for it. The share is released
+     * when the extraction stops, or when it is cancelled before it started: cancelling a running extraction only
+     * interrupts it, and its memory is in use until tika notices.
+     */
+    private static final class ReservedTask<T> extends FutureTask<T> {
+
+        private final Reservation reservation;
+
+        /** set by whichever comes first, the run or the cancellation, which then releases the reservation */
+        private final AtomicBoolean claimed;
+
+        ReservedTask(Reservation reservation, Callable<T> callable) {
+            this(reservation, new AtomicBoolean(), callable);
+        }
+
+        private ReservedTask(Reservation reservation, AtomicBoolean claimed, Callable<T> callable) {
+            super(() -> {
+                if (claimed.compareAndSet(false, true) == false) {
+                    throw new CancellationException();
+                }
+                try {
+                    return callable.call();
+                } finally {
+                    reservation.release();
+                }
+            });
+            this.reservation = reservation;
+            this.claimed = claimed;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (claimed.compareAndSet(false, true)) {
+                reservation.release();
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * stops reading the document once the parsing thread was interrupted: the caller gave up on it,
+     * and the underlying buffer might not even hold the document anymore.
+     */
+    private static final class InterruptibleInputStream extends FilterInputStream {
+
+        InterruptibleInputStream(InputStream in) {
+            super(in);
+        }
+
+        private void ensureNotInterrupted() throws InterruptedIOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Extraction was cancelled");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            ensureNotInterrupted();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            ensureNotInterrupted();
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            ensureNotInterrupted();
+            return super.skip(n);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.NodeEnvironment;
+
+/**
+ * Ties the {@link ExtractionService} of a node to the lifecycle of the node: its {@link ExtractionStore} is opened in
+ * the data path of the node when the node starts and closed when it stops, and its threads and temporary files are
+ * released when the node closes.
+ */
+public class ExtractionServiceLifecycle extends AbstractLifecycleComponent<ExtractionServiceLifecycle> {
+
+    private final ExtractionService extractionService;
+
+    private final NodeEnvironment nodeEnvironment;
+
+    @Inject
+    public ExtractionServiceLifecycle(Settings settings, ExtractionService extractionService, NodeEnvironment nodeEnvironment) {
+        super(settings);
+        this.extractionService = extractionService;
+        this.nodeEnvironment = nodeEnvironment;
+    }
+
+    @Override
+    protected void doStart() {
+        // nodes without local storage index nothing
+        if (nodeEnvironment.hasNodeFile()) {
+            extractionService.store(ExtractionStore.build(settings, nodeEnvironment.nodeDataPaths()[0]));
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        extractionService.store(ExtractionStore.DISABLED);
+    }
+
+    @Override
+    protected void doClose() {
+        extractionService.close();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs the attachments that took long to extract, with what is needed to find the document and tell what made it
+ * slow: the field, {@code _name}, detected content type, size, extracted length and the time spent decoding, parsing
+ * and detecting the language.
+ * <p>
+ * The thresholds are set per index with {@code index.mapping.attachment.slowlog.threshold.[warn|info|debug|trace]},
+ * all disabled by default. They are dynamic: on a node, the slow log of an index follows updates of its settings, see
+ * {@link #refresh}. An attachment is logged at the highest level whose threshold its extraction reached. The
+ * logger is {@code index.indexing.slowlog.attachment}, so the default logging configuration writes it to the indexing
+ * slow log file.
+ */
+final class ExtractionSlowLog {
+
+    static final String THRESHOLD_WARN_SETTING = "index.mapping.attachment.slowlog.threshold.warn";
+    static final String THRESHOLD_INFO_SETTING = "index.mapping.attachment.slowlog.threshold.info";
+    static final String THRESHOLD_DEBUG_SETTING = "index.mapping.attachment.slowlog.threshold.debug";
+    static final String THRESHOLD_TRACE_SETTING = "index.mapping.attachment.slowlog.threshold.trace";
+
+    static final String[] THRESHOLD_SETTINGS = new String[] {
+            THRESHOLD_WARN_SETTING, THRESHOLD_INFO_SETTING, THRESHOLD_DEBUG_SETTING, THRESHOLD_TRACE_SETTING };
+
+    static final ExtractionSlowLog DISABLED = new ExtractionSlowLog(-1, -1, -1, -1);
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger("index.indexing.slowlog.attachment");
+
+    private volatile long warnNanos;
+    private volatile long infoNanos;
+    private volatile long debugNanos;
+    private volatile long traceNanos;
+
+    ExtractionSlowLog(long warnNanos, long infoNanos, long debugNanos, long traceNanos) {
+        this.warnNanos = warnNanos;
+        this.infoNanos = infoNanos;
+        this.debugNanos = debugNanos;
+        this.traceNanos = traceNanos;
+    }
+
+    static ExtractionSlowLog build(Settings indexSettings) {
+        if (indexSettings == null) {
+            return DISABLED;
+        }
+        return new ExtractionSlowLog(threshold(indexSettings, THRESHOLD_WARN_SETTING), threshold(indexSettings, THRESHOLD_INFO_SETTING),
+                threshold(indexSettings, THRESHOLD_DEBUG_SETTING), threshold(indexSettings, THRESHOLD_TRACE_SETTING));
+    }
+
+    private static long threshold(Settings indexSettings, String setting) {
+        return threshold(indexSettings, setting, -1);
+    }
+
+    private static long threshold(Settings indexSettings, String setting, long defaultNanos) {
+        return indexSettings.getAsTime(setting, TimeValue.timeValueNanos(defaultNanos)).nanos();
+    }
+
+    /**
+     * Applies the thresholds of the updated settings of the index, keeping those they don't set.
+     */
+    synchronized void refresh(Settings indexSettings) {
+        assert this != DISABLED : "the disabled slow log is shared";
+        warnNanos = threshold(indexSettings, THRESHOLD_WARN_SETTING, warnNanos);
+        infoNanos = threshold(indexSettings, THRESHOLD_INFO_SETTING, infoNanos);
+        debugNanos = threshold(indexSettings, THRESHOLD_DEBUG_SETTING, debugNanos);
+        traceNanos = threshold(indexSettings, THRESHOLD_TRACE_SETTING, traceNanos);
+    }
+
+    boolean enabled() {
+        return warnNanos >= 0 || infoNanos >= 0 || debugNanos >= 0 || traceNanos >= 0;
+    }
+
+    /**
+     * Logs the extraction of the attachment of {@code field} if it took long enough.
+     */
+    void maybeLog(String index, String type, String id, String field, String name, ExtractionStats.Extraction extraction) {
+        long took = took(extraction);
+        if (warnNanos >= 0 && took >= warnNanos) {
+            logger.warn("{}", message(index, type, id, field, name, extraction));
+        } else if (infoNanos >= 0 && took >= infoNanos) {
+            logger.info("{}", message(index, type, id, field, name, extraction));
+        } else if (debugNanos >= 0 && took >= debugNanos) {
+            logger.debug("{}", message(index, type, id, field, name, extraction));
+        } else if (traceNanos >= 0 && took >= traceNanos) {
+            logger.trace("{}", message(index, type, id, field, name, extraction));
+        }
+    }
+
+    /** the time spent on the attachment: decoding, parsing and detecting its language */
+    static long took(ExtractionStats.Extraction extraction) {
+        return Math.max(extraction.decodeNanos, 0) + Math.max(extraction.extractionNanos, 0) + Math.max(extraction.languageNanos, 0);
+    }
+
+    static String message(String index, String type, String id, String field, String name, ExtractionStats.Extraction extraction) {
+        long took = took(extraction);
+        StringBuilder sb = new StringBuilder();
+        sb.append("[").append(index).append("] ");
+        sb.append("took[").append(TimeValue.timeValueNanos(took)).append("], ");
+        sb.append("took_millis[").append(TimeUnit.NANOSECONDS.toMillis(took)).append("], ");
+        sb.append("type[").append(type).append("], ");
+        sb.append("id[").append(id).append("], ");
+        sb.append("field[").append(field).append("], ");
+        sb.append("name[").append(name).append("], ");
+        sb.append("content_type[").append(extraction.contentType).append("], ");
+        sb.append("input[").append(new ByteSizeValue(extraction.inputBytes)).append("], ");
+        sb.append("extracted_chars[").append(extraction.extractedChars).append("], ");
+        sb.append("truncated[").append(extraction.truncated).append("], ");
+        sb.append("decode[").append(duration(extraction.decodeNanos)).append("], ");
+        sb.append("parse[").append(duration(extraction.extractionNanos)).append("], ");
+        sb.append("language[").append(duration(extraction.languageNanos)).append("], ");
+        sb.append("failed[").append(extraction.failed || extraction.ignoredError).append("]");
+        return sb.toString();
+    }
+
+    private static String duration(long nanos) {
+        return nanos < 0 ? "-" : TimeValue.timeValueNanos(nanos).toString();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node level statistics of the attachments the mappers extracted, broken down by content type: the one tika detected,
+ * or the one the document came with if the extraction failed before. Only the first {@link #MAX_CONTENT_TYPES} content
+ * types get their own statistics, the others are counted as {@link #OTHER}.
+ * <p>
+ * The time spent decoding, extracting and detecting the language of attachments is recorded in histograms with
+ * buckets of doubling width, so percentiles can be told apart from means. Decoding only covers the base64 content
+ * that is decoded before tika starts, content that tika reads while it is decoded counts as extraction.
+ */
+final class ExtractionStats {
+
+    static final int MAX_CONTENT_TYPES = 100;
+
+    /** content type of the attachments that were not detected and came without one */
+    static final String UNKNOWN = "unknown";
+
+    /** content type of the attachments beyond the first {@link #MAX_CONTENT_TYPES} content types */
+    static final String OTHER = "other";
+
+    private final ConcurrentMap<String, ContentTypeMetrics> contentTypes = new ConcurrentHashMap<>();
+
+    /**
+     * Records the extraction of one attachment.
+     */
+    void record(Extraction extraction) {
+        metrics(normalize(extraction.contentType)).record(extraction);
+    }
+
+    private ContentTypeMetrics metrics(String contentType) {
+        ContentTypeMetrics metrics = contentTypes.get(contentType);
+        if (metrics == null) {
+            if (contentTypes.size() >= MAX_CONTENT_TYPES) {
+                contentType = OTHER;
+            }
+            metrics = contentTypes.computeIfAbsent(contentType, type -> new ContentTypeMetrics());
+        }
+        return metrics;
+    }
+
+    /** the media type without its parameters, like the charset tika adds to text types */
+    static String normalize(String contentType) {
+        if (contentType == null) {
+            return UNKNOWN;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+        return type.isEmpty() ? UNKNOWN : type;
+    }
+
+    /** a snapshot of the statistics of all content types, sorted by content type */
+    List<AttachmentStats.ContentTypeStats> stats() {
+        List<AttachmentStats.ContentTypeStats> stats = new ArrayList<>(contentTypes.size());
+        for (ConcurrentMap.Entry<String, ContentTypeMetrics> entry : contentTypes.entrySet()) {
+            stats.add(entry.getValue().stats(entry.getKey()));
+        }
+        stats.sort((a, b) -> a.contentType().compareTo(b.contentType()));
+        return stats;
+    }
+
+    /**
+     * What is known about the extraction of one attachment, filled in by the mapper as it goes. Times are in
+     * nanoseconds, -1 for what did not happen.
+     */
+    static final class Extraction {
+        String contentType;
+        long inputBytes;
+        long decodeNanos = -1;
+        long extractionNanos = -1;
+        long languageNanos = -1;
+        int extractedChars;
+        boolean truncated;
+        boolean ignoredError;
+        boolean failed;
+    }
+
+    private static final class ContentTypeMetrics {
+        final CounterMetric count = new CounterMetric();
+        final CounterMetric inputBytes = new CounterMetric();
+        final CounterMetric extractedChars = new CounterMetric();
+        final CounterMetric truncated = new CounterMetric();
+        final CounterMetric ignoredErrors = new CounterMetric();
+        final CounterMetric failures = new CounterMetric();
+        final Histogram decode = new Histogram();
+        final Histogram extraction = new Histogram();
+        final Histogram languageDetection = new Histogram();
+
+        void record(Extraction extraction) {
+            count.inc();
+            inputBytes.inc(extraction.inputBytes);
+            extractedChars.inc(extraction.extractedChars);
+            if (extraction.truncated) {
+                truncated.inc();
+            }
+            if (extraction.ignoredError) {
+                ignoredErrors.inc();
+            }
+            if (extraction.failed) {
+                failures.inc();
+            }
+            decode.record(extraction.decodeNanos);
+            this.extraction.record(extraction.extractionNanos);
+            languageDetection.record(extraction.languageNanos);
+        }
+
+        AttachmentStats.ContentTypeStats stats(String contentType) {
+            return new AttachmentStats.ContentTypeStats(contentType, count.count(), inputBytes.count(), extractedChars.count(),
+                    truncated.count(), ignoredErrors.count(), failures.count(), decode.stats(), extraction.stats(),
+                    languageDetection.stats());
+        }
+    }
+
+    /**
+     * Counts durations in {@link AttachmentStats.Timing#BUCKETS} buckets: below 1ms, then doubling up to 2^(BUCKETS - 2)ms,
+     * and above.
+     */
+    static final class Histogram {
+        private final MeanMetric total = new MeanMetric();
+        private final CounterMetric[] buckets = new CounterMetric[AttachmentStats.Timing.BUCKETS];
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new CounterMetric();
+            }
+        }
+
+        /** records a duration in nanoseconds, ignoring negative ones */
+        void record(long nanos) {
+            if (nanos < 0) {
+                return;
+            }
+            total.inc(nanos);
+            buckets[bucket(TimeUnit.NANOSECONDS.toMillis(nanos))].inc();
+        }
+
+        static int bucket(long millis) {
+            return Math.min(64 - Long.numberOfLeadingZeros(millis), AttachmentStats.Timing.BUCKETS - 1);
+        }
+
+        AttachmentStats.Timing stats() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].count();
+            }
+            return new AttachmentStats.Timing(total.count(), total.sum(), counts);
+        }
+    }
+}
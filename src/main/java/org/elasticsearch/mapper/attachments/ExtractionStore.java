@@ -0,0 +1,510 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.tika.metadata.Metadata;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Extraction results kept on the local disk of the node, so that they survive restarts.
+ * <p>
+ * All copies of a shard parse the same documents, and so does the replay of the translog when a shard recovers:
+ * without a store, an attachment is extracted again on every replica and after every restart. The store is keyed like
+ * the {@link ExtractionCache} (digest of the attachment, limit, formats and hints), so whatever was extracted on the node
+ * before is found again, whatever the shard or index.
+ * <p>
+ * The store is disabled unless {@code mapper.attachment.store.size} is set, to the disk space it may use. It lives in
+ * {@code attachment_store} under the first data path of the node, and is opened when the node starts and closed when
+ * it stops, which releases its lock and forces it to disk. Results are appended to segment files of an eighth of that size
+ * (at most 256mb), which are memory mapped. New segments are written out in full before they are mapped: a write to the
+ * mapping of a sparse file crashes the node with an {@link InternalError} once the disk is full, while this fails the
+ * new segment with an {@link IOException} and the results are just not stored. Once all segments are full, the oldest one is dropped with all the results
+ * it holds. Results that do not fit in a segment are not stored.
+ * <p>
+ * Only the location of each result is kept in memory, rebuilt from the segments when the node starts. Every result comes
+ * with a checksum: a result that was partly written when the node stopped ends its segment, and is written again the
+ * next time. Every segment starts with the {@link #VERSION} of the format it was written with, and the segments of
+ * other versions are dropped when the store is opened. The key of a result includes the version of tika, so the
+ * results of an older tika are not found anymore once it is upgraded, and age out of the store like any other.
+ */
+final class ExtractionStore implements Closeable {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger("mapper.attachment.store");
+
+    static final String SIZE_SETTING = "mapper.attachment.store.size";
+
+    /** a store that never holds anything */
+    static final ExtractionStore DISABLED = new ExtractionStore();
+
+    static final String DIRECTORY = "attachment_store";
+
+    static final long MAX_SEGMENT_SIZE = new ByteSizeValue(256, ByteSizeUnit.MB).bytes();
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /** marks the start of a segment */
+    private static final int MAGIC = 0x61747873;
+
+    /**
+     * version of the format of the segments, written after {@link #MAGIC}. To be bumped whenever the layout of the
+     * results changes, or the plugin extracts other text for the same key.
+     */
+    static final int VERSION = 1;
+
+    /** magic and version of every segment */
+    private static final int SEGMENT_HEADER_SIZE = 8;
+
+    /** length and checksum of every result */
+    private static final int HEADER_SIZE = 8;
+
+    private final Path directory;
+
+    private final long maxSize;
+
+    private final int segmentSize;
+
+    private final FileChannel lockChannel;
+
+    private final FileLock lock;
+
+    /** the segments, oldest first; the last one is written to */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    /** the location of each result, by hash of its key */
+    private final ConcurrentMap<BytesRef, Location> locations = new ConcurrentHashMap<>();
+
+    private final CounterMetric hits = new CounterMetric();
+
+    private final CounterMetric misses = new CounterMetric();
+
+    private final CounterMetric evictions = new CounterMetric();
+
+    private ExtractionStore() {
+        this.directory = null;
+        this.maxSize = 0;
+        this.segmentSize = 0;
+        this.lockChannel = null;
+        this.lock = null;
+    }
+
+    /**
+     * Opens the store in {@code directory}, with the results of the previous runs.
+     *
+     * @throws IOException if the directory cannot be used, for instance because another node uses it
+     */
+    ExtractionStore(Path directory, ByteSizeValue size) throws IOException {
+        this.directory = directory;
+        this.maxSize = size.bytes();
+        this.segmentSize = (int) Math.min(MAX_SEGMENT_SIZE, maxSize / 8);
+        if (segmentSize <= SEGMENT_HEADER_SIZE + HEADER_SIZE) {
+            throw new IllegalArgumentException("[" + SIZE_SETTING + "] must be at least [" + 8 * (SEGMENT_HEADER_SIZE + HEADER_SIZE + 1)
+                    + "b] but was [" + size + "]");
+        }
+        Files.createDirectories(directory);
+        this.lockChannel = FileChannel.open(directory.resolve("write.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        boolean success = false;
+        try {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException("[" + directory + "] is used by another node");
+            }
+            this.lock = lock;
+            load();
+            success = true;
+        } finally {
+            if (success == false) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Opens the store the node settings ask for under {@code nodePath}, the data path of the node, or returns
+     * {@link #DISABLED} if they ask for none or it cannot be opened. A node that cannot use its store keeps working, it
+     * just extracts everything.
+     */
+    static ExtractionStore build(Settings settings, Path nodePath) {
+        ByteSizeValue size = settings.getAsBytesSize(SIZE_SETTING, new ByteSizeValue(0));
+        if (size.bytes() <= 0) {
+            return DISABLED;
+        }
+        Path directory = nodePath.resolve(DIRECTORY);
+        try {
+            return new ExtractionStore(directory, size);
+        } catch (IOException e) {
+            logger.warn("failed to open the attachment extraction store in [{}], extraction results will not be stored", e, directory);
+            return DISABLED;
+        }
+    }
+
+    private void load() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.debug("ignoring [{}] in the attachment extraction store", file);
+                }
+            }
+        }
+        Collections.sort(generations);
+        for (long generation : generations) {
+            Segment segment = Segment.open(segmentPath(generation), generation, -1);
+            if (segment.version() != VERSION) {
+                logger.debug("dropping [{}] from the attachment extraction store, it has another format", segment.path);
+                segment.channel.close();
+                Files.delete(segment.path);
+                continue;
+            }
+            segments.addLast(segment);
+            scan(segment);
+        }
+        if (segments.isEmpty() || segments.peekLast().buffer.capacity() != segmentSize) {
+            // a new segment if there is none yet, or if the size of the store changed since
+            roll();
+        }
+        while ((long) segments.size() * segmentSize > maxSize && segments.size() > 1) {
+            evictOldest();
+        }
+        logger.debug("opened the attachment extraction store in [{}] with [{}] results in [{}] segments", directory,
+                locations.size(), segments.size());
+    }
+
+    /** indexes the results of a segment, up to the first one that is incomplete or corrupt */
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = SEGMENT_HEADER_SIZE;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - HEADER_SIZE) {
+                break;
+            }
+            byte[] record = read(buffer, position, length);
+            if (record == null) {
+                break;
+            }
+            try {
+                StreamInput in = StreamInput.wrap(record);
+                locations.put(new BytesRef(hash(in.readByteArray())), new Location(segment, position, length));
+            } catch (IOException e) {
+                break;
+            }
+            position += HEADER_SIZE + length;
+        }
+        segment.end = position;
+    }
+
+    /** the record at {@code position}, or {@code null} if it does not match its checksum */
+    private static byte[] read(ByteBuffer buffer, int position, int length) {
+        byte[] record = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + HEADER_SIZE);
+        view.get(record);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, length);
+        return (int) crc.getValue() == buffer.getInt(position + 4) ? record : null;
+    }
+
+    /**
+     * returns the stored result of the extraction of {@code key}, or {@code null} if there is none
+     */
+    ExtractedContent get(ExtractionCache.Key key) throws IOException {
+        if (enabled() == false) {
+            return null;
+        }
+        byte[] keyBytes = keyBytes(key);
+        if (keyBytes == null) {
+            return null;
+        }
+        Location location = locations.get(new BytesRef(hash(keyBytes)));
+        byte[] record = location == null ? null : read(location.segment.buffer, location.position, location.length);
+        if (record == null) {
+            misses.inc();
+            return null;
+        }
+        StreamInput in = StreamInput.wrap(record);
+        if (new BytesRef(in.readByteArray()).bytesEquals(new BytesRef(keyBytes)) == false) {
+            misses.inc();
+            return null;
+        }
+        String text = in.readString();
+        Metadata metadata = new Metadata();
+        int names = in.readVInt();
+        for (int i = 0; i < names; i++) {
+            String name = in.readString();
+            for (String value : in.readStringArray()) {
+                metadata.add(name, value);
+            }
+        }
+        hits.inc();
+        return new ExtractedContent(text, metadata);
+    }
+
+    /**
+     * stores the result of the extraction of {@code key}, unless it is stored already or too large
+     */
+    void put(ExtractionCache.Key key, String text, Metadata metadata) throws IOException {
+        if (enabled() == false) {
+            return;
+        }
+        byte[] keyBytes = keyBytes(key);
+        if (keyBytes == null) {
+            return;
+        }
+        BytesRef hash = new BytesRef(hash(keyBytes));
+        if (locations.containsKey(hash)) {
+            return;
+        }
+        BytesStreamOutput out = new BytesStreamOutput();
+        out.writeByteArray(keyBytes);
+        out.writeString(text);
+        String[] names = metadata.names();
+        out.writeVInt(names.length);
+        for (String name : names) {
+            out.writeString(name);
+            out.writeStringArray(metadata.getValues(name));
+        }
+        byte[] record = out.bytes().toBytes();
+        if (record.length > segmentSize - SEGMENT_HEADER_SIZE - HEADER_SIZE) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        synchronized (this) {
+            if (lock.isValid() == false || locations.containsKey(hash)) {
+                return;
+            }
+            Segment segment = segments.peekLast();
+            if (segment.end + HEADER_SIZE + record.length > segment.buffer.capacity()) {
+                segment.buffer.force();
+                roll();
+                segment = segments.peekLast();
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(segment.end);
+            // the length goes last, a reader never sees a result that is not written completely
+            buffer.putInt(0).putInt((int) crc.getValue()).put(record);
+            buffer.putInt(segment.end, record.length);
+            locations.put(hash, new Location(segment, segment.end, record.length));
+            segment.end += HEADER_SIZE + record.length;
+        }
+    }
+
+    /** starts a new segment, dropping the oldest ones if the store is full */
+    private void roll() throws IOException {
+        long generation = segments.isEmpty() ? 0 : segments.peekLast().generation + 1;
+        segments.addLast(Segment.open(segmentPath(generation), generation, segmentSize));
+        while ((long) segments.size() * segmentSize > maxSize && segments.size() > 1) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() throws IOException {
+        Segment oldest = segments.removeFirst();
+        int before = locations.size();
+        locations.values().removeIf(location -> location.segment == oldest);
+        evictions.inc(before - locations.size());
+        // readers may still use the mapping, which stays valid until it is garbage collected
+        oldest.channel.close();
+        Files.deleteIfExists(oldest.path);
+    }
+
+    private Path segmentPath(long generation) {
+        return directory.resolve(String.format(Locale.ROOT, "%019d", generation) + SEGMENT_SUFFIX);
+    }
+
+    /** the key in a form that is the same from one run to the next, or {@code null} if it has none */
+    private static byte[] keyBytes(ExtractionCache.Key key) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        return key.writeTo(out) ? out.bytes().toBytes() : null;
+    }
+
+    private static byte[] hash(byte[] keyBytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(keyBytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    boolean enabled() {
+        return directory != null;
+    }
+
+    long hits() {
+        return hits.count();
+    }
+
+    long misses() {
+        return misses.count();
+    }
+
+    long evictions() {
+        return evictions.count();
+    }
+
+    int count() {
+        return locations.size();
+    }
+
+    /** disk space used by the segments */
+    synchronized long sizeInBytes() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.buffer.capacity();
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (enabled() == false) {
+            return;
+        }
+        List<Closeable> closeables = new ArrayList<>();
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            closeables.add(segment.channel);
+        }
+        segments.clear();
+        locations.clear();
+        // closing the channel releases the lock
+        closeables.add(lockChannel);
+        IOUtils.close(closeables);
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long generation;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        /** where the next result goes */
+        int end;
+
+        private Segment(Path path, long generation, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.generation = generation;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.end = SEGMENT_HEADER_SIZE;
+        }
+
+        /** the version of the format of the segment, or -1 if it has none */
+        int version() {
+            if (buffer.capacity() < SEGMENT_HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                return -1;
+            }
+            return buffer.getInt(4);
+        }
+
+        /**
+         * maps a new segment of {@code size} bytes, allocated on disk first, or the existing segment at {@code path} if
+         * {@code size} is negative
+         */
+        static Segment open(Path path, long generation, int size) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean success = false;
+            try {
+                long length = size < 0 ? Math.min(channel.size(), Integer.MAX_VALUE) : size;
+                if (size >= 0) {
+                    allocate(channel, size);
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                if (size >= 0) {
+                    buffer.putInt(0, MAGIC).putInt(4, VERSION);
+                }
+                success = true;
+                return new Segment(path, generation, channel, buffer);
+            } finally {
+                if (success == false) {
+                    IOUtils.closeWhileHandlingException(channel);
+                    if (size >= 0) {
+                        IOUtils.deleteFilesIgnoringExceptions(path);
+                    }
+                }
+            }
+        }
+
+        /** writes zeros up to {@code size}, so that the disk has room for the whole segment */
+        private static void allocate(FileChannel channel, long size) throws IOException {
+            ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+            long position = channel.size();
+            while (position < size) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), size - position));
+                while (zeros.hasRemaining()) {
+                    position += channel.write(zeros, position);
+                }
+            }
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int position;
+        final int length;
+
+        Location(Segment segment, int position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+}
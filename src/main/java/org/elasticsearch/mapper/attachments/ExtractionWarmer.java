@@ -0,0 +1,144 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.metadata.Metadata;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a small bundled corpus through {@link TikaImpl} and language detection, so the parsers are loaded and
+ * compiled before the first attachments come in. Without it, the first attachments indexed after a node (re)start
+ * are much slower than the rest.
+ * <p>
+ * Disabled by default, it is turned on with {@code mapper.attachment.warmup.enabled} and runs the corpus
+ * {@code mapper.attachment.warmup.iterations} times on a background thread, logging when it is done.
+ */
+final class ExtractionWarmer implements Runnable {
+
+    static final String ENABLED_SETTING = "mapper.attachment.warmup.enabled";
+    static final String ITERATIONS_SETTING = "mapper.attachment.warmup.iterations";
+    static final int DEFAULT_ITERATIONS = 20;
+
+    /** one small document per format family, under warmup/ next to this class */
+    static final String[] CORPUS = {
+            "sample.txt", "sample.html", "sample.rtf", "sample.pdf", "sample.docx", "sample.odt"
+    };
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger("mapper.attachment.warmup");
+
+    private final int iterations;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile int parsed;
+
+    private volatile int failed;
+
+    ExtractionWarmer(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("[" + ITERATIONS_SETTING + "] must be at least 1 but was [" + iterations + "]");
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * starts warming up on a background thread if {@code mapper.attachment.warmup.enabled} is set, and returns
+     * the warmer, or returns {@code null} if warm-up is disabled
+     */
+    static ExtractionWarmer start(Settings settings) {
+        if (settings.getAsBoolean(ENABLED_SETTING, false) == false) {
+            return null;
+        }
+        ExtractionWarmer warmer = new ExtractionWarmer(settings.getAsInt(ITERATIONS_SETTING, DEFAULT_ITERATIONS));
+        EsExecutors.daemonThreadFactory(settings, "attachment_warmup").newThread(warmer).start();
+        return warmer;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            byte[][] documents = new byte[CORPUS.length][];
+            for (int i = 0; i < CORPUS.length; i++) {
+                documents[i] = load(CORPUS[i]);
+            }
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                for (int i = 0; i < documents.length; i++) {
+                    try {
+                        // 100000 chars, like the default of index.mapping.attachment.indexed_chars
+                        String text = TikaImpl.parse(documents[i], new Metadata(), 100000);
+                        LanguageDetector.detect(text, LanguageDetector.DEFAULT_SAMPLE_CHARS);
+                        parsed++;
+                    } catch (Throwable t) {
+                        // warming up must never get in the way, this document will just be cold
+                        failed++;
+                        logger.debug("failed to warm up with [{}]", t, CORPUS[i]);
+                    }
+                }
+            }
+            logger.info("warm-up done: parsed [{}] attachments in [{}] iterations, [{}] failed, took [{}]",
+                    parsed, iterations, failed, TimeValue.timeValueNanos(System.nanoTime() - start));
+        } catch (Throwable t) {
+            logger.warn("failed to warm up attachment extraction", t);
+        } finally {
+            done.countDown();
+        }
+    }
+
+    private static byte[] load(String name) throws IOException {
+        try (InputStream stream = ExtractionWarmer.class.getResourceAsStream("warmup/" + name)) {
+            if (stream == null) {
+                throw new IOException("missing warm-up document [" + name + "]");
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Streams.copy(stream, bytes);
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * waits for the warm-up to be done, returning {@code false} if it is still running after {@code timeout}
+     */
+    boolean awaitCompletion(TimeValue timeout) throws InterruptedException {
+        return done.await(timeout.nanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /** number of documents parsed so far */
+    int parsed() {
+        return parsed;
+    }
+
+    /** number of documents that could not be parsed so far */
+    int failed() {
+        return failed;
+    }
+}
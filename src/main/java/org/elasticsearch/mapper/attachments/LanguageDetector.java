@@ -0,0 +1,301 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.language.LanguageIdentifier;
+import org.elasticsearch.ElasticsearchException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Detects the language of a text the way tika's {@link LanguageIdentifier} does: same trigram profiles, same
+ * distance, same result when given the whole text. It differs in two ways:
+ * <ul>
+ * <li>The profiles are loaded once into sorted primitive arrays that all threads share, while tika keeps them as
+ * maps of strings and builds a map of strings for every text.</li>
+ * <li>Only a sample of a long text is profiled: up to {@code sampleChars} characters, taken in {@link #WINDOWS}
+ * windows spread over the text. The windows are added one at a time and detection stops as soon as two windows in
+ * a row agree on a language that is clearly ahead: within tika's certainty limit, or {@link #MARGIN} times closer
+ * than the runner-up. Real text rarely gets within tika's limit, but beyond a few thousand characters the closest
+ * language is usually well ahead and does not change anymore.</li>
+ * </ul>
+ */
+final class LanguageDetector {
+
+    /** Characters sampled by default, see {@code index.mapping.attachment.detect_language_chars} */
+    static final int DEFAULT_SAMPLE_CHARS = 10000;
+
+    /** Number of windows the sample of a long text is taken in */
+    static final int WINDOWS = 4;
+
+    /** Same limit as {@link LanguageIdentifier#isReasonablyCertain()} */
+    static final double CERTAINTY_LIMIT = 0.022;
+
+    /** How much further than the closest language the runner-up must be to stop sampling */
+    static final double MARGIN = 1.1;
+
+    private static final char SEPARATOR = '_';
+
+    private LanguageDetector() {}
+
+    /**
+     * Returns the language of the text, profiling at most {@code sampleChars} characters of it. A negative
+     * {@code sampleChars} profiles the whole text.
+     */
+    static String detect(CharSequence text, int sampleChars) {
+        Sample sample = new Sample();
+        if (sampleChars < 0 || text.length() <= sampleChars) {
+            sample.add(text, 0, text.length());
+            return Profiles.closest(sample).language;
+        }
+        int window = Math.max(1, sampleChars / WINDOWS);
+        Match previous = null;
+        for (int i = 0; i < WINDOWS; i++) {
+            int start = (int) ((long) (text.length() - window) * i / (WINDOWS - 1));
+            int end = start + window;
+            if (start > 0) {
+                // start at a word boundary rather than in the middle of a word, the window is still cut at its end
+                while (start < end && Character.isLetter(Character.toLowerCase(text.charAt(start - 1)))) {
+                    start++;
+                }
+            }
+            sample.add(text, start, end);
+            Match match = Profiles.closest(sample);
+            if (previous != null && previous.language.equals(match.language) && match.isClear()) {
+                return match.language;
+            }
+            previous = match;
+        }
+        return previous.language;
+    }
+
+    /** Packs a trigram into a long, keeping the order of its characters */
+    static long trigram(char first, char second, char third) {
+        return ((long) first << 32) | ((long) second << 16) | third;
+    }
+
+    /** The closest language to a sample, its distance and the distance of the runner-up */
+    static final class Match {
+        final String language;
+        final double distance;
+        final double runnerUp;
+
+        Match(String language, double distance, double runnerUp) {
+            this.language = language;
+            this.distance = distance;
+            this.runnerUp = runnerUp;
+        }
+
+        boolean isClear() {
+            return distance < CERTAINTY_LIMIT || runnerUp >= distance * MARGIN;
+        }
+    }
+
+    /**
+     * The trigrams of a sample, appended as packed longs. The trigrams are generated like tika's
+     * {@code ProfilingWriter} does: letters are lowercased, anything else separates words and words are padded with
+     * one separator on each side.
+     */
+    static final class Sample {
+        long[] trigrams = new long[256];
+        int size;
+
+        void add(CharSequence text, int start, int end) {
+            // every range starts like a new text, right after a separator
+            char first = 0;
+            char second = 0;
+            char third = SEPARATOR;
+            int letters = 1;
+            for (int i = start; i < end; i++) {
+                char c = Character.toLowerCase(text.charAt(i));
+                if (Character.isLetter(c) == false) {
+                    c = SEPARATOR;
+                }
+                first = second;
+                second = third;
+                third = c;
+                if (++letters >= 3) {
+                    if (size == trigrams.length) {
+                        trigrams = Arrays.copyOf(trigrams, size << 1);
+                    }
+                    trigrams[size++] = trigram(first, second, third);
+                }
+                if (c == SEPARATOR) {
+                    letters = 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * The profiles tika ships with, loaded on first use. All profiles share one sorted array of trigrams, and each
+     * trigram points to the frequencies it has in the languages it appears in, so a trigram of a sample is looked up
+     * once for all languages.
+     */
+    static final class Profiles {
+
+        static final String[] LANGUAGES;
+
+        /** sorted trigrams of all profiles */
+        private static final long[] TRIGRAMS;
+
+        /** the entries of {@code TRIGRAMS[i]} are at {@code [OFFSETS[i], OFFSETS[i + 1])} */
+        private static final int[] OFFSETS;
+
+        private static final int[] ENTRY_LANGUAGES;
+
+        /** count of the trigram in a profile divided by the count of all trigrams of the profile */
+        private static final double[] ENTRY_FREQUENCIES;
+
+        /** sum of the squared frequencies of each profile */
+        private static final double[] SQUARES;
+
+        static {
+            try {
+                Properties properties = new Properties();
+                try (InputStream stream = LanguageIdentifier.class.getResourceAsStream("tika.language.properties")) {
+                    properties.load(stream);
+                }
+                String[] languages = properties.getProperty("languages").split(",");
+                TreeMap<Long, List<double[]>> entries = new TreeMap<>();
+                SQUARES = new double[languages.length];
+                int count = 0;
+                for (int language = 0; language < languages.length; language++) {
+                    languages[language] = languages[language].trim();
+                    Map<Long, Long> profile = load(languages[language]);
+                    long total = 0;
+                    for (long c : profile.values()) {
+                        total += c;
+                    }
+                    for (Map.Entry<Long, Long> e : profile.entrySet()) {
+                        double frequency = e.getValue() / Math.max((double) total, 1d);
+                        List<double[]> list = entries.get(e.getKey());
+                        if (list == null) {
+                            list = new ArrayList<>();
+                            entries.put(e.getKey(), list);
+                        }
+                        list.add(new double[] { language, frequency });
+                        SQUARES[language] += frequency * frequency;
+                        count++;
+                    }
+                }
+                LANGUAGES = languages;
+                TRIGRAMS = new long[entries.size()];
+                OFFSETS = new int[entries.size() + 1];
+                ENTRY_LANGUAGES = new int[count];
+                ENTRY_FREQUENCIES = new double[count];
+                int i = 0;
+                int entry = 0;
+                for (Map.Entry<Long, List<double[]>> e : entries.entrySet()) {
+                    TRIGRAMS[i] = e.getKey();
+                    OFFSETS[i] = entry;
+                    for (double[] languageAndFrequency : e.getValue()) {
+                        ENTRY_LANGUAGES[entry] = (int) languageAndFrequency[0];
+                        ENTRY_FREQUENCIES[entry] = languageAndFrequency[1];
+                        entry++;
+                    }
+                    i++;
+                }
+                OFFSETS[i] = entry;
+            } catch (IOException e) {
+                throw new ElasticsearchException("failed to load the language profiles", e);
+            }
+        }
+
+        private static Map<Long, Long> load(String language) throws IOException {
+            Map<Long, Long> profile = new TreeMap<>();
+            try (InputStream stream = LanguageIdentifier.class.getResourceAsStream(language + ".ngp")) {
+                if (stream == null) {
+                    throw new IOException("no profile for language [" + language + "]");
+                }
+                BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() > 0 && line.startsWith("#") == false) {
+                        int space = line.indexOf(' ');
+                        if (space != 3) {
+                            throw new IOException("unexpected trigram [" + line + "] in profile of [" + language + "]");
+                        }
+                        long trigram = trigram(line.charAt(0), line.charAt(1), line.charAt(2));
+                        Long previous = profile.get(trigram);
+                        profile.put(trigram, Long.parseLong(line.substring(space + 1)) + (previous == null ? 0 : previous));
+                    }
+                }
+            }
+            return profile;
+        }
+
+        /**
+         * Returns the profile closest to the sample. The distance is tika's: the euclidean distance between the
+         * frequencies of the trigrams of the sample and of the profile. Expanded, it only needs the trigrams they
+         * have in common: {@code sqrt(sum(a^2) / A^2 + sum(b^2) - 2 * sum(a * b) / A)} with {@code a} the counts in
+         * the sample, {@code A} their total and {@code b} the frequencies of the profile.
+         */
+        static Match closest(Sample sample) {
+            Arrays.sort(sample.trigrams, 0, sample.size);
+            double total = Math.max(sample.size, 1);
+            double sampleSquares = 0;
+            double[] products = new double[LANGUAGES.length];
+            int from = 0;
+            for (int i = 0; i < sample.size; ) {
+                long trigram = sample.trigrams[i];
+                int count = 0;
+                while (i < sample.size && sample.trigrams[i] == trigram) {
+                    count++;
+                    i++;
+                }
+                sampleSquares += (double) count * count;
+                int index = Arrays.binarySearch(TRIGRAMS, from, TRIGRAMS.length, trigram);
+                if (index >= 0) {
+                    for (int entry = OFFSETS[index]; entry < OFFSETS[index + 1]; entry++) {
+                        products[ENTRY_LANGUAGES[entry]] += count * ENTRY_FREQUENCIES[entry];
+                    }
+                    from = index + 1;
+                } else {
+                    from = -index - 1;
+                }
+            }
+            int best = 0;
+            double bestSquare = Double.MAX_VALUE;
+            double secondSquare = Double.MAX_VALUE;
+            for (int language = 0; language < LANGUAGES.length; language++) {
+                double square = sampleSquares / (total * total) + SQUARES[language] - 2 * products[language] / total;
+                if (square < bestSquare) {
+                    secondSquare = bestSquare;
+                    bestSquare = square;
+                    best = language;
+                } else if (square < secondSquare) {
+                    secondSquare = square;
+                }
+            }
+            return new Match(LANGUAGES[best], Math.sqrt(Math.max(bestSquare, 0)), Math.sqrt(Math.max(secondSquare, 0)));
+        }
+    }
+}
@@ -19,11 +19,45 @@
 
 package org.elasticsearch.mapper.attachments;
 
+import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterModule;
+import org.elasticsearch.cluster.settings.Validator;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.AbstractModule;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestModule;
+
+import java.util.Collection;
+import java.util.Collections;
 
 public class MapperAttachmentsPlugin extends Plugin {
 
+    private final Settings settings;
+
+    private final ExtractionService extractionService;
+
+    /** transport clients never parse attachments */
+    private final boolean node;
+
+    public MapperAttachmentsPlugin(Settings settings) {
+        this.settings = settings;
+        this.node = "node".equals(settings.get(Client.CLIENT_TYPE_SETTING, "node"));
+        // the store is opened once the node starts, see ExtractionServiceLifecycle
+        this.extractionService = new ExtractionService(settings, ExtractionCache.build(settings));
+        if (node) {
+            ExtractionWarmer.start(settings);
+        }
+    }
+
     @Override
     public String name() {
         return "mapper-attachments";
@@ -35,7 +69,62 @@ public class MapperAttachmentsPlugin extends Plugin {
     }
 
     @Override
-    public void onIndexService(IndexService indexService) {
-        indexService.mapperService().documentMapperParser().putTypeParser("attachment", new AttachmentMapper.TypeParser());
+    public Collection<Module> nodeModules() {
+        return Collections.<Module>singletonList(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ExtractionService.class).toInstance(extractionService);
+                if (node) {
+                    bind(BreakerBinding.class).asEagerSingleton();
+                }
+            }
+        });
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> nodeServices() {
+        return Collections.<Class<? extends LifecycleComponent>>singletonList(ExtractionServiceLifecycle.class);
+    }
+
+    public void onModule(ActionModule module) {
+        module.registerAction(AttachmentStatsAction.INSTANCE, TransportAttachmentStatsAction.class);
+        if (node && settings.getAsBoolean(BulkExtractionFilter.ENABLED_SETTING, false)) {
+            module.registerFilter(BulkExtractionFilter.class);
+        }
+    }
+
+    public void onModule(RestModule module) {
+        module.addRestAction(RestAttachmentStatsAction.class);
+        module.addRestAction(RestCatAttachmentsAction.class);
+    }
+
+    public void onModule(ClusterModule module) {
+        for (String setting : ExtractionSlowLog.THRESHOLD_SETTINGS) {
+            module.registerIndexDynamicSetting(setting, Validator.TIME);
+        }
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        // the slow log follows the updates of the index settings. Only the index module holds on to it, so it goes
+        // away with the index, or with the module if the index fails to be created
+        final ExtractionSlowLog slowLog = ExtractionSlowLog.build(indexModule.getSettings());
+        indexModule.addIndexSettingsListener(slowLog::refresh);
+        indexModule.addIndexEventListener(new IndexEventListener() {
+            @Override
+            public void afterIndexCreated(IndexService indexService) {
+                indexService.mapperService().documentMapperParser().putTypeParser("attachment",
+                        new AttachmentMapper.TypeParser(extractionService, slowLog));
+            }
+        });
+    }
+
+    /** hands the request circuit breaker of the node over to the extraction service */
+    public static class BreakerBinding {
+
+        @Inject
+        public BreakerBinding(CircuitBreakerService breakerService, ExtractionService extractionService) {
+            extractionService.breaker(breakerService.getBreaker(CircuitBreaker.REQUEST));
+        }
     }
 }
@@ -0,0 +1,309 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.extractor.EmbeddedDocumentExtractor;
+import org.apache.tika.extractor.ParsingEmbeddedDocumentExtractor;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.tika.sax.XHTMLContentHandler.XHTML;
+
+/**
+ * Extracts the documents embedded in a container (zip based office documents, office documents with embedded
+ * objects, ...) on a fork join pool, while the container itself is still being parsed.
+ * <p>
+ * Tika parses embedded documents inline, at the point where the container refers to them. Here, the embedded
+ * document is read into memory and parsed by a separate task instead, and only its position in the text of the
+ * container is remembered. Once the container is done, {@link #assemble} puts the text of the embedded documents
+ * back at their positions, so the text is the same as if they were parsed inline, cut at the same limit.
+ * Once the container text reaches the limit, no more embedded documents are extracted.
+ * <p>
+ * Embedded documents that are only handed over as an open container (OLE objects in OLE2 office documents),
+ * rather than as a stream, can't be read ahead and are parsed inline, like tika would. So are embedded documents
+ * larger than {@link #MAX_ENTRY_BYTES}, those that would take the bytes read ahead for the container over
+ * {@link #MAX_DOCUMENT_BYTES}, and those the {@link CircuitBreaker} of the {@link ParseContext} has no room for.
+ * The bytes read ahead are accounted on that breaker until their extraction is done or cancelled.
+ */
+final class ParallelEmbeddedExtractor implements EmbeddedDocumentExtractor {
+
+    /** the most bytes of a single embedded document that are read ahead */
+    static final int MAX_ENTRY_BYTES = 8 * 1024 * 1024;
+
+    /** the most bytes that are read ahead for the documents embedded in a container at the same time */
+    static final long MAX_DOCUMENT_BYTES = 32 * 1024 * 1024;
+
+    private static final int INITIAL_ENTRY_BYTES = 8 * 1024;
+
+    private final ParseContext context;
+    private final TikaImpl.TextBuffer buffer;
+    private final int limit;
+    private final ForkJoinPool pool;
+    private final EmbeddedDocumentExtractor inline;
+    private final CircuitBreaker breaker;
+
+    /** bytes read ahead for embedded documents whose extraction is not done yet */
+    private final AtomicLong buffered = new AtomicLong();
+
+    /** embedded documents being extracted, in document order */
+    private final List<Embedded> embedded = new ArrayList<>();
+
+    ParallelEmbeddedExtractor(ParseContext context, TikaImpl.TextBuffer buffer, int limit, ForkJoinPool pool) {
+        this.context = context;
+        this.buffer = buffer;
+        this.limit = limit;
+        this.pool = pool;
+        this.inline = new ParsingEmbeddedDocumentExtractor(context);
+        this.breaker = context.get(CircuitBreaker.class);
+    }
+
+    @Override
+    public boolean shouldParseEmbedded(Metadata metadata) {
+        return inline.shouldParseEmbedded(metadata);
+    }
+
+    @Override
+    public void parseEmbedded(InputStream stream, ContentHandler handler, Metadata metadata, boolean outputHtml)
+            throws SAXException, IOException {
+        if (stream instanceof TikaInputStream && ((TikaInputStream) stream).getOpenContainer() != null) {
+            inline.parseEmbedded(stream, handler, metadata, outputHtml);
+            return;
+        }
+
+        Embedded document = null;
+        if (limit < 0 || buffer.length() < limit) {
+            document = new Embedded();
+            boolean readAhead = false;
+            try {
+                readAhead = document.read(stream);
+                if (readAhead == false) {
+                    // too large to read ahead: parse it inline, starting with what was read already
+                    inline.parseEmbedded(document.prepend(stream), handler, metadata, outputHtml);
+                }
+            } finally {
+                if (readAhead == false) {
+                    document.release();
+                }
+            }
+            if (readAhead == false) {
+                return;
+            }
+        }
+
+        // same markup as the inline extraction
+        if (outputHtml) {
+            AttributesImpl attributes = new AttributesImpl();
+            attributes.addAttribute("", "class", "class", "CDATA", "package-entry");
+            handler.startElement(XHTML, "div", "div", attributes);
+        }
+        String name = metadata.get(Metadata.RESOURCE_NAME_KEY);
+        if (name != null && name.length() > 0 && outputHtml) {
+            handler.startElement(XHTML, "h1", "h1", new AttributesImpl());
+            char[] chars = name.toCharArray();
+            handler.characters(chars, 0, chars.length);
+            handler.endElement(XHTML, "h1", "h1");
+        }
+
+        if (document != null) {
+            // the text goes after the markup, where the inline extraction writes it
+            document.offset = buffer.length();
+            Metadata embeddedMetadata = new Metadata();
+            ExtractedContent.copy(metadata, embeddedMetadata);
+            int remaining = limit < 0 ? -1 : Math.max(0, limit - document.offset);
+            Embedded extraction = document;
+            extraction.task = ForkJoinTask.adapt(
+                    () -> extraction.extract(embeddedMetadata, context.get(Parser.class), remaining));
+            if (ForkJoinTask.getPool() == pool) {
+                // embedded in an embedded document: stay on the worker, it helps out while waiting for the task
+                extraction.task.fork();
+            } else {
+                pool.execute(extraction.task);
+            }
+            embedded.add(extraction);
+        }
+
+        if (outputHtml) {
+            handler.endElement(XHTML, "div", "div");
+        }
+    }
+
+    /**
+     * returns the text of the container with the text of the embedded documents at their positions,
+     * cut at the limit
+     */
+    String assemble() throws IOException {
+        StringBuilder text = new StringBuilder(buffer.length());
+        int from = 0;
+        for (Embedded document : embedded) {
+            buffer.appendTo(text, from, document.offset);
+            from = document.offset;
+            if (limit >= 0 && text.length() >= limit) {
+                break;
+            }
+            text.append(document.text());
+        }
+        if (limit < 0 || text.length() < limit) {
+            buffer.appendTo(text, from, buffer.length());
+        }
+        if (limit >= 0 && text.length() > limit) {
+            text.setLength(limit);
+        }
+        return text.toString();
+    }
+
+    /** stops the extractions that did not start yet, once their text is not needed anymore */
+    void cancel() {
+        for (Embedded document : embedded) {
+            document.task.cancel(false);
+            if (document.claim()) {
+                // never started, so it won't release its bytes itself
+                document.release();
+            }
+        }
+    }
+
+    private final class Embedded {
+        /** where the text goes in the text of the container, set once the markup before it is written */
+        int offset;
+        ForkJoinTask<String> task;
+
+        /** the bytes read ahead, until the extraction is done with them */
+        byte[] bytes = new byte[0];
+        int length;
+
+        /** the byte after {@link #bytes}, read to find out that the stream does not end there */
+        private int next = -1;
+
+        /** bytes accounted on the breaker and in {@link #buffered} */
+        private long accounted;
+
+        /** set by whoever gets to run or drop the extraction first, that one releases the bytes */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        /**
+         * reads the whole stream, unless it is larger than the limits for reading ahead or the breaker has no room
+         * for it. Returns false in that case, with the bytes read so far.
+         */
+        boolean read(InputStream stream) throws IOException {
+            while (true) {
+                if (length == bytes.length) {
+                    long room = Math.min(MAX_ENTRY_BYTES, MAX_DOCUMENT_BYTES - buffered.get() + bytes.length);
+                    int size = (int) Math.min(Math.max(INITIAL_ENTRY_BYTES, (long) bytes.length * 2), room);
+                    if (size <= length || grow(size) == false) {
+                        // no room left: done only if this was the end of the stream
+                        next = stream.read();
+                        return next < 0;
+                    }
+                }
+                int read = stream.read(bytes, length, bytes.length - length);
+                if (read < 0) {
+                    return true;
+                }
+                length += read;
+            }
+        }
+
+        /** returns the bytes read so far followed by the rest of {@code stream} */
+        InputStream prepend(InputStream stream) {
+            InputStream read = StreamInput.wrap(bytes, 0, length);
+            if (next >= 0) {
+                read = new SequenceInputStream(read, StreamInput.wrap(new byte[] {(byte) next}));
+            }
+            return new SequenceInputStream(read, stream);
+        }
+
+        private boolean grow(int size) {
+            long bytesToAdd = size - bytes.length;
+            if (breaker != null) {
+                try {
+                    breaker.addEstimateBytesAndMaybeBreak(bytesToAdd, "attachment embedded document");
+                } catch (CircuitBreakingException e) {
+                    return false;
+                }
+            }
+            accounted += bytesToAdd;
+            buffered.addAndGet(bytesToAdd);
+            bytes = Arrays.copyOf(bytes, size);
+            return true;
+        }
+
+        String extract(Metadata metadata, Parser parser, int limit) throws IOException {
+            if (claim() == false) {
+                return "";
+            }
+            try {
+                return TikaImpl.parse(StreamInput.wrap(bytes, 0, length), metadata, limit, parser, pool, true, breaker);
+            } catch (TikaException e) {
+                // like the inline extraction, a broken embedded document does not fail its container
+                return "";
+            } finally {
+                bytes = null;
+                release();
+            }
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        void release() {
+            if (accounted > 0) {
+                buffered.addAndGet(-accounted);
+                if (breaker != null) {
+                    breaker.addWithoutBreaking(-accounted);
+                }
+                accounted = 0;
+            }
+        }
+
+        String text() throws IOException {
+            try {
+                return task.join();
+            } catch (RuntimeException e) {
+                // adapted callables wrap their checked exceptions
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+}
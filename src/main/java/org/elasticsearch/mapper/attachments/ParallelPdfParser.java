@@ -0,0 +1,236 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.util.PDFTextStripper;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AbstractParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.XHTMLContentHandler;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Extracts the text of a PDF in ranges of pages, on the {@link ForkJoinPool} of the {@link ParseContext}.
+ * <p>
+ * PDFBox documents are not thread safe, so every range loads its own copy of the document. The ranges are
+ * scheduled in page order, with at most {@link #MAX_CONCURRENT_RANGES} in flight (fewer if the pool has fewer
+ * threads), and their text is written out in page order too. The extraction reserved the memory of one loaded copy
+ * already; each further range in flight is accounted on the {@link CircuitBreaker} of the {@link ParseContext}, and
+ * is only scheduled if the breaker has room for it. Once the text reaches the limit, writing fails and no further
+ * ranges are scheduled. Waiting for a range can be interrupted, unless the parse runs on the pool itself.
+ * <p>
+ * The text comes straight from PDFBox rather than through tika, so it may differ from the sequential extraction in
+ * whitespace, and annotations are not extracted. Encrypted documents, and parses without a pool, go to the
+ * sequential parser.
+ */
+final class ParallelPdfParser extends AbstractParser {
+
+    private static final Set<MediaType> SUPPORTED_TYPES = Collections.singleton(MediaType.application("pdf"));
+
+    /** every range loads the document again, so don't make them too small */
+    static final int MIN_PAGES_PER_RANGE = 4;
+
+    /** the most ranges of a document that are loaded at the same time */
+    static final int MAX_CONCURRENT_RANGES = 4;
+
+    private final Parser sequential;
+
+    ParallelPdfParser(Parser sequential) {
+        this.sequential = sequential;
+    }
+
+    @Override
+    public Set<MediaType> getSupportedTypes(ParseContext context) {
+        return SUPPORTED_TYPES;
+    }
+
+    @Override
+    public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+            throws IOException, SAXException, TikaException {
+        ForkJoinPool pool = context.get(ForkJoinPool.class);
+        if (pool == null) {
+            sequential.parse(stream, handler, metadata, context);
+            return;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Streams.copy(stream, out);
+        byte[] bytes = out.toByteArray();
+
+        int pages;
+        try (PDDocument document = load(bytes)) {
+            if (document.isEncrypted()) {
+                sequential.parse(StreamInput.wrap(bytes), handler, metadata, context);
+                return;
+            }
+            pages = document.getNumberOfPages();
+            DocumentPropertiesExtractor.extractPdf(document, metadata);
+        }
+
+        CircuitBreaker breaker = context.get(CircuitBreaker.class);
+        int concurrency = Math.min(pool.getParallelism(), MAX_CONCURRENT_RANGES);
+        int ranges = Math.max(1, Math.min(concurrency * 2, pages / MIN_PAGES_PER_RANGE));
+        int pagesPerRange = (pages + ranges - 1) / ranges;
+
+        XHTMLContentHandler xhtml = new XHTMLContentHandler(handler, metadata);
+        xhtml.startDocument();
+        Deque<Range> pending = new ArrayDeque<>();
+        try {
+            int nextPage = 1;
+            while (nextPage <= pages || pending.isEmpty() == false) {
+                if (nextPage <= pages && pending.size() < concurrency) {
+                    // a lone range uses the memory reserved for the extraction
+                    long accounted = pending.isEmpty() ? 0 : reserve(breaker, bytes.length);
+                    if (accounted >= 0) {
+                        pending.add(new Range(pool, bytes, nextPage, Math.min(pages, nextPage + pagesPerRange - 1),
+                                breaker, accounted));
+                        nextPage += pagesPerRange;
+                        continue;
+                    }
+                }
+                String text = pending.poll().text();
+                // throws once the limit is reached
+                xhtml.startElement("div", "class", "page");
+                xhtml.characters(text);
+                xhtml.endElement("div");
+            }
+        } finally {
+            for (Range range : pending) {
+                range.cancel();
+            }
+        }
+        xhtml.endDocument();
+    }
+
+    /** returns the bytes accounted on the breaker, or -1 if it has no room for them */
+    private static long reserve(CircuitBreaker breaker, long bytes) {
+        if (breaker == null) {
+            return 0;
+        }
+        try {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, "attachment pdf pages");
+            return bytes;
+        } catch (CircuitBreakingException e) {
+            return -1;
+        }
+    }
+
+    /** a range of pages being extracted from its own copy of the document */
+    private static final class Range {
+        private final ForkJoinTask<String> task;
+        private final CircuitBreaker breaker;
+        private final long accounted;
+
+        /** set by whoever gets to run or drop the range first, that one releases what it accounted */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        Range(ForkJoinPool pool, byte[] bytes, int startPage, int endPage, CircuitBreaker breaker, long accounted) {
+            this.breaker = breaker;
+            this.accounted = accounted;
+            this.task = ForkJoinTask.adapt(() -> {
+                if (claimed.compareAndSet(false, true) == false) {
+                    return "";
+                }
+                try {
+                    return AccessController.doPrivileged((PrivilegedExceptionAction<String>) () -> {
+                        try (PDDocument document = load(bytes)) {
+                            PDFTextStripper stripper = new PDFTextStripper();
+                            stripper.setStartPage(startPage);
+                            stripper.setEndPage(endPage);
+                            return stripper.getText(document);
+                        }
+                    });
+                } finally {
+                    release();
+                }
+            });
+            if (ForkJoinTask.getPool() == pool) {
+                task.fork();
+            } else {
+                pool.execute(task);
+            }
+        }
+
+        String text() throws TikaException, IOException {
+            try {
+                if (ForkJoinTask.inForkJoinPool()) {
+                    // a worker helps out while it waits, but can't be interrupted
+                    return task.join();
+                }
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the pages of the PDF");
+            } catch (ExecutionException | RuntimeException e) {
+                // adapted callables wrap the checked exceptions of the privileged action
+                Throwable cause = e;
+                while ((cause instanceof ExecutionException || cause instanceof RuntimeException
+                        || cause instanceof PrivilegedActionException) && cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                throw new TikaException("Unable to extract PDF content", cause);
+            }
+        }
+
+        void cancel() {
+            task.cancel(false);
+            if (claimed.compareAndSet(false, true)) {
+                // never started, so it won't release what it accounted itself
+                release();
+            }
+        }
+
+        private void release() {
+            if (accounted != 0) {
+                breaker.addWithoutBreaking(-accounted);
+            }
+        }
+    }
+
+    private static PDDocument load(byte[] bytes) throws IOException {
+        return PDDocument.load(StreamInput.wrap(bytes));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.Table;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.action.cat.AbstractCatAction;
+import org.elasticsearch.rest.action.support.RestResponseListener;
+import org.elasticsearch.rest.action.support.RestTable;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * {@code _cat/attachments}: one row per node and content type of the {@link AttachmentStats}.
+ */
+public class RestCatAttachmentsAction extends AbstractCatAction {
+
+    @Inject
+    public RestCatAttachmentsAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(GET, "/_cat/attachments", this);
+        controller.registerHandler(GET, "/_cat/attachments/{nodeId}", this);
+    }
+
+    @Override
+    protected void documentation(StringBuilder sb) {
+        sb.append("/_cat/attachments\n");
+        sb.append("/_cat/attachments/{nodeId}\n");
+    }
+
+    @Override
+    protected void doRequest(final RestRequest request, final RestChannel channel, final Client client) {
+        AttachmentStatsRequest statsRequest = new AttachmentStatsRequest(Strings.splitStringByCommaToArray(request.param("nodeId")));
+        statsRequest.timeout(request.param("timeout"));
+        client.execute(AttachmentStatsAction.INSTANCE, statsRequest, new RestResponseListener<AttachmentStatsResponse>(channel) {
+            @Override
+            public RestResponse buildResponse(AttachmentStatsResponse response) throws Exception {
+                return RestTable.buildResponse(buildTable(request, response), channel);
+            }
+        });
+    }
+
+    @Override
+    protected Table getTableWithHeader(RestRequest request) {
+        Table table = new Table();
+        table.startHeaders();
+        table.addCell("node", "alias:n;desc:node name");
+        table.addCell("content_type", "alias:ct,type;desc:detected content type");
+        table.addCell("count", "alias:c;text-align:right;desc:extracted attachments");
+        table.addCell("input", "alias:i;text-align:right;desc:decoded size of the attachments");
+        table.addCell("chars", "alias:ch;text-align:right;desc:extracted characters");
+        table.addCell("truncated", "alias:tr;text-align:right;desc:attachments with more text than indexed_chars");
+        table.addCell("ignored_errors", "alias:ie;text-align:right;desc:failed extractions ignored by ignore_errors");
+        table.addCell("failures", "alias:f;text-align:right;desc:failed extractions that failed their document");
+        table.addCell("extraction.time", "alias:et;text-align:right;desc:time spent extracting");
+        table.addCell("extraction.p50", "alias:e50;text-align:right;desc:upper bound of the median extraction time");
+        table.addCell("extraction.p99", "alias:e99;text-align:right;desc:upper bound of the 99th percentile extraction time");
+        table.addCell("decode.time", "alias:dt;default:false;text-align:right;desc:time spent decoding base64 content");
+        table.addCell("language.count", "alias:lc;default:false;text-align:right;desc:language detections");
+        table.addCell("language.time", "alias:lt;default:false;text-align:right;desc:time spent detecting languages");
+        table.addCell("active", "alias:a;default:false;text-align:right;desc:extractions running on the node");
+        table.addCell("queued", "alias:q;default:false;text-align:right;desc:extractions waiting to start on the node");
+        table.addCell("rejected", "alias:r;default:false;text-align:right;desc:extractions rejected by the node");
+        table.addCell("timeouts", "alias:to;default:false;text-align:right;desc:extractions that ran out of time on the node");
+        table.endHeaders();
+        return table;
+    }
+
+    private Table buildTable(RestRequest request, AttachmentStatsResponse response) {
+        Table table = getTableWithHeader(request);
+        for (NodeAttachmentStats node : response) {
+            AttachmentStats stats = node.getStats();
+            for (AttachmentStats.ContentTypeStats contentType : stats.getContentTypes()) {
+                table.startRow();
+                table.addCell(node.getNode().name());
+                table.addCell(contentType.contentType());
+                table.addCell(contentType.getCount());
+                table.addCell(new ByteSizeValue(contentType.getInputBytes()));
+                table.addCell(contentType.getExtractedChars());
+                table.addCell(contentType.getTruncated());
+                table.addCell(contentType.getIgnoredErrors());
+                table.addCell(contentType.getFailures());
+                table.addCell(contentType.getExtraction().getTotal());
+                table.addCell(contentType.getExtraction().percentile(50));
+                table.addCell(contentType.getExtraction().percentile(99));
+                table.addCell(contentType.getDecode().getTotal());
+                table.addCell(contentType.getLanguageDetection().getCount());
+                table.addCell(contentType.getLanguageDetection().getTotal());
+                table.addCell(stats.getActive());
+                table.addCell(stats.getQueued());
+                table.addCell(stats.getRejected());
+                table.addCell(stats.getTimeouts());
+                table.endRow();
+            }
+        }
+        return table;
+    }
+}
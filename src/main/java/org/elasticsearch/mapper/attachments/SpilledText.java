@@ -0,0 +1,131 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.lucene.util.IOUtils;
+
+import java.io.FileInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Extracted text written to a temporary file instead of being collected on the heap, for the {@code stream_content}
+ * mode of the {@link AttachmentMapper}: tika writes the text to the file, and the content field reads it back through
+ * a {@link Reader} when the document gets analyzed. Only the first {@code prefixChars} characters are kept in memory,
+ * for language detection.
+ * <p>
+ * The file is deleted as soon as it is opened for reading, or when the reader is closed where open files cannot be
+ * deleted. If the document is never indexed, the reader is never closed, and the file is gone once the reader is
+ * garbage collected.
+ */
+final class SpilledText {
+
+    private final Path file;
+
+    private final int prefixChars;
+
+    private final StringBuilder prefix = new StringBuilder();
+
+    private final Writer out;
+
+    private long length;
+
+    private final Writer writer = new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (prefix.length() < prefixChars) {
+                prefix.append(cbuf, off, Math.min(len, prefixChars - prefix.length()));
+            }
+            out.write(cbuf, off, len);
+            length += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    };
+
+    SpilledText(Path file, int prefixChars) throws IOException {
+        this.file = file;
+        this.prefixChars = prefixChars;
+        this.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+    }
+
+    /** where tika writes the text to */
+    Writer writer() {
+        return writer;
+    }
+
+    /** the number of characters written */
+    long length() {
+        return length;
+    }
+
+    /** the first characters of the text, at most {@code prefixChars} of them */
+    String prefix() {
+        return prefix.toString();
+    }
+
+    /**
+     * Finishes writing and opens the text for reading. Closing the reader deletes the file, if it was not deleted yet.
+     */
+    Reader reader() throws IOException {
+        FileInputStream in;
+        try {
+            out.close();
+            // unlike channels, file streams release their file when they are garbage collected without being closed
+            in = new FileInputStream(file.toFile());
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+        Reader reader = new FilterReader(new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    IOUtils.deleteFilesIgnoringExceptions(file);
+                }
+            }
+        };
+        IOUtils.deleteFilesIgnoringExceptions(file);
+        return reader;
+    }
+
+    /** drops the text, when the extraction failed */
+    void discard() {
+        IOUtils.closeWhileHandlingException(out);
+        IOUtils.deleteFilesIgnoringExceptions(file);
+    }
+}
@@ -1,47 +1,268 @@
 package org.elasticsearch.mapper.attachments;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
-import org.apache.tika.Tika;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.tika.detect.CompositeDetector;
+import org.apache.tika.detect.Detector;
 import org.apache.tika.exception.TikaException;
+import org.apache.tika.extractor.EmbeddedDocumentExtractor;
+import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MediaTypeRegistry;
+import org.apache.tika.mime.MimeTypes;
 import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
 import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.io.stream.StreamInput;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
 
-/** do NOT make public */
+/**
+ * Runs tika, with the permissions of this plugin.
+ * <p>
+ * Parsing always happens inside the node's JVM: the system call filter installed at startup forbids forking
+ * processes, and the security manager does not let plugins execute programs, so parsing in worker processes is
+ * not an option. Runaway documents are bounded by the extraction time budget of {@link ExtractionService} instead.
+ * <p>
+ * do NOT make public
+ */
 final class TikaImpl {
    
-    /** subset of parsers for types we support */
-    private static final Parser PARSERS[] = new Parser[] {
+    /**
+     * subset of formats we support, by name, in the order their parsers are registered. Parsers (and the container
+     * detectors only their formats need) are created, and their dependencies loaded, when the first document of that
+     * format comes in, so the types each parser supports are listed here rather than asked from the parser.
+     */
+    /** the version of tika on the classpath, {@code unknown} if its jar does not tell */
+    static final String VERSION = version();
+
+    static final Map<String, Format> FORMATS;
+    static {
+        Map<String, Format> formats = new LinkedHashMap<>();
         // documents
-        new org.apache.tika.parser.html.HtmlParser(),
-        new org.apache.tika.parser.rtf.RTFParser(),
-        new org.apache.tika.parser.pdf.PDFParser(),
-        new org.apache.tika.parser.txt.TXTParser(),
-        new org.apache.tika.parser.microsoft.OfficeParser(),
-        new org.apache.tika.parser.microsoft.OldExcelParser(),
-        new org.apache.tika.parser.microsoft.ooxml.OOXMLParser(),
-        new org.apache.tika.parser.odf.OpenDocumentParser(),
-        new org.apache.tika.parser.iwork.IWorkPackageParser(),
-        new org.apache.tika.parser.xml.DcXMLParser(),
-    };
-    
-    /** autodetector based on this subset */
-    private static final AutoDetectParser PARSER_INSTANCE = new AutoDetectParser(PARSERS);
-    
-    /** singleton tika instance */
-    private static final Tika TIKA_INSTANCE = new Tika(PARSER_INSTANCE.getDetector(), PARSER_INSTANCE);
+        formats.put("html", new Format("org.apache.tika.parser.html.HtmlParser",
+                "application/vnd.wap.xhtml+xml", "application/x-asp", "application/xhtml+xml", "text/html"));
+        formats.put("rtf", new Format("org.apache.tika.parser.rtf.RTFParser",
+                "application/rtf"));
+        formats.put("pdf", new Format("org.apache.tika.parser.pdf.PDFParser",
+                "application/pdf"));
+        formats.put("txt", new Format("org.apache.tika.parser.txt.TXTParser",
+                "text/plain"));
+        formats.put("office", new Format("org.apache.tika.parser.microsoft.OfficeParser",
+                "application/msword", "application/sldworks", "application/vnd.ms-excel", "application/vnd.ms-outlook",
+                "application/vnd.ms-powerpoint", "application/vnd.ms-project", "application/vnd.visio", "application/x-mspublisher",
+                "application/x-tika-msoffice", "application/x-tika-msoffice-embedded; format=ole10_native",
+                "application/x-tika-msworks-spreadsheet", "application/x-tika-ooxml-protected")
+                .detector("org.apache.tika.parser.microsoft.POIFSContainerDetector"));
+        formats.put("old_excel", new Format("org.apache.tika.parser.microsoft.OldExcelParser",
+                "application/vnd.ms-excel.sheet.2", "application/vnd.ms-excel.sheet.3", "application/vnd.ms-excel.sheet.4",
+                "application/vnd.ms-excel.workspace.3", "application/vnd.ms-excel.workspace.4"));
+        formats.put("ooxml", new Format("org.apache.tika.parser.microsoft.ooxml.OOXMLParser",
+                "application/vnd.ms-excel.addin.macroenabled.12", "application/vnd.ms-excel.sheet.macroenabled.12",
+                "application/vnd.ms-excel.template.macroenabled.12", "application/vnd.ms-powerpoint.addin.macroenabled.12",
+                "application/vnd.ms-powerpoint.presentation.macroenabled.12", "application/vnd.ms-powerpoint.slideshow.macroenabled.12",
+                "application/vnd.ms-word.document.macroenabled.12", "application/vnd.ms-word.template.macroenabled.12",
+                "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+                "application/vnd.openxmlformats-officedocument.presentationml.slideshow",
+                "application/vnd.openxmlformats-officedocument.presentationml.template",
+                "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+                "application/vnd.openxmlformats-officedocument.spreadsheetml.template",
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.template", "application/x-tika-ooxml")
+                .detector("org.apache.tika.parser.pkg.ZipContainerDetector"));
+        formats.put("odf", new Format("org.apache.tika.parser.odf.OpenDocumentParser",
+                "application/vnd.oasis.opendocument.chart", "application/vnd.oasis.opendocument.chart-template",
+                "application/vnd.oasis.opendocument.formula", "application/vnd.oasis.opendocument.formula-template",
+                "application/vnd.oasis.opendocument.graphics", "application/vnd.oasis.opendocument.graphics-template",
+                "application/vnd.oasis.opendocument.image", "application/vnd.oasis.opendocument.image-template",
+                "application/vnd.oasis.opendocument.presentation", "application/vnd.oasis.opendocument.presentation-template",
+                "application/vnd.oasis.opendocument.spreadsheet", "application/vnd.oasis.opendocument.spreadsheet-template",
+                "application/vnd.oasis.opendocument.text", "application/vnd.oasis.opendocument.text-master",
+                "application/vnd.oasis.opendocument.text-template", "application/vnd.oasis.opendocument.text-web",
+                "application/vnd.sun.xml.writer",
+                "application/x-vnd.oasis.opendocument.chart", "application/x-vnd.oasis.opendocument.chart-template",
+                "application/x-vnd.oasis.opendocument.formula", "application/x-vnd.oasis.opendocument.formula-template",
+                "application/x-vnd.oasis.opendocument.graphics", "application/x-vnd.oasis.opendocument.graphics-template",
+                "application/x-vnd.oasis.opendocument.image", "application/x-vnd.oasis.opendocument.image-template",
+                "application/x-vnd.oasis.opendocument.presentation", "application/x-vnd.oasis.opendocument.presentation-template",
+                "application/x-vnd.oasis.opendocument.spreadsheet", "application/x-vnd.oasis.opendocument.spreadsheet-template",
+                "application/x-vnd.oasis.opendocument.text", "application/x-vnd.oasis.opendocument.text-master",
+                "application/x-vnd.oasis.opendocument.text-template", "application/x-vnd.oasis.opendocument.text-web")
+                .detector("org.apache.tika.parser.pkg.ZipContainerDetector"));
+        formats.put("iwork", new Format("org.apache.tika.parser.iwork.IWorkPackageParser",
+                "application/vnd.apple.iwork", "application/vnd.apple.keynote", "application/vnd.apple.numbers",
+                "application/vnd.apple.pages")
+                .detector("org.apache.tika.parser.pkg.ZipContainerDetector"));
+        formats.put("xml", new Format("org.apache.tika.parser.xml.DcXMLParser",
+                "application/xml", "image/svg+xml"));
+        FORMATS = Collections.unmodifiableMap(formats);
+    }
+
+    /** container detectors, shared by all formats that need them */
+    private static final Map<String, LazyDetector> DETECTORS = new ConcurrentHashMap<>();
+
+    /** autodetectors, by enabled formats, whether they trust the provided content type and how they extract PDFs */
+    private static final Map<List<Object>, AutoDetectParser> PARSERS = new ConcurrentHashMap<>();
+
+    /** the same arguments in a form that stays the same across restarts, by autodetector, see {@link #id(Parser)} */
+    private static final Map<Parser, String> PARSER_IDS = new ConcurrentHashMap<>();
+
+    /**
+     * returns the (shared) autodetector for the given subset of {@link #FORMATS}. If {@code trustContentType} is
+     * set, the {@link Metadata#CONTENT_TYPE} given to it picks the parser and the content type detection is skipped.
+     *
+     * @throws IllegalArgumentException if one of the formats is unknown
+     */
+    static Parser parser(Collection<String> formats, boolean trustContentType) {
+        return parser(formats, trustContentType, false);
+    }
+
+    /**
+     * same as {@link #parser(Collection, boolean)}, but if {@code parallelPdf} is set, PDFs are extracted by a
+     * {@link ParallelPdfParser}, in ranges of pages on the pool given to {@link #parse(InputStream, Metadata, int, Parser, ForkJoinPool, boolean)}
+     */
+    static Parser parser(Collection<String> formats, boolean trustContentType, boolean parallelPdf) {
+        Set<String> enabled = new TreeSet<>(formats);
+        for (String format : enabled) {
+            if (FORMATS.containsKey(format) == false) {
+                throw new IllegalArgumentException("Unknown attachment format [" + format + "], expected one of " + FORMATS.keySet());
+            }
+        }
+        return PARSERS.computeIfAbsent(Arrays.asList(enabled, trustContentType, parallelPdf), k -> {
+            AutoDetectParser parser = buildParser(enabled, trustContentType, parallelPdf);
+            PARSER_IDS.put(parser, k.toString());
+            return parser;
+        });
+    }
+
+    /**
+     * returns a description of the arguments {@code parser} was built with by {@link #parser(Collection, boolean, boolean)},
+     * which is the same from one run to the next, or {@code null} if it was not built there
+     */
+    static String id(Parser parser) {
+        return PARSER_IDS.get(parser);
+    }
+
+    private static String version() {
+        Package tika = Parser.class.getPackage();
+        String version = tika == null ? null : tika.getImplementationVersion();
+        return version == null ? "unknown" : version;
+    }
+
+    private static AutoDetectParser buildParser(Set<String> enabled, boolean trustContentType, boolean parallelPdf) {
+        MimeTypes mimeTypes = MimeTypes.getDefaultMimeTypes();
+        List<Parser> parsers = new ArrayList<>();
+        Set<String> detectorClasses = new LinkedHashSet<>();
+        for (Map.Entry<String, Format> format : FORMATS.entrySet()) {
+            if (enabled.contains(format.getKey())) {
+                if (parallelPdf && format.getKey().equals("pdf")) {
+                    parsers.add(new ParallelPdfParser(format.getValue().parser));
+                } else {
+                    parsers.add(format.getValue().parser);
+                }
+                detectorClasses.addAll(format.getValue().detectorClasses);
+            }
+        }
+        // container detectors first, then the magic based detection
+        List<Detector> detectors = new ArrayList<>();
+        for (String detectorClass : detectorClasses) {
+            detectors.add(DETECTORS.computeIfAbsent(detectorClass, LazyDetector::new));
+        }
+        detectors.add(mimeTypes);
+
+        AutoDetectParser parser = new AutoDetectParser(new CompositeDetector(mimeTypes.getMediaTypeRegistry(), detectors),
+                parsers.toArray(new Parser[parsers.size()]));
+        if (trustContentType) {
+            parser.setDetector(new TrustedContentTypeDetector(parser));
+        }
+        return parser;
+    }
+
+    /**
+     * text buffers are kept around for the next document, as long as they did not grow larger than this many chars.
+     * Every thread that extracts keeps one, so this is kept small: the text of larger documents is copied into its
+     * string anyway, and allocating its buffer again costs little next to the extraction.
+     */
+    static final int MAX_RETAINED_BUFFER_CHARS = 1 << 16;
+
+    /** per thread buffer the extracted text is collected into */
+    private static final ThreadLocal<TextBuffer> TEXT_BUFFER = new ThreadLocal<>();
     
     /**
      * parses with tika, throwing any exception hit while parsing the document
      */
     // only package private for testing!
     static String parse(final byte content[], final Metadata metadata, final int limit) throws TikaException, IOException {
+        return parse(StreamInput.wrap(content), metadata, limit, parser(FORMATS.keySet(), false));
+    }
+
+    /**
+     * parses with tika, reading the document from {@code stream} with a {@link #parser(Collection, boolean)},
+     * throwing any exception hit while parsing the document.
+     */
+    static String parse(final InputStream stream, final Metadata metadata, final int limit, final Parser parser)
+            throws TikaException, IOException {
+        return parse(stream, metadata, limit, parser, null, false);
+    }
+
+    /**
+     * same as {@link #parse(InputStream, Metadata, int, Parser)}, but parsers that extract in parallel do so on
+     * {@code pool}, if it is not {@code null}. With {@code parallelEmbedded}, the documents embedded in the document
+     * are extracted on it too, in parallel with the rest of the document.
+     */
+    static String parse(final InputStream stream, final Metadata metadata, final int limit, final Parser parser,
+                        final ForkJoinPool pool, final boolean parallelEmbedded) throws TikaException, IOException {
+        return parse(stream, metadata, limit, parser, pool, parallelEmbedded, null);
+    }
+
+    /**
+     * same as {@link #parse(InputStream, Metadata, int, Parser, ForkJoinPool, boolean)}, but the copies the parallel
+     * extraction makes of the document, or of the documents embedded in it, are accounted on {@code breaker}, if it is
+     * not {@code null}.
+     */
+    static String parse(final InputStream stream, final Metadata metadata, final int limit, final Parser parser,
+                        final ForkJoinPool pool, final boolean parallelEmbedded, final CircuitBreaker breaker)
+            throws TikaException, IOException {
+        return doPrivileged(() -> parseToString(parser, stream, metadata, limit, pool, parallelEmbedded, breaker));
+    }
+
+    /**
+     * same as {@link #parse(InputStream, Metadata, int, Parser, ForkJoinPool, boolean, CircuitBreaker)}, but writes
+     * the text to {@code out} as tika extracts it, instead of collecting it. Embedded documents are extracted in order.
+     */
+    static void parse(final InputStream stream, final Metadata metadata, final int limit, final Parser parser,
+                      final ForkJoinPool pool, final CircuitBreaker breaker, final Writer out) throws TikaException, IOException {
+        doPrivileged(() -> {
+            parse(parser, stream, metadata, limit, newContext(parser, pool, breaker), out);
+            return null;
+        });
+    }
+
+    private static <T> T doPrivileged(PrivilegedExceptionAction<T> action) throws TikaException, IOException {
         // check that its not unprivileged code like a script
         SecurityManager sm = System.getSecurityManager();
         if (sm != null) {
@@ -49,12 +270,7 @@ final class TikaImpl {
         }
 
         try {
-            return AccessController.doPrivileged(new PrivilegedExceptionAction<String>() {
-                @Override
-                public String run() throws TikaException, IOException {
-                    return TIKA_INSTANCE.parseToString(StreamInput.wrap(content), metadata, limit);
-                }
-            });
+            return AccessController.doPrivileged(action);
         } catch (PrivilegedActionException e) {
             // checked exception from tika: unbox it
             Throwable cause = e.getCause();
@@ -67,4 +283,256 @@ final class TikaImpl {
             }
         }
     }
+
+    /**
+     * same as {@link org.apache.tika.Tika#parseToString(InputStream, Metadata, int)}, but collects the text into a
+     * reusable per thread buffer, so that the only allocation for the text is the returned string itself.
+     */
+    private static String parseToString(Parser parser, InputStream stream, Metadata metadata, int limit,
+                                        ForkJoinPool pool, boolean parallelEmbedded, CircuitBreaker breaker)
+            throws TikaException, IOException {
+        TextBuffer buffer = TEXT_BUFFER.get();
+        if (buffer == null || buffer.inUse) {
+            buffer = new TextBuffer();
+            TEXT_BUFFER.set(buffer);
+        }
+        buffer.inUse = true;
+        ParallelEmbeddedExtractor embedded = null;
+        try {
+            ParseContext context = newContext(parser, pool, breaker);
+            if (pool != null && parallelEmbedded) {
+                embedded = new ParallelEmbeddedExtractor(context, buffer, limit, pool);
+                context.set(EmbeddedDocumentExtractor.class, embedded);
+            }
+            if (parse(parser, stream, metadata, limit, context, buffer) == false) {
+                return "";
+            }
+            return embedded == null ? buffer.toString() : embedded.assemble();
+        } finally {
+            if (embedded != null) {
+                embedded.cancel();
+            }
+            buffer.inUse = false;
+            if (buffer.chars.length > MAX_RETAINED_BUFFER_CHARS) {
+                // don't keep the text of a huge document around for the lifetime of the thread
+                TEXT_BUFFER.remove();
+            } else {
+                buffer.length = 0;
+            }
+        }
+    }
+
+    private static ParseContext newContext(Parser parser, ForkJoinPool pool, CircuitBreaker breaker) {
+        ParseContext context = new ParseContext();
+        context.set(Parser.class, parser);
+        if (pool != null) {
+            context.set(ForkJoinPool.class, pool);
+        }
+        if (breaker != null) {
+            context.set(CircuitBreaker.class, breaker);
+        }
+        return context;
+    }
+
+    /**
+     * writes at most {@code limit} characters of the body of the document to {@code out}, and closes {@code stream}.
+     * Returns false if no text was wanted and only the document properties were read.
+     */
+    private static boolean parse(Parser parser, InputStream stream, Metadata metadata, int limit, ParseContext context,
+                                 Writer out) throws TikaException, IOException {
+        WriteOutContentHandler handler = new WriteOutContentHandler(out, limit);
+        try {
+            if (limit == 0 && parser instanceof AutoDetectParser) {
+                // no text wanted: skip the body if the properties can be read on their own
+                TikaInputStream tis = TikaInputStream.get(stream);
+                stream = tis;
+                if (DocumentPropertiesExtractor.extract((AutoDetectParser) parser, tis, metadata)) {
+                    return false;
+                }
+            }
+            parser.parse(stream, new BodyContentHandler(handler), metadata, context);
+        } catch (SAXException e) {
+            if (!handler.isWriteLimitReached(e)) {
+                throw new TikaException("Unexpected SAX processing failure", e);
+            }
+        } finally {
+            stream.close();
+        }
+        return true;
+    }
+
+    /**
+     * Unsynchronized, growable char buffer. Unlike {@link java.io.StringWriter} it is not synchronized and can be reset.
+     */
+    static final class TextBuffer extends Writer {
+        private char[] chars = new char[1024];
+        private int length;
+        private boolean inUse;
+
+        @Override
+        public void write(int c) {
+            ensureCapacity(length + 1);
+            chars[length++] = (char) c;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            ensureCapacity(length + len);
+            System.arraycopy(cbuf, off, chars, length, len);
+            length += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            ensureCapacity(length + len);
+            str.getChars(off, off + len, chars, length);
+            length += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > chars.length) {
+                chars = Arrays.copyOf(chars, ArrayUtil.oversize(capacity, Character.BYTES));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        int length() {
+            return length;
+        }
+
+        void appendTo(StringBuilder builder, int from, int to) {
+            builder.append(chars, from, to - from);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+
+    /** a format we can extract text from: its parser, and the container detectors needed to recognize it */
+    static final class Format {
+        final LazyParser parser;
+        final List<String> detectorClasses = new ArrayList<>();
+
+        Format(String parserClass, String... types) {
+            Set<MediaType> supportedTypes = new HashSet<>();
+            for (String type : types) {
+                supportedTypes.add(MediaType.parse(type));
+            }
+            this.parser = new LazyParser(parserClass, Collections.unmodifiableSet(supportedTypes));
+        }
+
+        Format detector(String detectorClass) {
+            detectorClasses.add(detectorClass);
+            return this;
+        }
+    }
+
+    /** creates an instance of a parser or detector, loading its class and dependencies */
+    private static <T> T newInstance(String className, Class<T> type) {
+        try {
+            return Class.forName(className, true, TikaImpl.class.getClassLoader()).asSubclass(type).newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create [" + className + "]", e);
+        }
+    }
+
+    /** parser that is only created when the first document it supports needs to be parsed */
+    static final class LazyParser implements Parser {
+        private final String className;
+        private final Set<MediaType> supportedTypes;
+        private volatile Parser delegate;
+
+        LazyParser(String className, Set<MediaType> supportedTypes) {
+            this.className = className;
+            this.supportedTypes = supportedTypes;
+        }
+
+        @Override
+        public Set<MediaType> getSupportedTypes(ParseContext context) {
+            return supportedTypes;
+        }
+
+        @Override
+        public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+                throws IOException, SAXException, TikaException {
+            delegate().parse(stream, handler, metadata, context);
+        }
+
+        Parser delegate() {
+            Parser parser = delegate;
+            if (parser == null) {
+                synchronized (this) {
+                    parser = delegate;
+                    if (parser == null) {
+                        delegate = parser = newInstance(className, Parser.class);
+                    }
+                }
+            }
+            return parser;
+        }
+    }
+
+    /** detector that is only created when the first document needs to be detected */
+    static final class LazyDetector implements Detector {
+        private final String className;
+        private volatile Detector delegate;
+
+        LazyDetector(String className) {
+            this.className = className;
+        }
+
+        @Override
+        public MediaType detect(InputStream input, Metadata metadata) throws IOException {
+            Detector detector = delegate;
+            if (detector == null) {
+                synchronized (this) {
+                    detector = delegate;
+                    if (detector == null) {
+                        delegate = detector = newInstance(className, Detector.class);
+                    }
+                }
+            }
+            return detector.detect(input, metadata);
+        }
+    }
+
+    /**
+     * Detector that takes the content type from the metadata, as long as one of our parsers can handle it,
+     * and only falls back to sniffing the document otherwise.
+     */
+    static final class TrustedContentTypeDetector implements Detector {
+        private final Detector delegate;
+        private final MediaTypeRegistry registry;
+        private final Set<MediaType> supportedTypes;
+
+        TrustedContentTypeDetector(AutoDetectParser parser) {
+            this.delegate = parser.getDetector();
+            this.registry = parser.getMediaTypeRegistry();
+            this.supportedTypes = parser.getParsers(new ParseContext()).keySet();
+        }
+
+        @Override
+        public MediaType detect(InputStream input, Metadata metadata) throws IOException {
+            String contentType = metadata.get(Metadata.CONTENT_TYPE);
+            MediaType type = contentType == null ? null : MediaType.parse(contentType);
+            if (type != null) {
+                for (MediaType t = registry.normalize(type.getBaseType()); t != null; t = registry.getSupertype(t)) {
+                    if (supportedTypes.contains(t)) {
+                        // keep the parameters, such as the charset of text documents
+                        return type;
+                    }
+                }
+            }
+            return delegate.detect(input, metadata);
+        }
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class TransportAttachmentStatsAction extends TransportNodesAction<AttachmentStatsRequest, AttachmentStatsResponse,
+        TransportAttachmentStatsAction.NodeRequest, NodeAttachmentStats> {
+
+    private final ExtractionService extractionService;
+
+    @Inject
+    public TransportAttachmentStatsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                                          ClusterService clusterService, TransportService transportService,
+                                          ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver,
+                                          ExtractionService extractionService) {
+        super(settings, AttachmentStatsAction.NAME, clusterName, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, AttachmentStatsRequest.class, NodeRequest.class, ThreadPool.Names.MANAGEMENT);
+        this.extractionService = extractionService;
+    }
+
+    @Override
+    protected AttachmentStatsResponse newResponse(AttachmentStatsRequest request, AtomicReferenceArray responses) {
+        final List<NodeAttachmentStats> stats = new ArrayList<>();
+        for (int i = 0; i < responses.length(); i++) {
+            Object resp = responses.get(i);
+            if (resp instanceof NodeAttachmentStats) {
+                stats.add((NodeAttachmentStats) resp);
+            }
+        }
+        return new AttachmentStatsResponse(clusterName, stats.toArray(new NodeAttachmentStats[stats.size()]));
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, AttachmentStatsRequest request) {
+        return new NodeRequest(request, nodeId);
+    }
+
+    @Override
+    protected NodeAttachmentStats newNodeResponse() {
+        return new NodeAttachmentStats();
+    }
+
+    @Override
+    protected NodeAttachmentStats nodeOperation(NodeRequest request) {
+        return new NodeAttachmentStats(clusterService.localNode(), new AttachmentStats(extractionService));
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(AttachmentStatsRequest request, String nodeId) {
+            super(request, nodeId);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+public class AttachmentContentTests extends ESTestCase {
+
+    public void testStreamingDecode() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            byte[] bytes = randomBytes(randomIntBetween(0, 5000));
+            char[] chars = Base64.getEncoder().encodeToString(bytes).toCharArray();
+            AttachmentContent content = AttachmentContent.base64(chars, 0, chars.length);
+            assertThat(content.length(), equalTo(bytes.length));
+            assertArrayEquals(bytes, readFully(content));
+            // can be read more than once
+            assertArrayEquals(bytes, readFully(content));
+        }
+    }
+
+    public void testDetach() throws IOException {
+        byte[] bytes = randomBytes(randomIntBetween(0, 5000));
+        char[] chars = Base64.getEncoder().encodeToString(bytes).toCharArray();
+        AttachmentContent detached = AttachmentContent.base64(chars, 0, chars.length).detach();
+        // the parser reuses its buffer for what comes next
+        Arrays.fill(chars, 'A');
+        assertArrayEquals(bytes, readFully(detached));
+
+        AttachmentContent decoded = AttachmentContent.of(bytes);
+        assertSame(decoded, decoded.detach());
+    }
+
+    public void testEagerDecode() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            byte[] bytes = randomBytes(randomIntBetween(0, 5000));
+            char[] chars = Base64.getEncoder().encodeToString(bytes).toCharArray();
+            AttachmentContent content = AttachmentContent.decodeBase64(chars, 0, chars.length);
+            assertThat(content.length(), equalTo(bytes.length));
+            assertArrayEquals(bytes, readFully(content));
+        }
+    }
+
+    public void testOffsetWhitespaceAndMissingPadding() throws IOException {
+        byte[] bytes = randomBytes(randomIntBetween(1, 5000));
+        String encoded = Base64.getMimeEncoder().encodeToString(bytes);
+        while (encoded.endsWith("=")) {
+            encoded = encoded.substring(0, encoded.length() - 1);
+        }
+        char[] chars = ("xx" + encoded + "yy").toCharArray();
+        AttachmentContent content = AttachmentContent.base64(chars, 2, chars.length - 4);
+        assertThat(content.length(), equalTo(bytes.length));
+        assertArrayEquals(bytes, readFully(content));
+    }
+
+    public void testIllegalCharacter() {
+        char[] chars = "SGVsbG8*".toCharArray();
+        try {
+            AttachmentContent.base64(chars, 0, chars.length);
+            fail("expected an exception");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("Illegal character '*'"));
+        }
+    }
+
+    static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random().nextBytes(bytes);
+        return bytes;
+    }
+
+    static byte[] readFully(AttachmentContent content) throws IOException {
+        try (InputStream in = content.newStream(); BytesStreamOutput out = new BytesStreamOutput()) {
+            if (randomBoolean()) {
+                Streams.copy(in, out);
+            } else {
+                int b;
+                while ((b = in.read()) != -1) {
+                    out.write(b);
+                }
+            }
+            return out.bytes().toBytes();
+        }
+    }
+}
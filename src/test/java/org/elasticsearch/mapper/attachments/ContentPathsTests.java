@@ -0,0 +1,125 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.lucene.util.Constants;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.elasticsearch.mapper.attachments.AttachmentContentTests.randomBytes;
+import static org.elasticsearch.mapper.attachments.AttachmentContentTests.readFully;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ContentPathsTests extends ESTestCase {
+
+    public void testDisabledByDefault() throws IOException {
+        ContentPaths contentPaths = new ContentPaths(Settings.EMPTY);
+        assertFalse(contentPaths.enabled());
+        Path file = createTempDir().resolve("file.txt");
+        Files.write(file, randomBytes(10));
+        try {
+            contentPaths.open(file.toString());
+            fail("expected files not to be readable without roots");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString(ContentPaths.ROOTS_SETTING));
+        }
+    }
+
+    public void testReadsFilesUnderRoots() throws IOException {
+        Path first = createTempDir();
+        Path second = createTempDir();
+        byte[] bytes = randomBytes(randomIntBetween(0, 100000));
+        Files.createDirectories(second.resolve("docs"));
+        Files.write(second.resolve("docs").resolve("file.bin"), bytes);
+        ContentPaths contentPaths = newContentPaths(first, second);
+
+        // absolute
+        AttachmentContent content = contentPaths.open(second.resolve("docs").resolve("file.bin").toString());
+        assertThat(content.length(), equalTo(bytes.length));
+        assertArrayEquals(bytes, readFully(content));
+        // can be read more than once
+        assertArrayEquals(bytes, readFully(content));
+
+        // relative to the first root it exists under
+        content = contentPaths.open("docs/file.bin");
+        assertArrayEquals(bytes, readFully(content));
+    }
+
+    public void testRejectsFilesOutsideOfRoots() throws IOException {
+        Path root = createTempDir();
+        Path outside = createTempDir();
+        Files.write(outside.resolve("secret.txt"), randomBytes(10));
+        Files.createDirectories(root.resolve("docs"));
+        ContentPaths contentPaths = newContentPaths(root);
+
+        assertRejected(contentPaths, outside.resolve("secret.txt").toString());
+        assertRejected(contentPaths, root.resolve("docs").resolve("..").resolve("..").resolve(outside.getFileName())
+                .resolve("secret.txt").toString());
+        assertRejected(contentPaths, "../" + outside.getFileName() + "/secret.txt");
+        // missing files and directories
+        assertRejected(contentPaths, "missing.txt");
+        assertRejected(contentPaths, "docs");
+    }
+
+    public void testRejectsLinksOutOfRoots() throws IOException {
+        assumeFalse("symbolic links need privileges on windows", Constants.WINDOWS);
+        Path root = createTempDir();
+        Path outside = createTempDir();
+        Files.write(outside.resolve("secret.txt"), randomBytes(10));
+        Files.createSymbolicLink(root.resolve("link.txt"), outside.resolve("secret.txt"));
+        ContentPaths contentPaths = newContentPaths(root);
+        assertRejected(contentPaths, "link.txt");
+        assertRejected(contentPaths, root.resolve("link.txt").toString());
+    }
+
+    public void testRootsMustBeAbsolute() {
+        try {
+            new ContentPaths(Settings.builder().put(ContentPaths.ROOTS_SETTING, "relative/dir").build());
+            fail("expected relative roots to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString(ContentPaths.ROOTS_SETTING));
+        }
+    }
+
+    private static ContentPaths newContentPaths(Path... roots) {
+        String[] paths = new String[roots.length];
+        for (int i = 0; i < roots.length; i++) {
+            paths[i] = roots[i].toString();
+        }
+        ContentPaths contentPaths = new ContentPaths(Settings.builder().putArray(ContentPaths.ROOTS_SETTING, paths).build());
+        assertTrue(contentPaths.enabled());
+        return contentPaths;
+    }
+
+    private static void assertRejected(ContentPaths contentPaths, String path) throws IOException {
+        try {
+            contentPaths.open(path);
+            fail("expected [" + path + "] to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("[_content_path]"));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.elasticsearch.test.StreamsUtils.copyToBytesFromClasspath;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.isEmptyString;
+import static org.hamcrest.Matchers.notNullValue;
+
+public class DocumentPropertiesExtractorTests extends ESTestCase {
+
+    private static final String SAMPLES = "/org/elasticsearch/index/mapper/attachment/test/sample-files/";
+    private static final String WARMUP = "/org/elasticsearch/mapper/attachments/warmup/";
+
+    /** the keys the mapper reads */
+    private static final String[] KEYS = {
+            Metadata.CONTENT_TYPE, Metadata.TITLE, Metadata.AUTHOR, Metadata.KEYWORDS, Metadata.DATE.getName()
+    };
+
+    public void testSamePropertiesAsFullParse() throws Exception {
+        for (String name : new String[] {SAMPLES + "issue-104.docx", SAMPLES + "multi-page.pdf", SAMPLES + "htmlWithValidDateMeta.html",
+                WARMUP + "sample.docx", WARMUP + "sample.odt", WARMUP + "sample.pdf", WARMUP + "sample.rtf"}) {
+            byte[] document = copyToBytesFromClasspath(name);
+
+            Metadata full = new Metadata();
+            TikaImpl.parse(document, full, 100000);
+            Metadata propertiesOnly = new Metadata();
+            assertThat(name, TikaImpl.parse(document, propertiesOnly, 0), isEmptyString());
+
+            for (String key : KEYS) {
+                assertThat(name + " " + key, propertiesOnly.get(key), equalTo(full.get(key)));
+            }
+        }
+        Metadata metadata = new Metadata();
+        TikaImpl.parse(copyToBytesFromClasspath(SAMPLES + "issue-104.docx"), metadata, 0);
+        assertThat(metadata.get(Metadata.DATE), notNullValue());
+    }
+
+    public void testBodyIsNotParsed() throws Exception {
+        // swap the body of a docx for garbage: the properties are still there, as the body is never looked at
+        byte[] docx = copyToBytesFromClasspath(WARMUP + "sample.docx");
+        ByteArrayOutputStream broken = new ByteArrayOutputStream();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(docx));
+             ZipOutputStream out = new ZipOutputStream(broken)) {
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                if (entry.getName().equals("word/document.xml")) {
+                    out.write("<w:document><broken".getBytes(StandardCharsets.UTF_8));
+                } else {
+                    byte[] buffer = new byte[1024];
+                    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                out.closeEntry();
+            }
+        }
+
+        try {
+            TikaImpl.parse(broken.toByteArray(), new Metadata(), 100000);
+            fail("expected the body to fail parsing");
+        } catch (TikaException expected) {
+        }
+
+        Metadata metadata = new Metadata();
+        assertThat(TikaImpl.parse(broken.toByteArray(), metadata, 0), isEmptyString());
+        assertThat(metadata.get(Metadata.TITLE), equalTo("Warm-up document"));
+        assertThat(metadata.get(Metadata.AUTHOR), equalTo("Elasticsearch"));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.metadata.Metadata;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import static org.elasticsearch.test.StreamsUtils.copyToBytesFromClasspath;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class ExtractionCacheTests extends ESTestCase {
+
+    private static final String SAMPLES = "/org/elasticsearch/index/mapper/attachment/test/sample-files/";
+
+    private static String parse(ExtractionCache cache, AttachmentContent content, Metadata metadata, int limit) throws Exception {
+        return new ExtractionService(Settings.EMPTY, cache).parse(content, metadata, limit, TikaImpl.parser(TikaImpl.FORMATS.keySet(), false), false, ExtractionService.NO_TIMEOUT);
+    }
+
+    public void testDisabledByDefault() throws Exception {
+        ExtractionCache cache = ExtractionCache.build(Settings.EMPTY);
+        assertFalse(cache.enabled());
+
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+        parse(cache, AttachmentContent.of(html), new Metadata(), 100000);
+        parse(cache, AttachmentContent.of(html), new Metadata(), 100000);
+        assertThat(cache.hits(), equalTo(0L));
+        assertThat(cache.misses(), equalTo(0L));
+    }
+
+    public void testHitReturnsSameTextAndMetadata() throws Exception {
+        ExtractionCache cache = new ExtractionCache(new ByteSizeValue(1024 * 1024));
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+
+        Metadata first = new Metadata();
+        String firstText = parse(cache, AttachmentContent.of(html), first, 100000);
+        assertThat(cache.misses(), equalTo(1L));
+        assertThat(cache.hits(), equalTo(0L));
+
+        Metadata second = new Metadata();
+        String secondText = parse(cache, AttachmentContent.of(html), second, 100000);
+        assertThat(cache.misses(), equalTo(1L));
+        assertThat(cache.hits(), equalTo(1L));
+
+        assertThat(secondText, equalTo(firstText));
+        assertThat(secondText, containsString("extract content"));
+        assertThat(second.get(Metadata.TITLE), equalTo(first.get(Metadata.TITLE)));
+        assertThat(second.get(Metadata.CONTENT_TYPE), equalTo(first.get(Metadata.CONTENT_TYPE)));
+        assertThat(cache.count(), equalTo(1));
+        assertThat(cache.sizeInBytes(), greaterThan(0L));
+    }
+
+    public void testLimitIsPartOfTheKey() throws Exception {
+        ExtractionCache cache = new ExtractionCache(new ByteSizeValue(1024 * 1024));
+        byte[] text = copyToBytesFromClasspath(SAMPLES + "text-in-english.txt");
+
+        String full = parse(cache, AttachmentContent.of(text), new Metadata(), 100000);
+        String truncated = parse(cache, AttachmentContent.of(text), new Metadata(), 5);
+        assertThat(cache.misses(), equalTo(2L));
+        assertThat(truncated.length(), equalTo(5));
+        assertThat(full.startsWith(truncated), equalTo(true));
+    }
+
+    public void testEviction() throws Exception {
+        byte[] english = copyToBytesFromClasspath(SAMPLES + "text-in-english.txt");
+        byte[] french = copyToBytesFromClasspath(SAMPLES + "text-in-french.txt");
+
+        ExtractionCache sizing = new ExtractionCache(new ByteSizeValue(1024 * 1024));
+        parse(sizing, AttachmentContent.of(english), new Metadata(), 100000);
+        long oneEntry = sizing.sizeInBytes();
+
+        // only room for a single entry
+        ExtractionCache cache = new ExtractionCache(new ByteSizeValue(oneEntry));
+        parse(cache, AttachmentContent.of(english), new Metadata(), 100000);
+        assertThat(cache.evictions(), equalTo(0L));
+        parse(cache, AttachmentContent.of(french), new Metadata(), 100000);
+        assertThat(cache.evictions(), greaterThan(0L));
+        assertThat(cache.sizeInBytes() <= oneEntry, equalTo(true));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class ExtractionLimiterTests extends ESTestCase {
+
+    public void testLimitsConcurrentExtractions() throws Exception {
+        ExtractionLimiter limiter = new ExtractionLimiter(2, 10);
+        limiter.acquire(true);
+        limiter.acquire(true);
+        assertThat(limiter.active(), equalTo(2));
+        assertThat(limiter.waited(), equalTo(0L));
+
+        CountDownLatch started = new CountDownLatch(1);
+        Thread waiting = new Thread(() -> {
+            try {
+                limiter.acquire(true);
+                started.countDown();
+                limiter.release();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        waiting.start();
+        assertBusy(() -> assertThat(limiter.queued(), equalTo(1)));
+        assertFalse(started.await(10, TimeUnit.MILLISECONDS));
+
+        limiter.release();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        waiting.join();
+        assertThat(limiter.queued(), equalTo(0));
+        assertThat(limiter.waited(), equalTo(1L));
+        assertThat(limiter.waitTimeNanos(), greaterThan(0L));
+
+        limiter.release();
+        assertThat(limiter.active(), equalTo(0));
+    }
+
+    public void testRejectsWhenTooManyWait() throws Exception {
+        ExtractionLimiter limiter = new ExtractionLimiter(1, 0);
+        limiter.acquire(true);
+        try {
+            limiter.acquire(true);
+            fail("expected a rejection");
+        } catch (EsRejectedExecutionException e) {
+            assertThat(e.getMessage(), containsString("rejected attachment extraction"));
+        }
+        assertThat(limiter.rejected(), equalTo(1L));
+        assertThat(limiter.queued(), equalTo(0));
+
+        // extractions that were admitted already are not rejected
+        Thread waiting = new Thread(() -> {
+            try {
+                limiter.acquire(false);
+                limiter.release();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        waiting.start();
+        assertBusy(() -> assertThat(limiter.queued(), equalTo(1)));
+        limiter.release();
+        waiting.join();
+        assertThat(limiter.rejected(), equalTo(1L));
+        assertThat(limiter.active(), equalTo(0));
+    }
+
+    public void testDefaults() {
+        ExtractionLimiter limiter = new ExtractionLimiter(Settings.builder().put("processors", 3).build());
+        assertThat(limiter.maxConcurrent(), equalTo(3));
+    }
+
+    public void testInvalidSettings() {
+        try {
+            new ExtractionLimiter(Settings.builder().put(ExtractionLimiter.MAX_CONCURRENT_SETTING, 0).build());
+            fail("expected an exception for 0 concurrent extractions");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString(ExtractionLimiter.MAX_CONCURRENT_SETTING));
+        }
+        try {
+            new ExtractionLimiter(Settings.builder().put(ExtractionLimiter.QUEUE_SIZE_SETTING, -1).build());
+            fail("expected an exception for a negative queue size");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString(ExtractionLimiter.QUEUE_SIZE_SETTING));
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AbstractParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.breaker.MemoryCircuitBreaker;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.xml.sax.ContentHandler;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.elasticsearch.test.StreamsUtils.copyToBytesFromClasspath;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ExtractionServiceTests extends ESTestCase {
+
+    private static final String SAMPLES = "/org/elasticsearch/index/mapper/attachment/test/sample-files/";
+
+    private ExtractionService service;
+
+    @Before
+    public void createService() {
+        service = new ExtractionService(Settings.EMPTY);
+    }
+
+    @After
+    public void closeService() {
+        service.close();
+    }
+
+    public void testParseWithinTimeout() throws Exception {
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+
+        Metadata metadata = new Metadata();
+        String text = service.parse(AttachmentContent.of(html), metadata, 100000, TikaImpl.parser(TikaImpl.FORMATS.keySet(), false), false, TimeValue.timeValueMinutes(1));
+        assertThat(text, containsString("extract content"));
+        assertThat(metadata.get(Metadata.TITLE), equalTo("XHTML test document"));
+        assertThat(service.timeouts(), equalTo(0L));
+    }
+
+    public void testParseWithinTimeoutFromBase64() throws Exception {
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+        char[] chars = Base64.getEncoder().encodeToString(html).toCharArray();
+
+        String text = service.parse(AttachmentContent.base64(chars, 0, chars.length), new Metadata(), 100000,
+                TikaImpl.parser(TikaImpl.FORMATS.keySet(), false), false, TimeValue.timeValueMinutes(1));
+        assertThat(text, containsString("extract content"));
+    }
+
+    public void testInvalidTimeoutThreads() {
+        try {
+            new ExtractionService(Settings.builder().put(ExtractionService.TIMEOUT_THREADS_SETTING, 0).build());
+            fail("expected an exception for 0 threads");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString(ExtractionService.TIMEOUT_THREADS_SETTING));
+        }
+    }
+
+    public void testTimeout() throws Exception {
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+
+        Metadata metadata = new Metadata();
+        try {
+            service.parse(AttachmentContent.of(html), metadata, 100000, TikaImpl.parser(TikaImpl.FORMATS.keySet(), false), false, TimeValue.timeValueNanos(1));
+            fail("expected a timeout");
+        } catch (ElasticsearchTimeoutException e) {
+            assertThat(e.getMessage(), containsString("did not complete within"));
+        }
+        assertThat(service.timeouts(), equalTo(1L));
+        // the abandoned parse must not leak into the caller's metadata
+        assertNull(metadata.get(Metadata.TITLE));
+    }
+
+    public void testExtractToSpilledText() throws Exception {
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+        String expected = service.parse(AttachmentContent.of(html), new Metadata(), -1, parser, false, ExtractionService.NO_TIMEOUT);
+
+        TimeValue timeout = randomBoolean() ? ExtractionService.NO_TIMEOUT : TimeValue.timeValueMinutes(1);
+        SpilledText spilled = service.spill(10);
+        Metadata metadata = new Metadata();
+        service.extract(AttachmentContent.of(html), metadata, -1, parser, timeout, spilled.writer());
+        assertThat(metadata.get(Metadata.TITLE), equalTo("XHTML test document"));
+        assertThat(spilled.length(), equalTo((long) expected.length()));
+        assertThat(spilled.prefix(), equalTo(expected.substring(0, 10)));
+        try (Reader reader = spilled.reader()) {
+            assertThat(Streams.copyToString(reader), equalTo(expected));
+        }
+
+        // limited like any other extraction
+        spilled = service.spill(1000);
+        service.extract(AttachmentContent.of(html), new Metadata(), 20, parser, timeout, spilled.writer());
+        assertThat(spilled.length(), equalTo(20L));
+        assertThat(spilled.prefix(), equalTo(expected.substring(0, 20)));
+        spilled.discard();
+    }
+
+    public void testPreExtraction() throws Exception {
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+
+        assertNotNull(service.preExtract(AttachmentContent.of(html), new Metadata(), 100000, parser, false));
+        // the same attachment is only extracted once
+        assertNull(service.preExtract(AttachmentContent.of(html), new Metadata(), 100000, parser, false));
+
+        Metadata metadata = new Metadata();
+        String text = service.parse(AttachmentContent.of(html), metadata, 100000, parser, false, ExtractionService.NO_TIMEOUT);
+        assertThat(text, containsString("extract content"));
+        assertThat(metadata.get(Metadata.TITLE), equalTo("XHTML test document"));
+        assertThat(service.preExtracted(), equalTo(1L));
+
+        // taken over, so the next parse extracts again
+        assertThat(service.parse(AttachmentContent.of(html), new Metadata(), 100000, parser, false, ExtractionService.NO_TIMEOUT),
+                equalTo(text));
+        assertThat(service.preExtracted(), equalTo(1L));
+    }
+
+    public void testPreExtractionOfOtherLimitIsNotTakenOver() throws Exception {
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+
+        ExtractionCache.Key key = service.preExtract(AttachmentContent.of(html), new Metadata(), 10, parser, false);
+        assertNotNull(key);
+        String text = service.parse(AttachmentContent.of(html), new Metadata(), 100000, parser, false, ExtractionService.NO_TIMEOUT);
+        assertThat(text, containsString("extract content"));
+        assertThat(service.preExtracted(), equalTo(0L));
+
+        service.discard(key);
+        assertThat(service.preExtractionsDiscarded(), equalTo(1L));
+        // discarding twice is a no-op
+        service.discard(key);
+        assertThat(service.preExtractionsDiscarded(), equalTo(1L));
+    }
+
+    public void testPreExtractionRejected() throws Exception {
+        service.close();
+        service = new ExtractionService(Settings.builder()
+                .put(ExtractionService.PRE_EXTRACTION_THREADS_SETTING, 1)
+                .put(ExtractionService.PRE_EXTRACTION_QUEUE_SIZE_SETTING, 0)
+                .build());
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+        byte[] txt = copyToBytesFromClasspath(SAMPLES + "text-in-english.txt");
+
+        assertNotNull(service.preExtract(AttachmentContent.of(html), new Metadata(), 100000, parser, false));
+        // no room to wait for the only thread
+        assertNull(service.preExtract(AttachmentContent.of(txt), new Metadata(), 100000, parser, false));
+        assertThat(service.preExtractionsRejected(), equalTo(1L));
+
+        // the rejected attachment is extracted by the caller
+        assertThat(service.parse(AttachmentContent.of(txt), new Metadata(), 100000, parser, false, ExtractionService.NO_TIMEOUT),
+                containsString("God Save the Queen"));
+        assertThat(service.preExtracted(), equalTo(0L));
+    }
+
+    public void testBreakerReservation() throws Exception {
+        service.close();
+        service = new ExtractionService(Settings.builder().put(ExtractionLimiter.MAX_CONCURRENT_SETTING, 1).build());
+        CircuitBreaker breaker = new MemoryCircuitBreaker(new ByteSizeValue(1, ByteSizeUnit.MB), 1.0, logger);
+        service.breaker(breaker);
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+
+        ExtractionService.Reservation reservation = service.reserve(AttachmentContent.of(html), 1000, "test");
+        long reserved = reservation.bytes();
+        assertThat(reserved, equalTo(ExtractionService.estimate(html.length, 1000, 2d)));
+        assertThat(breaker.getUsed(), equalTo(reserved));
+        reservation.release();
+        assertThat(breaker.getUsed(), equalTo(0L));
+
+        // pre-extractions hold their reservation until they are done
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+        assertNotNull(service.preExtract(AttachmentContent.of(html), new Metadata(), 1000, parser, false));
+        service.parse(AttachmentContent.of(html), new Metadata(), 1000, parser, false, ExtractionService.NO_TIMEOUT);
+        assertThat(breaker.getUsed(), equalTo(0L));
+
+        // or until they stop once discarded
+        service.limiter().acquire(true);
+        try {
+            // the pre-extraction waits for the limiter until it is discarded
+            ExtractionCache.Key key = service.preExtract(AttachmentContent.of(html), new Metadata(), 1000, parser, false);
+            assertThat(breaker.getUsed(), equalTo(reserved));
+            service.discard(key);
+        } finally {
+            service.limiter().release();
+        }
+        assertBusy(() -> assertThat(breaker.getUsed(), equalTo(0L)));
+    }
+
+    public void testMapperTakesOverPreExtractionReservation() throws Exception {
+        CircuitBreaker breaker = new MemoryCircuitBreaker(new ByteSizeValue(1, ByteSizeUnit.MB), 1.0, logger);
+        service.breaker(breaker);
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+        long estimate = ExtractionService.estimate(html.length, 1000, 2d);
+
+        ExtractionCache.Key key = service.preExtract(AttachmentContent.of(html), new Metadata(), 1000, parser, false);
+        assertNotNull(key);
+        assertTrue(service.preExtracting());
+        // the same memory is not reserved twice
+        ExtractionService.Reservation reservation = service.reserve(AttachmentContent.of(html), key, 1000, "test");
+        assertThat(reservation.bytes(), equalTo(estimate));
+        assertThat(breaker.getUsed(), equalTo(estimate));
+
+        service.parse(AttachmentContent.of(html), new Metadata(), 1000, parser, false, ExtractionService.NO_TIMEOUT, key,
+                reservation);
+        assertThat(service.preExtracted(), equalTo(1L));
+        // still held by the mapper that took it over
+        assertThat(breaker.getUsed(), equalTo(estimate));
+        reservation.release();
+        assertThat(breaker.getUsed(), equalTo(0L));
+
+        // a discarded pre-extraction does not release what was taken over
+        key = service.preExtract(AttachmentContent.of(html), new Metadata(), 1000, parser, false);
+        reservation = service.reserve(AttachmentContent.of(html), key, 1000, "test");
+        service.discard(key);
+        assertThat(breaker.getUsed(), equalTo(estimate));
+        reservation.release();
+        assertBusy(() -> assertThat(breaker.getUsed(), equalTo(0L)));
+    }
+
+    public void testTimedOutExtractionHoldsReservation() throws Exception {
+        CircuitBreaker breaker = new MemoryCircuitBreaker(new ByteSizeValue(1, ByteSizeUnit.MB), 1.0, logger);
+        service.breaker(breaker);
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+        // a parser that does not stop when interrupted, like most of tika
+        final CountDownLatch parsing = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Parser parser = new AbstractParser() {
+            @Override
+            public Set<MediaType> getSupportedTypes(ParseContext context) {
+                return Collections.singleton(MediaType.TEXT_HTML);
+            }
+
+            @Override
+            public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context) {
+                parsing.countDown();
+                while (true) {
+                    try {
+                        done.await();
+                        return;
+                    } catch (InterruptedException e) {
+                        // keep going
+                    }
+                }
+            }
+        };
+
+        ExtractionService.Reservation reservation = service.reserve(AttachmentContent.of(html), 1000, "test");
+        try {
+            service.parse(AttachmentContent.of(html), new Metadata(), 1000, parser, false, TimeValue.timeValueMillis(100),
+                    null, reservation);
+            fail("expected the extraction to time out");
+        } catch (ElasticsearchTimeoutException e) {
+            // expected
+        }
+        reservation.release();
+        // the abandoned parse still holds the memory
+        parsing.await();
+        assertThat(breaker.getUsed(), equalTo(reservation.bytes()));
+        done.countDown();
+        assertBusy(() -> assertThat(breaker.getUsed(), equalTo(0L)));
+    }
+
+    public void testBreakerTrips() throws Exception {
+        CircuitBreaker breaker = new MemoryCircuitBreaker(new ByteSizeValue(1, ByteSizeUnit.KB), 1.0, logger);
+        service.breaker(breaker);
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+
+        try {
+            service.reserve(AttachmentContent.of(html), 100000, "test");
+            fail("expected the breaker to trip");
+        } catch (CircuitBreakingException e) {
+            assertThat(e.getMessage(), containsString("test"));
+        }
+        assertThat(breaker.getUsed(), equalTo(0L));
+
+        // pre-extraction just does not happen
+        assertNull(service.preExtract(AttachmentContent.of(html), new Metadata(), 100000,
+                TikaImpl.parser(TikaImpl.FORMATS.keySet(), false), false));
+        assertThat(service.preExtractionsRejected(), equalTo(1L));
+        assertThat(breaker.getUsed(), equalTo(0L));
+    }
+
+    public void testEstimate() {
+        assertThat(ExtractionService.estimate(1000, 100, 2d), equalTo(1000L + 2000L + 200L));
+        // without limit, as many characters as bytes
+        assertThat(ExtractionService.estimate(1000, -1, 2d), equalTo(1000L + 2000L + 2000L));
+        assertThat(ExtractionService.estimate(1000, 0, 0d), equalTo(1000L));
+    }
+
+    public void testInvalidBreakerOverhead() throws Exception {
+        try {
+            new ExtractionService(Settings.builder().put(ExtractionService.BREAKER_OVERHEAD_SETTING, -1).build());
+            fail("expected an exception for a negative overhead");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString(ExtractionService.BREAKER_OVERHEAD_SETTING));
+        }
+    }
+
+    public void testRejectedWhenTooManyExtractionsWait() throws Exception {
+        service.close();
+        service = new ExtractionService(Settings.builder()
+                .put(ExtractionLimiter.MAX_CONCURRENT_SETTING, 1)
+                .put(ExtractionLimiter.QUEUE_SIZE_SETTING, 0)
+                .build());
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+
+        assertThat(service.parse(AttachmentContent.of(html), new Metadata(), 100000, parser, false, ExtractionService.NO_TIMEOUT),
+                containsString("extract content"));
+        assertThat(service.limiter().active(), equalTo(0));
+
+        // another extraction is running
+        service.limiter().acquire(true);
+        try {
+            service.parse(AttachmentContent.of(html), new Metadata(), 100000, parser, false, ExtractionService.NO_TIMEOUT);
+            fail("expected a rejection");
+        } catch (EsRejectedExecutionException e) {
+            assertThat(service.limiter().rejected(), equalTo(1L));
+        } finally {
+            service.limiter().release();
+        }
+    }
+
+    public void testInvalidPreExtractionThreads() throws Exception {
+        try {
+            new ExtractionService(Settings.builder().put(ExtractionService.PRE_EXTRACTION_THREADS_SETTING, 0).build());
+            fail("expected an exception for 0 threads");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString(ExtractionService.PRE_EXTRACTION_THREADS_SETTING));
+        }
+    }
+}
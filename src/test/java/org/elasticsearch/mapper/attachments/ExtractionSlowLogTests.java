@@ -0,0 +1,75 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class ExtractionSlowLogTests extends ESTestCase {
+
+    public void testDisabledByDefault() {
+        assertFalse(ExtractionSlowLog.build(null).enabled());
+        assertFalse(ExtractionSlowLog.build(Settings.EMPTY).enabled());
+        assertTrue(ExtractionSlowLog.build(Settings.builder().put(ExtractionSlowLog.THRESHOLD_TRACE_SETTING, "0ms").build()).enabled());
+        assertTrue(ExtractionSlowLog.build(Settings.builder().put(ExtractionSlowLog.THRESHOLD_WARN_SETTING, "10s").build()).enabled());
+    }
+
+    public void testRefresh() {
+        ExtractionSlowLog slowLog = ExtractionSlowLog.build(Settings.EMPTY);
+        slowLog.refresh(Settings.builder().put(ExtractionSlowLog.THRESHOLD_INFO_SETTING, "5s").build());
+        assertTrue(slowLog.enabled());
+        // settings that don't set a threshold keep it
+        slowLog.refresh(Settings.builder().put(ExtractionSlowLog.THRESHOLD_WARN_SETTING, "10s").build());
+        slowLog.refresh(Settings.EMPTY);
+        assertTrue(slowLog.enabled());
+        slowLog.refresh(Settings.builder().put(ExtractionSlowLog.THRESHOLD_INFO_SETTING, "-1")
+                .put(ExtractionSlowLog.THRESHOLD_WARN_SETTING, "-1").build());
+        assertFalse(slowLog.enabled());
+    }
+
+    public void testTook() {
+        ExtractionStats.Extraction extraction = new ExtractionStats.Extraction();
+        assertThat(ExtractionSlowLog.took(extraction), equalTo(0L));
+        extraction.decodeNanos = 10;
+        extraction.extractionNanos = 100;
+        assertThat(ExtractionSlowLog.took(extraction), equalTo(110L));
+        extraction.languageNanos = 1000;
+        assertThat(ExtractionSlowLog.took(extraction), equalTo(1110L));
+    }
+
+    public void testMessage() {
+        ExtractionStats.Extraction extraction = new ExtractionStats.Extraction();
+        extraction.contentType = "application/pdf";
+        extraction.inputBytes = 2048;
+        extraction.extractedChars = 100;
+        extraction.truncated = true;
+        extraction.decodeNanos = TimeUnit.MILLISECONDS.toNanos(2);
+        extraction.extractionNanos = TimeUnit.MILLISECONDS.toNanos(1500);
+        assertThat(ExtractionSlowLog.message("test", "doc", "1", "file", "report.pdf", extraction),
+                equalTo("[test] took[1.5s], took_millis[1502], type[doc], id[1], field[file], name[report.pdf], "
+                        + "content_type[application/pdf], input[2kb], extracted_chars[100], truncated[true], decode[2ms], "
+                        + "parse[1.5s], language[-], failed[false]"));
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class ExtractionStatsTests extends ESTestCase {
+
+    private static ExtractionStats.Extraction extraction(String contentType, long extractionMillis) {
+        ExtractionStats.Extraction extraction = new ExtractionStats.Extraction();
+        extraction.contentType = contentType;
+        extraction.inputBytes = 100;
+        extraction.decodeNanos = 10;
+        extraction.extractionNanos = TimeUnit.MILLISECONDS.toNanos(extractionMillis);
+        extraction.extractedChars = 50;
+        return extraction;
+    }
+
+    public void testNormalize() {
+        assertThat(ExtractionStats.normalize("text/plain; charset=ISO-8859-1"), equalTo("text/plain"));
+        assertThat(ExtractionStats.normalize("Application/PDF"), equalTo("application/pdf"));
+        assertThat(ExtractionStats.normalize(null), equalTo(ExtractionStats.UNKNOWN));
+        assertThat(ExtractionStats.normalize(" ; charset=UTF-8"), equalTo(ExtractionStats.UNKNOWN));
+    }
+
+    public void testRecordByContentType() {
+        ExtractionStats stats = new ExtractionStats();
+        stats.record(extraction("text/plain; charset=UTF-8", 0));
+        stats.record(extraction("text/plain; charset=ISO-8859-1", 3));
+        ExtractionStats.Extraction failed = extraction("application/pdf", 1);
+        failed.extractedChars = 0;
+        failed.failed = true;
+        stats.record(failed);
+        ExtractionStats.Extraction detected = extraction("application/pdf", 1);
+        detected.truncated = true;
+        detected.ignoredError = true;
+        detected.languageNanos = 5;
+        stats.record(detected);
+
+        List<AttachmentStats.ContentTypeStats> contentTypes = stats.stats();
+        assertThat(contentTypes.size(), equalTo(2));
+        AttachmentStats.ContentTypeStats pdf = contentTypes.get(0);
+        assertThat(pdf.contentType(), equalTo("application/pdf"));
+        assertThat(pdf.getCount(), equalTo(2L));
+        assertThat(pdf.getInputBytes(), equalTo(200L));
+        assertThat(pdf.getExtractedChars(), equalTo(50L));
+        assertThat(pdf.getTruncated(), equalTo(1L));
+        assertThat(pdf.getIgnoredErrors(), equalTo(1L));
+        assertThat(pdf.getFailures(), equalTo(1L));
+        assertThat(pdf.getLanguageDetection().getCount(), equalTo(1L));
+        assertThat(pdf.getLanguageDetection().getTotal().nanos(), equalTo(5L));
+
+        AttachmentStats.ContentTypeStats text = contentTypes.get(1);
+        assertThat(text.contentType(), equalTo("text/plain"));
+        assertThat(text.getCount(), equalTo(2L));
+        assertThat(text.getDecode().getCount(), equalTo(2L));
+        assertThat(text.getDecode().getTotal().nanos(), equalTo(20L));
+        assertThat(text.getLanguageDetection().getCount(), equalTo(0L));
+        long[] buckets = text.getExtraction().getBuckets();
+        assertThat(buckets[0], equalTo(1L));
+        assertThat(buckets[2], equalTo(1L));
+    }
+
+    public void testTooManyContentTypes() {
+        ExtractionStats stats = new ExtractionStats();
+        for (int i = 0; i < ExtractionStats.MAX_CONTENT_TYPES + 10; i++) {
+            stats.record(extraction("application/x-type-" + i, 1));
+        }
+        List<AttachmentStats.ContentTypeStats> contentTypes = stats.stats();
+        assertThat(contentTypes.size(), equalTo(ExtractionStats.MAX_CONTENT_TYPES + 1));
+        long other = 0;
+        for (AttachmentStats.ContentTypeStats contentType : contentTypes) {
+            if (contentType.contentType().equals(ExtractionStats.OTHER)) {
+                other = contentType.getCount();
+            }
+        }
+        assertThat(other, equalTo(10L));
+    }
+
+    public void testHistogram() {
+        assertThat(ExtractionStats.Histogram.bucket(0), equalTo(0));
+        assertThat(ExtractionStats.Histogram.bucket(1), equalTo(1));
+        assertThat(ExtractionStats.Histogram.bucket(2), equalTo(2));
+        assertThat(ExtractionStats.Histogram.bucket(3), equalTo(2));
+        assertThat(ExtractionStats.Histogram.bucket(4), equalTo(3));
+        assertThat(ExtractionStats.Histogram.bucket(Long.MAX_VALUE), equalTo(AttachmentStats.Timing.BUCKETS - 1));
+
+        ExtractionStats.Histogram histogram = new ExtractionStats.Histogram();
+        assertThat(histogram.stats().percentile(50), nullValue());
+        histogram.record(-1);
+        assertThat(histogram.stats().getCount(), equalTo(0L));
+        for (int i = 0; i < 98; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        histogram.record(TimeUnit.HOURS.toNanos(1));
+        AttachmentStats.Timing timing = histogram.stats();
+        assertThat(timing.getCount(), equalTo(100L));
+        assertThat(timing.percentile(50), equalTo(TimeValue.timeValueMillis(4)));
+        assertThat(timing.percentile(99), equalTo(TimeValue.timeValueMillis(128)));
+        assertThat(timing.percentile(100), equalTo(TimeValue.timeValueMillis(1L << (AttachmentStats.Timing.BUCKETS - 2))));
+    }
+
+    public void testSerialization() throws Exception {
+        ExtractionService service = new ExtractionService(Settings.EMPTY);
+        try {
+            service.stats().record(extraction("application/pdf", 12));
+            service.stats().record(extraction("text/html", 1));
+            AttachmentStats stats = new AttachmentStats(service);
+
+            BytesStreamOutput out = new BytesStreamOutput();
+            stats.writeTo(out);
+            AttachmentStats read = AttachmentStats.readAttachmentStats(StreamInput.wrap(out.bytes()));
+            assertThat(read.getContentTypes().size(), equalTo(2));
+            assertThat(read.getContentTypes().get(0).contentType(), equalTo("application/pdf"));
+            assertThat(read.getContentTypes().get(0).getExtraction().getBuckets(),
+                    equalTo(stats.getContentTypes().get(0).getExtraction().getBuckets()));
+            assertThat(read.getTotal().getCount(), equalTo(2L));
+            assertThat(read.getTotal().getInputBytes(), equalTo(200L));
+
+            XContentBuilder builder = jsonBuilder().startObject();
+            read.toXContent(builder, ToXContent.EMPTY_PARAMS);
+            String json = builder.endObject().string();
+            assertThat(json, containsString("\"application/pdf\":{\"count\":1"));
+            assertThat(json, containsString("\"histogram\":[{\"lt_in_millis\":16,\"count\":1}]"));
+        } finally {
+            service.close();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.Parser;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.elasticsearch.test.StreamsUtils.copyToBytesFromClasspath;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class ExtractionStoreTests extends ESTestCase {
+
+    private static final String SAMPLES = "/org/elasticsearch/index/mapper/attachment/test/sample-files/";
+
+    private static final Parser PARSER = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+
+    private static ExtractionCache.Key key(byte[] bytes, int limit) throws IOException {
+        return ExtractionCache.newKey(AttachmentContent.of(bytes), new Metadata(), limit, PARSER);
+    }
+
+    private static ExtractionCache.Key key(String text) throws IOException {
+        return key(text.getBytes(StandardCharsets.UTF_8), 100000);
+    }
+
+    public void testSurvivesRestarts() throws Exception {
+        Path dir = createTempDir();
+        Metadata metadata = new Metadata();
+        metadata.add(Metadata.TITLE, "XHTML test document");
+        metadata.add(Metadata.CONTENT_TYPE, "application/xhtml+xml");
+        metadata.add("dc:subject", "first");
+        metadata.add("dc:subject", "second");
+
+        try (ExtractionStore store = new ExtractionStore(dir, new ByteSizeValue(1, ByteSizeUnit.MB))) {
+            assertThat(store.get(key("Hello")), nullValue());
+            assertThat(store.misses(), equalTo(1L));
+            store.put(key("Hello"), "Hello", metadata);
+            assertThat(store.count(), equalTo(1));
+            ExtractedContent stored = store.get(key("Hello"));
+            assertThat(stored.text(), equalTo("Hello"));
+            assertThat(store.hits(), equalTo(1L));
+        }
+
+        try (ExtractionStore store = new ExtractionStore(dir, new ByteSizeValue(1, ByteSizeUnit.MB))) {
+            assertThat(store.count(), equalTo(1));
+            ExtractedContent stored = store.get(key("Hello"));
+            assertThat(stored.text(), equalTo("Hello"));
+            Metadata copy = new Metadata();
+            stored.copyTo(copy);
+            assertThat(copy.get(Metadata.TITLE), equalTo("XHTML test document"));
+            assertThat(copy.get(Metadata.CONTENT_TYPE), equalTo("application/xhtml+xml"));
+            assertThat(copy.getValues("dc:subject"), equalTo(new String[] { "first", "second" }));
+            assertThat(store.get(key("Hello!")), nullValue());
+        }
+    }
+
+    public void testLimitIsPartOfTheKey() throws Exception {
+        byte[] bytes = "Hello".getBytes(StandardCharsets.UTF_8);
+        try (ExtractionStore store = new ExtractionStore(createTempDir(), new ByteSizeValue(1, ByteSizeUnit.MB))) {
+            store.put(key(bytes, 100000), "Hello", new Metadata());
+            assertThat(store.get(key(bytes, 2)), nullValue());
+            assertThat(store.get(key(bytes, 100000)).text(), equalTo("Hello"));
+        }
+    }
+
+    public void testEvictsOldestSegment() throws Exception {
+        ByteSizeValue size = new ByteSizeValue(64, ByteSizeUnit.KB);
+        String text = randomAsciiOfLength(1000);
+        try (ExtractionStore store = new ExtractionStore(createTempDir(), size)) {
+            for (int i = 0; i < 200; i++) {
+                store.put(key("document " + i), text, new Metadata());
+            }
+            assertThat(store.evictions(), greaterThan(0L));
+            assertThat(store.count(), lessThan(200));
+            assertThat(store.count() + store.evictions(), equalTo(200L));
+            assertThat(store.sizeInBytes(), lessThanOrEqualTo(size.bytes()));
+            assertThat(store.get(key("document 0")), nullValue());
+            assertThat(store.get(key("document 199")).text(), equalTo(text));
+
+            // too large for a segment
+            store.put(key("large"), randomAsciiOfLength(16 * 1024), new Metadata());
+            assertThat(store.get(key("large")), nullValue());
+        }
+    }
+
+    public void testIgnoresIncompleteResults() throws Exception {
+        Path dir = createTempDir();
+        try (ExtractionStore store = new ExtractionStore(dir, new ByteSizeValue(1, ByteSizeUnit.MB))) {
+            store.put(key("first"), "first", new Metadata());
+            store.put(key("second"), "second", new Metadata());
+        }
+
+        // damage the end of the second result, as if the node stopped while writing it
+        Path segment;
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "*.seg")) {
+            segment = segments.iterator().next();
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        int last = bytes.length - 1;
+        while (bytes[last] == 0) {
+            last--;
+        }
+        bytes[last] ^= 1;
+        Files.write(segment, bytes);
+
+        try (ExtractionStore store = new ExtractionStore(dir, new ByteSizeValue(1, ByteSizeUnit.MB))) {
+            assertThat(store.count(), equalTo(1));
+            assertThat(store.get(key("first")).text(), equalTo("first"));
+            assertThat(store.get(key("second")), nullValue());
+            // written again over the damaged one
+            store.put(key("second"), "second", new Metadata());
+            assertThat(store.get(key("second")).text(), equalTo("second"));
+        }
+        try (ExtractionStore store = new ExtractionStore(dir, new ByteSizeValue(1, ByteSizeUnit.MB))) {
+            assertThat(store.count(), equalTo(2));
+        }
+    }
+
+    public void testDropsSegmentsOfOtherVersions() throws Exception {
+        Path dir = createTempDir();
+        try (ExtractionStore store = new ExtractionStore(dir, new ByteSizeValue(1, ByteSizeUnit.MB))) {
+            store.put(key("first"), "first", new Metadata());
+        }
+
+        Path segment;
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "*.seg")) {
+            segment = segments.iterator().next();
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        ByteBuffer.wrap(bytes).putInt(4, ExtractionStore.VERSION + 1);
+        Files.write(segment, bytes);
+
+        try (ExtractionStore store = new ExtractionStore(dir, new ByteSizeValue(1, ByteSizeUnit.MB))) {
+            assertThat(store.count(), equalTo(0));
+            assertThat(store.get(key("first")), nullValue());
+            // replaced with a new segment
+            assertThat(ByteBuffer.wrap(Files.readAllBytes(segment)).getInt(4), equalTo(ExtractionStore.VERSION));
+            store.put(key("first"), "first", new Metadata());
+            assertThat(store.get(key("first")).text(), equalTo("first"));
+        }
+    }
+
+    public void testOneNodePerDirectory() throws Exception {
+        Path dir = createTempDir();
+        try (ExtractionStore store = new ExtractionStore(dir, new ByteSizeValue(1, ByteSizeUnit.MB))) {
+            try {
+                new ExtractionStore(dir, new ByteSizeValue(1, ByteSizeUnit.MB));
+                fail("expected the store to be locked");
+            } catch (IOException e) {
+                assertThat(e.getMessage(), containsString("used by another node"));
+            }
+            assertTrue(store.enabled());
+        }
+    }
+
+    public void testDisabledByDefault() throws Exception {
+        ExtractionStore store = ExtractionStore.build(Settings.EMPTY, createTempDir());
+        assertFalse(store.enabled());
+        store.put(key("Hello"), "Hello", new Metadata());
+        assertThat(store.get(key("Hello")), nullValue());
+        assertThat(store.misses(), equalTo(0L));
+    }
+
+    public void testExtractionsAreStored() throws Exception {
+        Path nodePath = createTempDir();
+        Settings settings = Settings.builder().put(ExtractionStore.SIZE_SETTING, "1mb").build();
+        byte[] html = copyToBytesFromClasspath(SAMPLES + "testXHTML.html");
+
+        String extracted;
+        try (ExtractionService service = new ExtractionService(settings, ExtractionCache.DISABLED, ExtractionStore.build(settings, nodePath))) {
+            assertTrue(service.store().enabled());
+            extracted = service.parse(AttachmentContent.of(html), new Metadata(), 100000, PARSER, false, ExtractionService.NO_TIMEOUT);
+            assertThat(service.store().count(), equalTo(1));
+        }
+        // after a restart
+        try (ExtractionService service = new ExtractionService(settings, ExtractionCache.DISABLED, ExtractionStore.build(settings, nodePath))) {
+            Metadata metadata = new Metadata();
+            String text = service.parse(AttachmentContent.of(html), metadata, 100000, PARSER, false, ExtractionService.NO_TIMEOUT);
+            assertThat(service.store().hits(), equalTo(1L));
+            assertThat(text, equalTo(extracted));
+            assertThat(metadata.get(Metadata.TITLE), equalTo("XHTML test document"));
+        }
+    }
+
+    public void testReplacingTheStoreReleasesIt() throws Exception {
+        Path nodePath = createTempDir();
+        Settings settings = Settings.builder().put(ExtractionStore.SIZE_SETTING, "1mb").build();
+        try (ExtractionService service = new ExtractionService(settings, ExtractionCache.DISABLED)) {
+            // as the node does when it starts and stops, twice in the same JVM
+            for (int i = 0; i < 2; i++) {
+                service.store(ExtractionStore.build(settings, nodePath));
+                assertTrue(service.store().enabled());
+                service.store().put(key("Hello"), "Hello", new Metadata());
+                assertThat(service.store().count(), equalTo(1));
+                service.store(ExtractionStore.DISABLED);
+                assertFalse(service.store().enabled());
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.metadata.Metadata;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import static org.elasticsearch.test.StreamsUtils.copyToBytesFromClasspath;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class ExtractionWarmerTests extends ESTestCase {
+
+    public void testCorpusParses() throws Exception {
+        for (String name : ExtractionWarmer.CORPUS) {
+            byte[] document = copyToBytesFromClasspath("/org/elasticsearch/mapper/attachments/warmup/" + name);
+            String text = TikaImpl.parse(document, new Metadata(), -1);
+            assertThat(name, text, containsString("distributed search engine"));
+        }
+    }
+
+    public void testDisabledByDefault() throws Exception {
+        assertThat(ExtractionWarmer.start(Settings.EMPTY), nullValue());
+    }
+
+    public void testWarmUp() throws Exception {
+        int iterations = randomIntBetween(1, 3);
+        ExtractionWarmer warmer = ExtractionWarmer.start(Settings.builder()
+                .put(ExtractionWarmer.ENABLED_SETTING, true)
+                .put(ExtractionWarmer.ITERATIONS_SETTING, iterations)
+                .build());
+        assertTrue(warmer.awaitCompletion(TimeValue.timeValueMinutes(1)));
+        assertThat(warmer.parsed(), equalTo(iterations * ExtractionWarmer.CORPUS.length));
+        assertThat(warmer.failed(), equalTo(0));
+    }
+
+    public void testInvalidIterations() throws Exception {
+        try {
+            new ExtractionWarmer(0);
+            fail("expected an exception for 0 iterations");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString(ExtractionWarmer.ITERATIONS_SETTING));
+        }
+    }
+}
@@ -49,10 +49,13 @@ public class LanguageDetectionAttachmentMapperTests extends AttachmentUnitTestCa
     }
 
     public void setupMapperParser(boolean langDetect) throws IOException {
-        DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(),
-            Settings.settingsBuilder()
+        setupMapperParser(Settings.settingsBuilder()
                 .put("index.mapping.attachment.detect_language", langDetect)
-            .build()).documentMapperParser();
+            .build());
+    }
+
+    public void setupMapperParser(Settings settings) throws IOException {
+        DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), settings).documentMapperParser();
         mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser());
         String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/unit/language/language-mapping.json");
         docMapper = mapperParser.parse(mapping);
@@ -89,6 +92,15 @@ public class LanguageDetectionAttachmentMapperTests extends AttachmentUnitTestCa
         testLanguage("text-in-english.txt", "en");
     }
 
+    public void testDetectionOnWholeText() throws Exception {
+        setupMapperParser(Settings.settingsBuilder()
+                .put("index.mapping.attachment.detect_language", true)
+                .put("index.mapping.attachment.detect_language_chars", -1)
+            .build());
+        testLanguage("text-in-french.txt", "fr");
+        testLanguage("text-in-english.txt", "en");
+    }
+
     public void testFrForced() throws Exception {
         testLanguage("text-in-english.txt", "fr", "fr");
     }
@@ -0,0 +1,90 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.language.LanguageIdentifier;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+
+import static org.elasticsearch.test.StreamsUtils.copyToStringFromClasspath;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class LanguageDetectorTests extends ESTestCase {
+
+    private static String sample(String name) throws IOException {
+        return copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/" + name);
+    }
+
+    public void testSameAsTikaOnSampleFiles() throws Exception {
+        for (String name : new String[] { "text-in-english.txt", "text-in-french.txt", "text-in-nolang.txt" }) {
+            String text = sample(name);
+            String expected = new LanguageIdentifier(text).getLanguage();
+            assertThat(name, LanguageDetector.detect(text, -1), equalTo(expected));
+            assertThat(name, LanguageDetector.detect(text, LanguageDetector.DEFAULT_SAMPLE_CHARS), equalTo(expected));
+        }
+    }
+
+    public void testSameAsTikaOnWholeText() throws Exception {
+        String[] words = (sample("text-in-english.txt") + " " + sample("text-in-french.txt")).split("\\s+");
+        for (int i = 0; i < 20; i++) {
+            StringBuilder text = new StringBuilder();
+            int count = randomIntBetween(20, 200);
+            for (int j = 0; j < count; j++) {
+                text.append(randomFrom(words)).append(randomFrom(" ", " ", ", ", ". ", "\n"));
+            }
+            assertThat(text.toString(), LanguageDetector.detect(text, -1),
+                    equalTo(new LanguageIdentifier(text.toString()).getLanguage()));
+        }
+    }
+
+    public void testSampleOfLongText() throws Exception {
+        for (String name : new String[] { "text-in-english.txt", "text-in-french.txt" }) {
+            String paragraph = sample(name);
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 100000) {
+                text.append(paragraph).append("\n");
+            }
+            String expected = new LanguageIdentifier(text.toString()).getLanguage();
+            assertThat(name, LanguageDetector.detect(text, randomIntBetween(1000, 20000)), equalTo(expected));
+        }
+    }
+
+    public void testSampleIsSpreadOverTheText() throws Exception {
+        // a french preface to an english text: the beginning alone would say french
+        String french = sample("text-in-french.txt");
+        String english = sample("text-in-english.txt");
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 2000) {
+            text.append(french).append("\n");
+        }
+        while (text.length() < 50000) {
+            text.append(english).append("\n");
+        }
+        assertThat(LanguageDetector.detect(text.subSequence(0, 2000), -1), equalTo("fr"));
+        assertThat(LanguageDetector.detect(text, 4000), equalTo("en"));
+    }
+
+    public void testProfilesOfAllLanguagesAreLoaded() throws Exception {
+        assertThat(LanguageDetector.Profiles.LANGUAGES.length, greaterThan(0));
+        assertThat(LanguageDetector.Profiles.LANGUAGES.length, equalTo(LanguageIdentifier.getSupportedLanguages().size()));
+    }
+}
@@ -101,4 +101,32 @@ public class MetadataMapperTests extends AttachmentUnitTestCase {
     public void testWithCorrectDate() throws Exception {
         checkMeta("htmlWithValidDateMeta.html", Settings.builder().put("index.mapping.attachment.ignore_errors", false).build(), 1354233600000L, 344L);
     }
+
+    protected void checkMetadataOnly(String mappingFile) throws IOException {
+        DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), this.testSettings).documentMapperParser();
+        mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser());
+
+        String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/unit/metadata/" + mappingFile);
+        DocumentMapper docMapper = mapperParser.parse(mapping);
+        byte[] docx = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/issue-104.docx");
+
+        BytesReference json = jsonBuilder().startObject().field("file", docx).endObject().bytes();
+        ParseContext.Document doc = docMapper.parse("person", "person", "1", json).rootDoc();
+
+        // no text, but the document properties are there
+        String content = doc.get(docMapper.mappers().getMapper("file.content").fieldType().names().indexName());
+        assertThat(content == null || content.isEmpty(), is(true));
+        assertThat(doc.get(docMapper.mappers().getMapper("file.author").fieldType().names().indexName()), equalTo("Windows User"));
+        assertThat(doc.getField(docMapper.mappers().getMapper("file.date").fieldType().names().indexName()), notNullValue());
+        assertThat(doc.get(docMapper.mappers().getMapper("file.content_type").fieldType().names().indexName()),
+                startsWith("application/vnd.openxmlformats-officedocument.wordprocessingml.document"));
+    }
+
+    public void testMetadataOnlyWhenContentIsNotIndexed() throws Exception {
+        checkMetadataOnly("content-not-indexed-mapping.json");
+    }
+
+    public void testExplicitMetadataOnly() throws Exception {
+        checkMetadataOnly("metadata-only-mapping.json");
+    }
 }
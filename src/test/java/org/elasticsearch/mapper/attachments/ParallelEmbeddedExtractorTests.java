@@ -0,0 +1,154 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.extractor.ParsingEmbeddedDocumentExtractor;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.ToTextContentHandler;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.MemoryCircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.xml.sax.ContentHandler;
+
+import java.io.StringWriter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.test.StreamsUtils.copyToBytesFromClasspath;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+public class ParallelEmbeddedExtractorTests extends ESTestCase {
+
+    private static final String SAMPLES = "/org/elasticsearch/index/mapper/attachment/test/sample-files/";
+
+    private ForkJoinPool pool;
+
+    @Before
+    public void createPool() {
+        pool = new ForkJoinPool(randomIntBetween(1, 4));
+    }
+
+    @After
+    public void closePool() throws Exception {
+        pool.shutdownNow();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    public void testSameTextAsInline() throws Exception {
+        byte[] docx = copyToBytesFromClasspath(SAMPLES + "embedded.docx");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+
+        String inline = TikaImpl.parse(StreamInput.wrap(docx), new Metadata(), -1, parser);
+        String parallel = TikaImpl.parse(StreamInput.wrap(docx), new Metadata(), -1, parser, pool, true);
+        assertThat(parallel, equalTo(inline));
+        assertThat(pool.getPoolSize(), greaterThan(0));
+
+        assertThat(parallel, containsString("Container document text."));
+        assertThat(parallel, containsString("Text of the second embedded file."));
+        // embedded in the embedded document
+        assertThat(parallel, containsString("Text of a file embedded in the nested document."));
+        // in document order
+        assertThat(parallel.indexOf("first embedded"), lessThan(parallel.indexOf("second embedded")));
+        assertThat(parallel.indexOf("Nested document"), lessThan(parallel.indexOf("fourth embedded")));
+    }
+
+    public void testLimit() throws Exception {
+        byte[] docx = copyToBytesFromClasspath(SAMPLES + "embedded.docx");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+        String text = TikaImpl.parse(StreamInput.wrap(docx), new Metadata(), -1, parser);
+
+        int limit = randomIntBetween(0, text.length());
+        String inline = TikaImpl.parse(StreamInput.wrap(docx), new Metadata(), limit, parser);
+        String parallel = TikaImpl.parse(StreamInput.wrap(docx), new Metadata(), limit, parser, pool, true);
+        assertThat(parallel, equalTo(text.substring(0, limit)));
+        assertThat(parallel, equalTo(inline));
+    }
+
+    public void testBytesReadAheadAreAccountedOnTheBreaker() throws Exception {
+        byte[] docx = copyToBytesFromClasspath(SAMPLES + "embedded.docx");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+        String inline = TikaImpl.parse(StreamInput.wrap(docx), new Metadata(), -1, parser);
+
+        CircuitBreaker breaker = new MemoryCircuitBreaker(new ByteSizeValue(1, ByteSizeUnit.MB), 1.0, logger);
+        String parallel = TikaImpl.parse(StreamInput.wrap(docx), new Metadata(), -1, parser, pool, true, breaker);
+        assertThat(parallel, equalTo(inline));
+        assertThat(breaker.getUsed(), equalTo(0L));
+    }
+
+    public void testInlineWithoutRoomOnTheBreaker() throws Exception {
+        byte[] docx = copyToBytesFromClasspath(SAMPLES + "embedded.docx");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+        String inline = TikaImpl.parse(StreamInput.wrap(docx), new Metadata(), -1, parser);
+
+        // no room to read ahead even the first few bytes
+        CircuitBreaker breaker = new MemoryCircuitBreaker(new ByteSizeValue(1, ByteSizeUnit.KB), 1.0, logger);
+        String parallel = TikaImpl.parse(StreamInput.wrap(docx), new Metadata(), -1, parser, pool, true, breaker);
+        assertThat(parallel, equalTo(inline));
+        assertThat(breaker.getUsed(), equalTo(0L));
+        assertThat(breaker.getTrippedCount(), greaterThan(0L));
+    }
+
+    public void testSameMarkupAsInline() throws Exception {
+        // OLE packages in office documents are handed over with their name, to be written out as markup
+        byte[] txt = copyToBytesFromClasspath(SAMPLES + "text-in-english.txt");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.RESOURCE_NAME_KEY, "embedded.txt");
+
+        ParseContext context = new ParseContext();
+        context.set(Parser.class, parser);
+        StringWriter inline = new StringWriter();
+        ContentHandler inlineHandler = new ToTextContentHandler(inline);
+        inlineHandler.characters("before ".toCharArray(), 0, 7);
+        new ParsingEmbeddedDocumentExtractor(context).parseEmbedded(StreamInput.wrap(txt), inlineHandler, metadata, true);
+        inlineHandler.characters(" after".toCharArray(), 0, 6);
+
+        TikaImpl.TextBuffer buffer = new TikaImpl.TextBuffer();
+        ParallelEmbeddedExtractor extractor = new ParallelEmbeddedExtractor(context, buffer, -1, pool);
+        ContentHandler handler = new ToTextContentHandler(buffer);
+        handler.characters("before ".toCharArray(), 0, 7);
+        extractor.parseEmbedded(StreamInput.wrap(txt), handler, metadata, true);
+        handler.characters(" after".toCharArray(), 0, 6);
+
+        String parallel = extractor.assemble();
+        assertThat(parallel, equalTo(inline.toString()));
+        assertThat(parallel.indexOf("embedded.txt"), lessThan(parallel.indexOf("God Save the Queen")));
+    }
+
+    public void testDocumentsWithoutEmbeddedDocuments() throws Exception {
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false);
+        for (String name : new String[] {"issue-104.docx", "testXHTML.html", "text-in-english.txt"}) {
+            byte[] document = copyToBytesFromClasspath(SAMPLES + name);
+            assertThat(name, TikaImpl.parse(StreamInput.wrap(document), new Metadata(), -1, parser, pool, true),
+                    equalTo(TikaImpl.parse(StreamInput.wrap(document), new Metadata(), -1, parser)));
+        }
+    }
+}
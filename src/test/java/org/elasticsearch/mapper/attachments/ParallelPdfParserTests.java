@@ -0,0 +1,145 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.Parser;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.MemoryCircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.test.StreamsUtils.copyToBytesFromClasspath;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+
+public class ParallelPdfParserTests extends ESTestCase {
+
+    private static final String SAMPLES = "/org/elasticsearch/index/mapper/attachment/test/sample-files/";
+
+    private ForkJoinPool pool;
+
+    @Before
+    public void createPool() {
+        pool = new ForkJoinPool(randomIntBetween(1, 4));
+    }
+
+    @After
+    public void closePool() throws Exception {
+        pool.shutdownNow();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    public void testPagesInOrder() throws Exception {
+        byte[] pdf = copyToBytesFromClasspath(SAMPLES + "multi-page.pdf");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false, true);
+
+        String text = TikaImpl.parse(StreamInput.wrap(pdf), new Metadata(), -1, parser, pool, false);
+        assertThat(pool.getPoolSize(), greaterThan(0));
+        int previous = -1;
+        for (int page = 1; page <= 24; page++) {
+            int position = text.indexOf("Page " + page + " of the multi page document.");
+            assertThat("page " + page, position, greaterThan(previous));
+            previous = position;
+        }
+    }
+
+    public void testSameAsSequential() throws Exception {
+        for (String name : new String[] {SAMPLES + "multi-page.pdf", "/org/elasticsearch/mapper/attachments/warmup/sample.pdf"}) {
+            byte[] pdf = copyToBytesFromClasspath(name);
+
+            Metadata sequentialMetadata = new Metadata();
+            String sequential = TikaImpl.parse(StreamInput.wrap(pdf), sequentialMetadata, -1,
+                    TikaImpl.parser(TikaImpl.FORMATS.keySet(), false));
+            Metadata parallelMetadata = new Metadata();
+            String parallel = TikaImpl.parse(StreamInput.wrap(pdf), parallelMetadata, -1,
+                    TikaImpl.parser(TikaImpl.FORMATS.keySet(), false, true), pool, false);
+
+            // whitespace may differ
+            assertThat(name, parallel.replaceAll("\\s+", " ").trim(), equalTo(sequential.replaceAll("\\s+", " ").trim()));
+            for (String key : new String[] {Metadata.CONTENT_TYPE, Metadata.TITLE, Metadata.AUTHOR, Metadata.KEYWORDS, "xmpTPg:NPages"}) {
+                assertThat(name + " " + key, parallelMetadata.get(key), equalTo(sequentialMetadata.get(key)));
+            }
+        }
+    }
+
+    public void testLimit() throws Exception {
+        byte[] pdf = copyToBytesFromClasspath(SAMPLES + "multi-page.pdf");
+        int limit = randomIntBetween(1, 200);
+        String text = TikaImpl.parse(StreamInput.wrap(pdf), new Metadata(), limit,
+                TikaImpl.parser(TikaImpl.FORMATS.keySet(), false, true), pool, false);
+        assertThat(text.length(), lessThanOrEqualTo(limit));
+        assertThat(text, not(containsString("Page 24")));
+    }
+
+    public void testRangesInFlightAreAccountedOnTheBreaker() throws Exception {
+        byte[] pdf = copyToBytesFromClasspath(SAMPLES + "multi-page.pdf");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false, true);
+        String unaccounted = TikaImpl.parse(StreamInput.wrap(pdf), new Metadata(), -1, parser, pool, false);
+
+        CircuitBreaker breaker = new MemoryCircuitBreaker(new ByteSizeValue(1, ByteSizeUnit.MB), 1.0, logger);
+        assertThat(TikaImpl.parse(StreamInput.wrap(pdf), new Metadata(), -1, parser, pool, false, breaker), equalTo(unaccounted));
+        assertThat(breaker.getUsed(), equalTo(0L));
+
+        // no room for a second copy of the document: one range at a time
+        breaker = new MemoryCircuitBreaker(new ByteSizeValue(pdf.length - 1), 1.0, logger);
+        assertThat(TikaImpl.parse(StreamInput.wrap(pdf), new Metadata(), -1, parser, pool, false, breaker), equalTo(unaccounted));
+        assertThat(breaker.getUsed(), equalTo(0L));
+    }
+
+    public void testInterrupted() throws Exception {
+        byte[] pdf = copyToBytesFromClasspath(SAMPLES + "multi-page.pdf");
+        Parser parser = TikaImpl.parser(TikaImpl.FORMATS.keySet(), false, true);
+        Thread.currentThread().interrupt();
+        try {
+            TikaImpl.parse(StreamInput.wrap(pdf), new Metadata(), -1, parser, pool, false);
+            fail("expected the extraction to give up");
+        } catch (TikaException e) {
+            // tika wraps the exceptions of its parsers
+            assertThat(e.getCause(), instanceOf(InterruptedIOException.class));
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    public void testWithoutPool() throws Exception {
+        byte[] pdf = copyToBytesFromClasspath(SAMPLES + "multi-page.pdf");
+        String sequential = TikaImpl.parse(StreamInput.wrap(pdf), new Metadata(), -1, TikaImpl.parser(TikaImpl.FORMATS.keySet(), false));
+        String withoutPool = TikaImpl.parse(StreamInput.wrap(pdf), new Metadata(), -1,
+                TikaImpl.parser(TikaImpl.FORMATS.keySet(), false, true));
+        assertThat(withoutPool, equalTo(sequential));
+        assertThat(sequential.indexOf("Page 1 "), lessThan(sequential.indexOf("Page 2 ")));
+    }
+}
@@ -19,15 +19,32 @@
 
 package org.elasticsearch.mapper.attachments;
 
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.Version;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.breaker.MemoryCircuitBreaker;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.mapper.DocumentMapper;
 import org.elasticsearch.index.mapper.DocumentMapperParser;
+import org.elasticsearch.index.mapper.MapperParsingException;
 import org.elasticsearch.index.mapper.ParseContext;
 import org.elasticsearch.mapper.attachments.AttachmentMapper;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.elasticsearch.test.StreamsUtils.copyToBytesFromClasspath;
 import static org.elasticsearch.test.StreamsUtils.copyToStringFromClasspath;
@@ -65,6 +82,238 @@ public class SimpleAttachmentMapperTests extends AttachmentUnitTestCase {
         assertThat(doc.get(docMapper.mappers().getMapper("file.content").fieldType().names().indexName()), containsString("This document tests the ability of Apache Tika to extract content"));
     }
 
+    public void testPreExtraction() throws Exception {
+        ExtractionService extractionService = new ExtractionService(Settings.EMPTY);
+        try {
+            DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), Settings.EMPTY).documentMapperParser();
+            mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser(extractionService));
+            String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/unit/simple/test-mapping.json");
+            DocumentMapper docMapper = mapperParser.parse(mapping);
+            AttachmentMapper mapper = (AttachmentMapper) docMapper.mappers().getMapper("file");
+            byte[] html = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html");
+
+            BytesReference plain = jsonBuilder().startObject().field("file", html).endObject().bytes();
+            BytesReference withHints = jsonBuilder().startObject().startObject("file")
+                    .field("_content", html)
+                    .field("_name", "testXHTML.html")
+                    .field("_indexed_chars", 1000)
+                    .endObject().endObject().bytes();
+            long preExtracted = 0;
+            for (BytesReference json : new BytesReference[] { plain, withHints }) {
+                try (XContentParser parser = XContentHelper.createParser(json)) {
+                    // on the value of the field
+                    parser.nextToken();
+                    parser.nextToken();
+                    parser.nextToken();
+                    assertNotNull(mapper.preExtract(parser));
+                }
+                ParseContext.Document doc = docMapper.parse("person", "person", "1", json).rootDoc();
+                assertThat(extractionService.preExtracted(), equalTo(++preExtracted));
+                assertThat(doc.get(docMapper.mappers().getMapper("file.title").fieldType().names().indexName()), equalTo("XHTML test document"));
+                assertThat(doc.get(docMapper.mappers().getMapper("file.content").fieldType().names().indexName()), containsString("This document tests the ability of Apache Tika to extract content"));
+            }
+        } finally {
+            extractionService.close();
+        }
+    }
+
+    public void testCircuitBreaker() throws Exception {
+        ExtractionService extractionService = new ExtractionService(Settings.EMPTY);
+        try {
+            CircuitBreaker breaker = new MemoryCircuitBreaker(new ByteSizeValue(1, ByteSizeUnit.KB), 1.0, logger);
+            extractionService.breaker(breaker);
+            DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), Settings.EMPTY).documentMapperParser();
+            mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser(extractionService));
+            String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/unit/simple/test-mapping.json");
+            DocumentMapper docMapper = mapperParser.parse(mapping);
+            byte[] html = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html");
+
+            // rejected although errors are ignored by default
+            try {
+                docMapper.parse("person", "person", "1", jsonBuilder().startObject().field("file", html).endObject().bytes());
+                fail("expected the breaker to trip");
+            } catch (MapperParsingException e) {
+                assertThat(ExceptionsHelper.unwrapCause(e.getCause()), instanceOf(CircuitBreakingException.class));
+            }
+            assertThat(breaker.getUsed(), equalTo(0L));
+
+            // small enough
+            BytesReference json = jsonBuilder().startObject().startObject("file")
+                    .field("_content", "Hello".getBytes(StandardCharsets.UTF_8))
+                    .field("_indexed_chars", 10)
+                    .endObject().endObject().bytes();
+            ParseContext.Document doc = docMapper.parse("person", "person", "1", json).rootDoc();
+            assertThat(doc.get(docMapper.mappers().getMapper("file.content").fieldType().names().indexName()), containsString("Hello"));
+            assertThat(breaker.getUsed(), equalTo(0L));
+        } finally {
+            extractionService.close();
+        }
+    }
+
+    public void testStats() throws Exception {
+        ExtractionService extractionService = new ExtractionService(Settings.EMPTY);
+        try {
+            DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), Settings.EMPTY).documentMapperParser();
+            mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser(extractionService));
+            String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/unit/simple/test-mapping.json");
+            DocumentMapper docMapper = mapperParser.parse(mapping);
+            byte[] html = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html");
+
+            docMapper.parse("person", "person", "1", jsonBuilder().startObject().field("file", html).endObject().bytes());
+            docMapper.parse("person", "person", "2", jsonBuilder().startObject().startObject("file")
+                    .field("_content", html)
+                    .field("_indexed_chars", 10)
+                    .endObject().endObject().bytes());
+            // errors are ignored by default
+            byte[] pdf = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/encrypted.pdf");
+            docMapper.parse("person", "person", "3", jsonBuilder().startObject().field("file", pdf).endObject().bytes());
+
+            List<AttachmentStats.ContentTypeStats> stats = extractionService.stats().stats();
+            assertThat(stats.size(), equalTo(2));
+            AttachmentStats.ContentTypeStats encrypted = stats.get(0);
+            assertThat(encrypted.contentType(), equalTo("application/pdf"));
+            assertThat(encrypted.getCount(), equalTo(1L));
+            assertThat(encrypted.getIgnoredErrors(), equalTo(1L));
+            assertThat(encrypted.getFailures(), equalTo(0L));
+            AttachmentStats.ContentTypeStats xhtml = stats.get(1);
+            assertThat(xhtml.contentType(), equalTo("application/xhtml+xml"));
+            assertThat(xhtml.getCount(), equalTo(2L));
+            assertThat(xhtml.getInputBytes(), equalTo(2L * html.length));
+            assertThat(xhtml.getTruncated(), equalTo(1L));
+            assertThat(xhtml.getExtractedChars(), greaterThan(10L));
+            assertThat(xhtml.getIgnoredErrors(), equalTo(0L));
+            assertThat(xhtml.getExtraction().getCount(), equalTo(2L));
+            assertThat(xhtml.getDecode().getCount(), equalTo(2L));
+            assertThat(xhtml.getLanguageDetection().getCount(), equalTo(0L));
+        } finally {
+            extractionService.close();
+        }
+    }
+
+    public void testReuseExtraction() throws Exception {
+        ExtractionService extractionService = new ExtractionService(
+                Settings.builder().put(ExtractionCache.CACHE_SIZE_SETTING, "1mb").build());
+        try {
+            Settings settings = Settings.builder().put("index.mapping.attachment.reuse_extraction", true).build();
+            DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), settings).documentMapperParser();
+            mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser(extractionService));
+            String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/unit/simple/test-mapping.json");
+            DocumentMapper docMapper = mapperParser.parse(mapping);
+            byte[] html = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html");
+            BytesReference json = jsonBuilder().startObject().field("file", html).endObject().bytes();
+            String digestField = docMapper.mappers().getMapper("file.digest").fieldType().names().indexName();
+
+            ParseContext.Document first = docMapper.parse("person", "person", "1", json).rootDoc();
+            assertThat(extractionService.cache().misses(), equalTo(1L));
+            assertThat(first.get(digestField), equalTo(first.get(digestField).toLowerCase(Locale.ROOT)));
+            assertThat(first.get(digestField).length(), equalTo(64));
+
+            // the same document again, as an update would parse it, finds the extraction by the indexed digest
+            ParseContext.Document second = docMapper.parse("person", "person", "1", json).rootDoc();
+            assertThat(extractionService.cache().hits(), equalTo(1L));
+            assertThat(second.get(digestField), equalTo(first.get(digestField)));
+            assertThat(second.get(docMapper.mappers().getMapper("file.title").fieldType().names().indexName()), equalTo("XHTML test document"));
+            assertThat(second.get(docMapper.mappers().getMapper("file.content").fieldType().names().indexName()),
+                    equalTo(first.get(docMapper.mappers().getMapper("file.content").fieldType().names().indexName())));
+
+            // the digest round trips through the mapping
+            docMapper = mapperParser.parse(docMapper.mappingSource().string());
+            assertNotNull(docMapper.mappers().getMapper("file.digest"));
+        } finally {
+            extractionService.close();
+        }
+    }
+
+    public void testNoDigestByDefault() throws Exception {
+        DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), Settings.EMPTY).documentMapperParser();
+        mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser());
+        String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/unit/simple/test-mapping.json");
+        DocumentMapper docMapper = mapperParser.parse(mapping);
+        byte[] html = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html");
+
+        ParseContext.Document doc = docMapper.parse("person", "person", "1",
+                jsonBuilder().startObject().field("file", html).endObject().bytes()).rootDoc();
+        assertThat(doc.get("file.digest"), nullValue());
+        // nor a digest field in the mapping
+        assertNull(docMapper.mappers().getMapper("file.digest"));
+        assertThat(docMapper.mappingSource().string(), not(containsString("digest")));
+    }
+
+    public void testBinaryContent() throws Exception {
+        DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), Settings.EMPTY).documentMapperParser();
+        mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser());
+        String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/unit/simple/test-mapping.json");
+        DocumentMapper docMapper = mapperParser.parse(mapping);
+        byte[] html = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html");
+
+        for (XContentType type : new XContentType[] {XContentType.SMILE, XContentType.CBOR}) {
+            // the attachment itself, then an object with the content and a field after it
+            BytesReference[] sources = new BytesReference[] {
+                    XContentFactory.contentBuilder(type).startObject().field("file", html).field("name", "value").endObject().bytes(),
+                    XContentFactory.contentBuilder(type).startObject().startObject("file")
+                            .field("_content", html).field("_name", "testXHTML.html").endObject()
+                            .field("name", "value").endObject().bytes()
+            };
+            for (BytesReference source : sources) {
+                ParseContext.Document doc = docMapper.parse("person", "person", "1", source).rootDoc();
+                assertThat(type.toString(), doc.get(docMapper.mappers().getMapper("file.content_type").fieldType().names().indexName()), startsWith("application/xhtml+xml"));
+                assertThat(type.toString(), doc.get(docMapper.mappers().getMapper("file.title").fieldType().names().indexName()), equalTo("XHTML test document"));
+                assertThat(type.toString(), doc.getField(docMapper.mappers().getMapper("file.content_length").fieldType().names().indexName()).numericValue().intValue(), equalTo(html.length));
+                assertThat(type.toString(), doc.get("name"), equalTo("value"));
+            }
+        }
+    }
+
+    public void testContentPath() throws Exception {
+        Path root = createTempDir();
+        byte[] html = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html");
+        Files.write(root.resolve("testXHTML.html"), html);
+        ExtractionService extractionService = new ExtractionService(Settings.builder()
+                .put(ContentPaths.ROOTS_SETTING, root.toString()).build());
+        try {
+            DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), Settings.EMPTY).documentMapperParser();
+            mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser(extractionService));
+            String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/unit/simple/test-mapping.json");
+            DocumentMapper docMapper = mapperParser.parse(mapping);
+
+            BytesReference json = jsonBuilder().startObject().startObject("file")
+                    .field("_content_path", "testXHTML.html").endObject().endObject().bytes();
+            ParseContext.Document doc = docMapper.parse("person", "person", "1", json).rootDoc();
+            assertThat(doc.get(docMapper.mappers().getMapper("file.content_type").fieldType().names().indexName()), startsWith("application/xhtml+xml"));
+            assertThat(doc.get(docMapper.mappers().getMapper("file.title").fieldType().names().indexName()), equalTo("XHTML test document"));
+            assertThat(doc.get(docMapper.mappers().getMapper("file.content").fieldType().names().indexName()), containsString("This document tests the ability of Apache Tika to extract content"));
+
+            json = jsonBuilder().startObject().startObject("file")
+                    .field("_content_path", "../" + root.getFileName() + "-other/testXHTML.html").endObject().endObject().bytes();
+            try {
+                docMapper.parse("person", "person", "2", json);
+                fail("expected a path outside of the roots to be rejected");
+            } catch (MapperParsingException e) {
+                assertThat(ExceptionsHelper.detailedMessage(e), containsString("_content_path"));
+            }
+        } finally {
+            extractionService.close();
+        }
+    }
+
+    public void testContentPathNotAllowedByDefault() throws Exception {
+        DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), Settings.EMPTY).documentMapperParser();
+        mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser());
+        String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/unit/simple/test-mapping.json");
+        DocumentMapper docMapper = mapperParser.parse(mapping);
+        Path file = createTempDir().resolve("testXHTML.html");
+        Files.write(file, copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html"));
+
+        BytesReference json = jsonBuilder().startObject().startObject("file")
+                .field("_content_path", file.toString()).endObject().endObject().bytes();
+        try {
+            docMapper.parse("person", "person", "1", json);
+            fail("expected files not to be readable without roots");
+        } catch (MapperParsingException e) {
+            assertThat(ExceptionsHelper.detailedMessage(e), containsString(ContentPaths.ROOTS_SETTING));
+        }
+    }
+
     public void testContentBackcompat() throws Exception {
         DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(),
             Settings.builder()
@@ -111,4 +360,38 @@ public class SimpleAttachmentMapperTests extends AttachmentUnitTestCase {
         assertThat(doc.get(docMapper.mappers().getMapper("file.content").fieldType().names().indexName()), containsString("This document tests the ability of Apache Tika to extract content"));
     }
 
+    public void testParallelPdfMapping() throws Exception {
+        DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), Settings.EMPTY).documentMapperParser();
+        mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser());
+        String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/unit/simple/test-mapping-parallel-pdf.json");
+        DocumentMapper docMapper = mapperParser.parse(mapping);
+        byte[] pdf = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/multi-page.pdf");
+
+        BytesReference json = jsonBuilder().startObject().field("file", pdf).endObject().bytes();
+        ParseContext.Document doc = docMapper.parse("person", "person", "1", json).rootDoc();
+
+        assertThat(doc.get(docMapper.mappers().getMapper("file.title").fieldType().names().indexName()), equalTo("Multi page document"));
+        assertThat(doc.get(docMapper.mappers().getMapper("file.content").fieldType().names().indexName()), containsString("Page 24 of the multi page document."));
+
+        // the mode survives a round trip
+        String builtMapping = docMapper.mappingSource().string();
+        assertThat(builtMapping, containsString("\"pdf_extraction\":\"parallel\""));
+        docMapper = mapperParser.parse(builtMapping);
+        doc = docMapper.parse("person", "person", "1", json).rootDoc();
+        assertThat(doc.get(docMapper.mappers().getMapper("file.content").fieldType().names().indexName()), containsString("Page 24 of the multi page document."));
+    }
+
+    public void testUnknownPdfExtraction() throws Exception {
+        DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), Settings.EMPTY).documentMapperParser();
+        mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser());
+        String mapping = jsonBuilder().startObject().startObject("person").startObject("properties")
+                .startObject("file").field("type", "attachment").field("pdf_extraction", "threaded").endObject()
+                .endObject().endObject().endObject().string();
+        try {
+            mapperParser.parse(mapping);
+            fail("expected a parsing exception for an unknown pdf_extraction");
+        } catch (MapperParsingException e) {
+            assertThat(e.getMessage(), containsString("Unknown [pdf_extraction] [threaded]"));
+        }
+    }
 }
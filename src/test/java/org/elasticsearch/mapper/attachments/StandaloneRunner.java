@@ -19,6 +19,7 @@
 
 package org.elasticsearch.mapper.attachments;
 
+import com.carrotsearch.hppc.LongArrayList;
 import org.apache.commons.cli.CommandLine;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.cli.CliTool;
@@ -26,7 +27,11 @@ import org.elasticsearch.common.cli.CliToolConfig;
 import org.elasticsearch.common.cli.Terminal;
 import org.elasticsearch.common.io.PathUtils;
 import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.mapper.DocumentMapper;
@@ -39,7 +44,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import static org.elasticsearch.common.cli.CliToolConfig.Builder.cmd;
 import static org.elasticsearch.common.cli.CliToolConfig.Builder.option;
@@ -55,14 +70,17 @@ import static org.elasticsearch.test.StreamsUtils.copyToStringFromClasspath;
  *  BASE64 encoded binary
  *
  * Example:
- *  StandaloneRunner BASE64Text
- *  StandaloneRunner -u /tmp/mydoc.pdf
- *  StandaloneRunner -u /tmp/mydoc.pdf --size 1000000
+ *  StandaloneRunner tika BASE64Text
+ *  StandaloneRunner tika -u /tmp/mydoc.pdf
+ *  StandaloneRunner tika -u /tmp/mydoc.pdf --size 1000000
+ *
+ * The load command pushes all the files of a directory through the mapper from several threads, see {@link LoadRunner}:
+ *  StandaloneRunner load -d /tmp/docs --threads 8 --duration 5m
  */
 public class StandaloneRunner extends CliTool {
 
     private static final CliToolConfig CONFIG = CliToolConfig.config("tika", StandaloneRunner.class)
-                        .cmds(TikaRunner.CMD)
+                        .cmds(TikaRunner.CMD, LoadRunner.CMD)
                 .build();
 
     static {
@@ -86,11 +104,7 @@ public class StandaloneRunner extends CliTool {
             this.size = size;
             this.url = url;
             this.base64text = base64text;
-            DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(PathUtils.get("."), Settings.EMPTY).documentMapperParser(); // use CWD b/c it won't be used
-            mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser());
-
-            String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/standalone/standalone-mapping.json");
-            docMapper = mapperParser.parse(mapping);
+            docMapper = newDocMapper(new AttachmentMapper.TypeParser());
         }
 
         @Override
@@ -169,6 +183,258 @@ public class StandaloneRunner extends CliTool {
         }
     }
 
+    /**
+     * Pushes all the files of a directory through the mapper, the same way the tika command does, from {@code --threads}
+     * threads at once. Files are parsed in turn until {@code --duration} is over or {@code --iterations} documents were
+     * parsed, each file once if neither is given. It reports the number of documents and bytes parsed per second, the
+     * latency percentiles, and the failures per file extension.
+     * <p>
+     * A {@code --warmup} period runs first with another mapper, to leave the JIT compilation out of the results.
+     * Node settings can be given as system properties, like {@code -Des.mapper.attachment.extraction.max_concurrent=4},
+     * and the extraction statistics of the node are printed at the end, per detected content type. Errors tika runs into
+     * are ignored by default, they show in these statistics and not as failures.
+     */
+    static class LoadRunner extends Command {
+        private static final String NAME = "load";
+        private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+        private final Path dir;
+        private final int threads;
+        private final long iterations;
+        private final TimeValue duration;
+        private final TimeValue warmup;
+        private final int size;
+
+        private static final CliToolConfig.Cmd CMD = cmd(NAME, LoadRunner.class)
+                .options(option("d", "dir").required(true).hasArg(false))
+                .options(option("t", "threads").required(false).hasArg(false))
+                .options(option("n", "iterations").required(false).hasArg(false))
+                .options(option("l", "duration").required(false).hasArg(false))
+                .options(option("w", "warmup").required(false).hasArg(false))
+                .options(option("s", "size").required(false).hasArg(false))
+                .build();
+
+        protected LoadRunner(Terminal terminal, Path dir, int threads, long iterations, TimeValue duration, TimeValue warmup,
+                             int size) {
+            super(terminal);
+            this.dir = dir;
+            this.threads = threads;
+            this.iterations = iterations;
+            this.duration = duration;
+            this.warmup = warmup;
+            this.size = size;
+        }
+
+        @Override
+        public ExitStatus execute(Settings settings, Environment env) throws Exception {
+            List<Document> documents = documents();
+            if (documents.isEmpty()) {
+                terminal.println("no document found in [%s]", dir);
+                return ExitStatus.NO_INPUT;
+            }
+            long bytes = 0;
+            for (Document document : documents) {
+                bytes += document.bytes;
+            }
+            terminal.println("## Load");
+            terminal.println("- documents: %s files in [%s], %s", documents.size(), dir, new ByteSizeValue(bytes));
+            terminal.println("- threads: %s", threads);
+
+            if (warmup.nanos() > 0) {
+                try (ExtractionService extractionService = new ExtractionService(settings)) {
+                    run(newDocMapper(new AttachmentMapper.TypeParser(extractionService)), documents, -1, warmup);
+                }
+            }
+            try (ExtractionService extractionService = new ExtractionService(settings)) {
+                long iterations = this.iterations < 0 && duration.nanos() <= 0 ? documents.size() : this.iterations;
+                Result result = run(newDocMapper(new AttachmentMapper.TypeParser(extractionService)), documents, iterations,
+                        duration);
+                report(result, extractionService);
+            }
+            return ExitStatus.OK;
+        }
+
+        private List<Document> documents() throws IOException {
+            List<Document> documents = new ArrayList<>();
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile).sorted()::iterator) {
+                    byte[] bytes = Files.readAllBytes(file);
+                    XContentBuilder builder = jsonBuilder().startObject().field("file").startObject()
+                            .field("_content", bytes)
+                            .field("_name", file.getFileName().toString());
+                    if (size >= 0) {
+                        builder.field("_indexed_chars", size);
+                    }
+                    documents.add(new Document(format(file), bytes.length, builder.endObject().endObject().bytes()));
+                }
+            }
+            return documents;
+        }
+
+        /** the extension of the file, what the results are broken down by */
+        private static String format(Path file) {
+            String name = file.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            return dot <= 0 || dot == name.length() - 1 ? "none" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * Parses the documents in turn from all threads, until {@code iterations} documents were parsed if it is not
+         * negative, or until {@code duration} is over if it is positive.
+         */
+        private Result run(DocumentMapper docMapper, List<Document> documents, long iterations, TimeValue duration)
+                throws InterruptedException {
+            Result result = new Result(documents);
+            AtomicLong next = new AtomicLong();
+            long start = System.nanoTime();
+            long end = duration.nanos() > 0 ? start + duration.nanos() : Long.MAX_VALUE;
+            Thread[] workers = new Thread[threads];
+            LongArrayList[] latencies = new LongArrayList[threads];
+            for (int t = 0; t < threads; t++) {
+                LongArrayList took = latencies[t] = new LongArrayList();
+                workers[t] = new Thread(() -> {
+                    for (long i = next.getAndIncrement(); iterations < 0 || i < iterations; i = next.getAndIncrement()) {
+                        long before = System.nanoTime();
+                        if (before >= end) {
+                            break;
+                        }
+                        Document document = documents.get((int) (i % documents.size()));
+                        Format format = result.formats.get(document.format);
+                        try {
+                            docMapper.parse("person", "person", Long.toString(i), document.source);
+                        } catch (Exception e) {
+                            format.failures.inc();
+                            result.firstFailures.putIfAbsent(document.format, e.toString());
+                        }
+                        long nanos = System.nanoTime() - before;
+                        took.add(nanos);
+                        format.count.inc();
+                        format.bytes.inc(document.bytes);
+                        format.took.inc(nanos);
+                    }
+                }, "load[" + t + "]");
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            result.tookNanos = System.nanoTime() - start;
+            for (LongArrayList took : latencies) {
+                result.latencies.addAll(took);
+            }
+            Arrays.sort(result.latencies.buffer, 0, result.latencies.size());
+            return result;
+        }
+
+        private void report(Result result, ExtractionService extractionService) {
+            long count = result.latencies.size();
+            long bytes = 0;
+            for (Format format : result.formats.values()) {
+                bytes += format.bytes.count();
+            }
+            double seconds = result.tookNanos / (double) TimeUnit.SECONDS.toNanos(1);
+            terminal.println("- took: %s", TimeValue.timeValueNanos(result.tookNanos));
+            terminal.println("- docs: %s (%.1f docs/s)", count, count / seconds);
+            terminal.println("- input: %s (%.1f MB/s)", new ByteSizeValue(bytes), bytes / seconds / (1024 * 1024));
+            if (count > 0) {
+                StringBuilder latency = new StringBuilder();
+                for (double percentile : PERCENTILES) {
+                    latency.append("p").append(percentile).append(" [")
+                            .append(TimeValue.timeValueNanos(percentile(result.latencies, percentile))).append("], ");
+                }
+                latency.append("max [").append(TimeValue.timeValueNanos(result.latencies.get((int) count - 1))).append("]");
+                terminal.println("- latency: %s", latency);
+            }
+            terminal.println("- waited for an extraction slot: %s times, %s in total", extractionService.limiter().waited(),
+                    TimeValue.timeValueNanos(extractionService.limiter().waitTimeNanos()));
+
+            terminal.println("## Formats");
+            for (Map.Entry<String, Format> entry : result.formats.entrySet()) {
+                Format format = entry.getValue();
+                long docs = format.count.count();
+                long failures = format.failures.count();
+                terminal.println("- %s: docs [%s], input [%s], failures [%s] (%.1f%%), mean [%s]", entry.getKey(), docs,
+                        new ByteSizeValue(format.bytes.count()), failures, docs == 0 ? 0d : 100d * failures / docs,
+                        TimeValue.timeValueNanos((long) format.took.mean()));
+                String failure = result.firstFailures.get(entry.getKey());
+                if (failure != null) {
+                    terminal.println("  first failure: %s", failure);
+                }
+            }
+
+            terminal.println("## Content types");
+            for (AttachmentStats.ContentTypeStats contentType : new AttachmentStats(extractionService).getContentTypes()) {
+                terminal.println("- %s: count [%s], ignored_errors [%s], failures [%s], extraction p50 [<%s], p99 [<%s]",
+                        contentType.contentType(), contentType.getCount(), contentType.getIgnoredErrors(),
+                        contentType.getFailures(), contentType.getExtraction().percentile(50),
+                        contentType.getExtraction().percentile(99));
+            }
+        }
+
+        /** nearest rank percentile of sorted latencies */
+        static long percentile(LongArrayList sorted, double percentile) {
+            int rank = (int) Math.ceil(percentile / 100 * sorted.size());
+            return sorted.get(Math.max(rank, 1) - 1);
+        }
+
+        public static Command parse(Terminal terminal, CommandLine cli) throws IOException {
+            Path dir = PathUtils.get(cli.getOptionValue("dir"));
+            if (Files.isDirectory(dir) == false) {
+                return exitCmd(ExitStatus.USAGE, terminal, "[" + dir + "] is not a directory (type -h for help)");
+            }
+            int threads = Integer.parseInt(cli.getOptionValue("threads", "1"));
+            if (threads < 1) {
+                return exitCmd(ExitStatus.USAGE, terminal, "at least one thread is needed (type -h for help)");
+            }
+            long iterations = Long.parseLong(cli.getOptionValue("iterations", "-1"));
+            TimeValue duration = TimeValue.parseTimeValue(cli.getOptionValue("duration", "-1"), null, "duration");
+            TimeValue warmup = TimeValue.parseTimeValue(cli.getOptionValue("warmup", "0s"), null, "warmup");
+            int size = Integer.parseInt(cli.getOptionValue("size", "-1"));
+            return new LoadRunner(terminal, dir, threads, iterations, duration, warmup, size);
+        }
+
+        private static class Document {
+            final String format;
+            final long bytes;
+            final BytesReference source;
+
+            Document(String format, long bytes, BytesReference source) {
+                this.format = format;
+                this.bytes = bytes;
+                this.source = source;
+            }
+        }
+
+        private static class Format {
+            final CounterMetric count = new CounterMetric();
+            final CounterMetric bytes = new CounterMetric();
+            final CounterMetric failures = new CounterMetric();
+            final MeanMetric took = new MeanMetric();
+        }
+
+        private static class Result {
+            /** all the formats are there before the threads start, so they can read it concurrently */
+            final Map<String, Format> formats = new TreeMap<>();
+            final ConcurrentMap<String, String> firstFailures = new ConcurrentHashMap<>();
+            final LongArrayList latencies = new LongArrayList();
+            long tookNanos;
+
+            Result(List<Document> documents) {
+                for (Document document : documents) {
+                    formats.computeIfAbsent(document.format, format -> new Format());
+                }
+            }
+        }
+    }
+
+    /** the mapper of the standalone mapping, with an attachment field named file */
+    static DocumentMapper newDocMapper(AttachmentMapper.TypeParser typeParser) throws IOException {
+        DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(PathUtils.get("."), Settings.EMPTY).documentMapperParser(); // use CWD b/c it won't be used
+        mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, typeParser);
+
+        String mapping = copyToStringFromClasspath("/org/elasticsearch/index/mapper/attachment/test/standalone/standalone-mapping.json");
+        return mapperParser.parse(mapping);
+    }
+
     public StandaloneRunner() {
         super(CONFIG);
     }
@@ -183,6 +449,7 @@ public class StandaloneRunner extends CliTool {
     protected Command parse(String cmdName, CommandLine cli) throws Exception {
         switch (cmdName.toLowerCase(Locale.ROOT)) {
             case TikaRunner.NAME: return TikaRunner.parse(terminal, cli);
+            case LoadRunner.NAME: return LoadRunner.parse(terminal, cli);
             default:
                     assert false : "can't get here as cmd name is validated before this method is called";
                     return exitCmd(ExitStatus.CODE_ERROR);
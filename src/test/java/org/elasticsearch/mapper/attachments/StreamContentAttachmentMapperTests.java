@@ -0,0 +1,145 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.mapper.attachments;
+
+import org.apache.lucene.index.IndexableField;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.DocumentMapperParser;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.ParseContext;
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.test.StreamsUtils.copyToBytesFromClasspath;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class StreamContentAttachmentMapperTests extends AttachmentUnitTestCase {
+
+    private ExtractionService extractionService;
+
+    private DocumentMapperParser mapperParser;
+
+    @Before
+    public void setupMapperParser() throws IOException {
+        extractionService = new ExtractionService(Settings.EMPTY);
+        Settings settings = Settings.builder()
+                .put("index.mapping.attachment.detect_language", true)
+                .put("index.mapping.attachment.indexed_chars", -1)
+                .build();
+        mapperParser = MapperTestUtils.newMapperService(createTempDir(), settings).documentMapperParser();
+        mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser(extractionService));
+    }
+
+    @After
+    public void closeExtractionService() {
+        extractionService.close();
+    }
+
+    private DocumentMapper mapper(XContentBuilder content) throws IOException {
+        XContentBuilder mapping = jsonBuilder().startObject().startObject("person").startObject("properties")
+                .startObject("file").field("type", "attachment").field("stream_content", true);
+        if (content != null) {
+            mapping.startObject("fields").rawField("content", content.bytes()).endObject();
+        }
+        return mapperParser.parse(mapping.endObject().endObject().endObject().endObject().string());
+    }
+
+    public void testStreamedContent() throws Exception {
+        DocumentMapper docMapper = mapper(null);
+        byte[] html = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html");
+        byte[] english = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/text-in-english.txt");
+
+        ParseContext.Document doc = docMapper.parse("person", "person", "1",
+                jsonBuilder().startObject().field("file", html).endObject().bytes()).rootDoc();
+        String contentField = docMapper.mappers().getMapper("file.content").fieldType().names().indexName();
+        IndexableField content = doc.getField(contentField);
+        assertThat(content.stringValue(), nullValue());
+        assertThat(content.readerValue(), notNullValue());
+        try (Reader reader = content.readerValue()) {
+            assertThat(Streams.copyToString(reader), containsString("This document tests the ability of Apache Tika to extract content"));
+        }
+        // the metadata is complete, the extraction is over when the mapper is done
+        assertThat(doc.get(docMapper.mappers().getMapper("file.title").fieldType().names().indexName()), equalTo("XHTML test document"));
+
+        doc = docMapper.parse("person", "person", "2",
+                jsonBuilder().startObject().field("file", english).endObject().bytes()).rootDoc();
+        assertThat(doc.get(docMapper.mappers().getMapper("file.language").fieldType().names().indexName()), equalTo("en"));
+        doc.getField(contentField).readerValue().close();
+
+        // the parameter round trips through the mapping
+        docMapper = mapperParser.parse(docMapper.mappingSource().string());
+        assertThat(docMapper.mappingSource().string(), containsString("\"stream_content\":true"));
+    }
+
+    public void testFailingFieldLeavesNoText() throws Exception {
+        Settings settings = Settings.builder().put("index.mapping.attachment.ignore_errors", false).build();
+        DocumentMapperParser mapperParser = MapperTestUtils.newMapperService(createTempDir(), settings).documentMapperParser();
+        mapperParser.putTypeParser(AttachmentMapper.CONTENT_TYPE, new AttachmentMapper.TypeParser(extractionService));
+        String mapping = jsonBuilder().startObject().startObject("person").startObject("properties")
+                .startObject("file").field("type", "attachment").field("stream_content", true)
+                .startObject("fields").startObject("title").field("type", "integer").endObject().endObject()
+                .endObject().endObject().endObject().endObject().string();
+        DocumentMapper docMapper = mapperParser.parse(mapping);
+        byte[] html = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html");
+
+        try {
+            docMapper.parse("person", "person", "1", jsonBuilder().startObject().field("file", html).endObject().bytes());
+            fail("expected the title to fail the document");
+        } catch (MapperParsingException e) {
+            // the title is no number
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(extractionService.spillDirectory())) {
+            assertFalse(files.iterator().hasNext());
+        }
+    }
+
+    public void testContentMustBeAnalyzedAndNotStored() throws Exception {
+        XContentBuilder[] contents = new XContentBuilder[] {
+                jsonBuilder().startObject().field("store", true).endObject(),
+                jsonBuilder().startObject().field("index", "not_analyzed").endObject(),
+                jsonBuilder().startObject().field("index", "no").endObject(),
+                jsonBuilder().startObject().field("copy_to", "other").endObject(),
+                jsonBuilder().startObject().startObject("fields").startObject("raw").field("type", "string").endObject().endObject().endObject()
+        };
+        for (XContentBuilder content : contents) {
+            try {
+                mapper(content);
+                fail("expected [" + content.string() + "] to be rejected");
+            } catch (MapperParsingException e) {
+                assertThat(ExceptionsHelper.detailedMessage(e), containsString("[stream_content]"));
+            }
+        }
+    }
+}
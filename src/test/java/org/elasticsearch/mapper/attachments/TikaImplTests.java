@@ -1,11 +1,97 @@
 package org.elasticsearch.mapper.attachments;
 
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.test.ESTestCase;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.elasticsearch.test.StreamsUtils.copyToBytesFromClasspath;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.isEmptyString;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
+
 public class TikaImplTests extends ESTestCase {
   
   public void testTikaLoads() throws Exception {
     Class.forName("org.elasticsearch.mapper.attachments.TikaImpl");
   }
 
+  public void testTrustedContentType() throws Exception {
+    byte[] html = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html");
+
+    // detection finds out this is html, despite what we were told
+    Metadata metadata = new Metadata();
+    metadata.set(Metadata.CONTENT_TYPE, "text/plain");
+    String detected = TikaImpl.parse(StreamInput.wrap(html), metadata, -1, TikaImpl.parser(TikaImpl.FORMATS.keySet(), false));
+    assertThat(detected, not(containsString("<title>")));
+    assertThat(metadata.get(Metadata.CONTENT_TYPE), startsWith("application/xhtml+xml"));
+
+    // trusted, it goes straight to the text parser
+    metadata = new Metadata();
+    metadata.set(Metadata.CONTENT_TYPE, "text/plain");
+    String trusted = TikaImpl.parse(StreamInput.wrap(html), metadata, -1, TikaImpl.parser(TikaImpl.FORMATS.keySet(), true));
+    assertThat(trusted, containsString("<title>XHTML test document</title>"));
+    assertThat(metadata.get(Metadata.CONTENT_TYPE), startsWith("text/plain"));
+  }
+
+  public void testTrustedContentTypeWithoutParser() throws Exception {
+    byte[] html = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/testXHTML.html");
+
+    // we have no parser for images, so the type gets detected anyway
+    Metadata metadata = new Metadata();
+    metadata.set(Metadata.CONTENT_TYPE, "image/png");
+    String text = TikaImpl.parse(StreamInput.wrap(html), metadata, -1, TikaImpl.parser(TikaImpl.FORMATS.keySet(), true));
+    assertThat(text, containsString("extract content"));
+    assertThat(text, not(containsString("<title>")));
+  }
+
+  public void testTextBufferIsResetBetweenDocuments() throws Exception {
+    byte[] english = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/text-in-english.txt");
+    byte[] french = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/text-in-french.txt");
+
+    String first = TikaImpl.parse(english, new Metadata(), -1);
+    String second = TikaImpl.parse(french, new Metadata(), -1);
+    assertEquals(first.trim(), new String(english, StandardCharsets.UTF_8).trim());
+    assertEquals(second.trim(), new String(french, StandardCharsets.UTF_8).trim());
+
+    // the limit still applies, and does not stick to the buffer
+    assertEquals(first.substring(0, 10), TikaImpl.parse(english, new Metadata(), 10));
+    assertEquals(first, TikaImpl.parse(english, new Metadata(), -1));
+  }
+
+  public void testFormatsListTheTypesOfTheirParsers() throws Exception {
+    for (Map.Entry<String, TikaImpl.Format> format : TikaImpl.FORMATS.entrySet()) {
+      Parser parser = format.getValue().parser.delegate();
+      assertEquals(format.getKey(), parser.getSupportedTypes(new ParseContext()),
+          format.getValue().parser.getSupportedTypes(new ParseContext()));
+    }
+  }
+
+  public void testRestrictedFormats() throws Exception {
+    byte[] docx = copyToBytesFromClasspath("/org/elasticsearch/index/mapper/attachment/test/sample-files/issue-104.docx");
+
+    String text = TikaImpl.parse(StreamInput.wrap(docx), new Metadata(), -1, TikaImpl.parser(Arrays.asList("ooxml"), false));
+    assertThat(text, not(isEmptyString()));
+
+    // without the ooxml format, the container is not looked into and there is no parser for it
+    Metadata metadata = new Metadata();
+    text = TikaImpl.parse(StreamInput.wrap(docx), metadata, -1, TikaImpl.parser(Arrays.asList("html", "txt"), false));
+    assertThat(text, isEmptyString());
+    assertThat(metadata.get(Metadata.CONTENT_TYPE), not(startsWith("application/vnd.openxmlformats")));
+  }
+
+  public void testUnknownFormat() throws Exception {
+    try {
+      TikaImpl.parser(Arrays.asList("pdf", "docx"), false);
+      fail("expected an exception for an unknown format");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), containsString("Unknown attachment format [docx]"));
+    }
+  }
 }